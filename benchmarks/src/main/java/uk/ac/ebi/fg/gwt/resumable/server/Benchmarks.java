@@ -0,0 +1,71 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    static FileChunkInfo chunk(String id, int chunkSize, int chunkNumber, int chunkCount) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.chunkNumber = chunkNumber;
+        info.chunkSize = chunkSize;
+        info.totalChunks = chunkCount;
+        info.currentChunkSize = chunkSize;
+        info.fileSize = (long) chunkSize * chunkCount;
+        info.id = id;
+        info.fileName = id + ".bin";
+        info.relativePath = info.fileName;
+        return info;
+    }
+
+    static FileChunkInfo[] chunks(String id, int chunkSize, int chunkCount) {
+        FileChunkInfo[] chunks = new FileChunkInfo[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = chunk(id, chunkSize, i + 1, chunkCount);
+        }
+        return chunks;
+    }
+
+    static void shuffle(Object[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Object value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Chunk bookkeeping of an upload with every chunk but the last one stored, as seen by the
+// resumable.js test requests and by the completion check after every chunk
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkBookkeepingBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    int chunkCount;
+
+    File directory;
+    SimpleUploadStorageImpl storage;
+    FileChunkInfo lastChunk;
+    FileChunkInfo middleChunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chunk-bookkeeping-benchmark").toFile();
+        storage = new SimpleUploadStorageImpl(directory.getPath());
+        byte[] data = new byte[1];
+        for (int i = 1; i < chunkCount; i++) {
+            storage.storeChunk(Benchmarks.chunk("upload", 1, i, chunkCount), new ByteArrayInputStream(data), 1);
+        }
+        lastChunk = Benchmarks.chunk("upload", 1, chunkCount, chunkCount);
+        middleChunk = Benchmarks.chunk("upload", 1, chunkCount / 2, chunkCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public boolean hasAllChunks() throws IOException {
+        return storage.hasAllChunks(lastChunk);
+    }
+
+    @Benchmark
+    public boolean hasChunk() throws IOException {
+        return storage.hasChunk(middleChunk);
+    }
+
+    @Benchmark
+    public byte[] getChunkManifest() throws IOException {
+        return storage.getChunkManifest(lastChunk);
+    }
+}
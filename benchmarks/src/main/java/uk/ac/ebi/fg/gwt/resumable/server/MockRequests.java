@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Just enough of HttpServletRequest for ResumableUploadServlet to read chunk parameters, the way a
+// container presents them once it has parsed the body
+final class MockRequests {
+
+    final static String BOUNDARY = "----ResumableBenchmarkBoundary";
+
+    private MockRequests() {
+    }
+
+    static Map<String, String> chunkParameters(int chunkSize) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put(ResumableUploadServlet.RESUMABLE_CHUNK_NUMBER, "42");
+        parameters.put(ResumableUploadServlet.RESUMABLE_CHUNK_SIZE, String.valueOf(chunkSize));
+        parameters.put(ResumableUploadServlet.RESUMABLE_CURRENT_CHUNK_SIZE, String.valueOf(chunkSize));
+        parameters.put(ResumableUploadServlet.RESUMABLE_TOTAL_SIZE, String.valueOf(100L * chunkSize));
+        parameters.put(ResumableUploadServlet.RESUMABLE_IDENTIFIER, "104857600-experimentfastqgz");
+        parameters.put(ResumableUploadServlet.RESUMABLE_FILENAME, "experiment.fastq.gz");
+        parameters.put(ResumableUploadServlet.RESUMABLE_RELATIVE_PATH, "experiment.fastq.gz");
+        return parameters;
+    }
+
+    static HttpServletRequest urlEncoded(final Map<String, String> parameters) {
+        return request(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getContentType":
+                        return "application/x-www-form-urlencoded";
+                    case "getParameter":
+                        return parameters.get(args[0]);
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    static HttpServletRequest multipart(Map<String, String> parameters) {
+        final Map<String, Part> parts = new LinkedHashMap<>();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            parts.put(parameter.getKey(), part(parameter.getValue().getBytes(StandardCharsets.UTF_8)));
+        }
+        return request(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getContentType":
+                        return "multipart/form-data; boundary=" + BOUNDARY;
+                    case "getPart":
+                        return parts.get(args[0]);
+                    case "getParts":
+                        return parts.values();
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    // The request body resumable.js sends in its default multipart mode
+    static byte[] multipartBody(Map<String, String> parameters, byte[] chunk) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            write(body, "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + parameter.getKey()
+                    + "\"\r\n\r\n" + parameter.getValue() + "\r\n");
+        }
+        write(body, "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"blob\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n");
+        body.write(chunk, 0, chunk.length);
+        write(body, "\r\n--" + BOUNDARY + "--\r\n");
+        return body.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream body, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        body.write(bytes, 0, bytes.length);
+    }
+
+    private static Part part(final byte[] content) {
+        return (Part) Proxy.newProxyInstance(MockRequests.class.getClassLoader(), new Class<?>[] {Part.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getInputStream":
+                                return new ByteArrayInputStream(content);
+                            case "getSize":
+                                return (long) content.length;
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    private static HttpServletRequest request(InvocationHandler handler) {
+        return (HttpServletRequest) Proxy.newProxyInstance(MockRequests.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, handler);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Reading the chunk parameters of a request: from the container's parameters or parts, and from the
+// raw body with the streaming multipart parser, which also has to get through the chunk itself
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    @Param({"65536", "1048576"})
+    int chunkSize;
+
+    ResumableUploadServlet servlet;
+    HttpServletRequest urlEncoded;
+    HttpServletRequest multipart;
+    byte[] multipartBody;
+    byte[] sink;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        servlet = new ResumableUploadServlet();
+        Map<String, String> parameters = MockRequests.chunkParameters(chunkSize);
+        urlEncoded = MockRequests.urlEncoded(parameters);
+        multipart = MockRequests.multipart(parameters);
+        byte[] chunk = new byte[chunkSize];
+        new Random(1).nextBytes(chunk);
+        multipartBody = MockRequests.multipartBody(parameters, chunk);
+        sink = new byte[65536];
+    }
+
+    @Benchmark
+    public FileChunkInfo buildChunkInfoUrlEncoded() throws IOException, ServletException {
+        return servlet.buildChunkInfo(urlEncoded);
+    }
+
+    @Benchmark
+    public FileChunkInfo buildChunkInfoMultipart() throws IOException, ServletException {
+        return servlet.buildChunkInfo(multipart);
+    }
+
+    @Benchmark
+    public FileChunkInfo streamingMultipart() throws IOException {
+        MultipartStream stream = new MultipartStream(new ByteArrayInputStream(multipartBody), MockRequests.BOUNDARY);
+        Map<String, String> fields = new HashMap<>();
+        FileChunkInfo info = null;
+        while (stream.nextPart()) {
+            if (null == stream.getFileName()) {
+                fields.put(stream.getName(), stream.readString(8192));
+            } else {
+                info = ResumableUploadServlet.buildChunkInfo(fields, "");
+                InputStream chunk = stream.getPartStream(info.currentChunkSize);
+                while (chunk.read(sink, 0, sink.length) >= 0) {
+                    // discarded, only the parsing is measured
+                }
+            }
+        }
+        return info;
+    }
+}
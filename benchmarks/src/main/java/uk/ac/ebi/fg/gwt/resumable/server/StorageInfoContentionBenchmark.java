@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Lookups of the per-upload storage info from many threads, spread over a few or many uploads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageInfoContentionBenchmark {
+
+    @Param({"1", "16", "1024"})
+    int uploadCount;
+
+    File directory;
+    SimpleUploadStorageImpl storage;
+    FileChunkInfo[] chunks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("storage-info-benchmark").toFile();
+        storage = new SimpleUploadStorageImpl(directory.getPath());
+        chunks = new FileChunkInfo[uploadCount];
+        for (int i = 0; i < uploadCount; i++) {
+            chunks[i] = Benchmarks.chunk("upload-" + i, 1048576, 1, 100);
+            storage.hasChunk(chunks[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean hasChunk1Thread() throws IOException {
+        return hasChunk();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean hasChunk16Threads() throws IOException {
+        return hasChunk();
+    }
+
+    private boolean hasChunk() throws IOException {
+        return storage.hasChunk(chunks[ThreadLocalRandom.current().nextInt(chunks.length)]);
+    }
+}
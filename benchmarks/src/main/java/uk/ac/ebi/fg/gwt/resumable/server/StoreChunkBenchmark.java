@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Chunks stored per second; every thread uploads its own files, completed files are deleted by a
+// completion listener so the disk does not fill up during an iteration
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreChunkBenchmark {
+
+    private final static int CHUNKS_PER_FILE = 64;
+
+    @Param({"65536", "1048576", "4194304"})
+    int chunkSize;
+
+    @Param({"IN_ORDER", "RANDOM"})
+    String order;
+
+    File directory;
+    SimpleUploadStorageImpl storage;
+    byte[] data;
+    final AtomicLong uploads = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("store-chunk-benchmark").toFile();
+        storage = new SimpleUploadStorageImpl(directory.getPath());
+        storage.addCompletionListener(new UploadCompletionListener() {
+            @Override
+            public void uploadCompleted(CompletedUpload upload) throws Exception {
+                Files.deleteIfExists(upload.file.toPath());
+            }
+        });
+        data = new byte[chunkSize];
+        new Random(1).nextBytes(data);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        storage.close();
+        Benchmarks.deleteRecursively(directory);
+    }
+
+    @State(Scope.Thread)
+    public static class Uploader {
+
+        FileChunkInfo[] chunks;
+        int next;
+
+        FileChunkInfo nextChunk(StoreChunkBenchmark benchmark) {
+            if (null == chunks || next == chunks.length) {
+                String id = "upload-" + benchmark.uploads.incrementAndGet();
+                chunks = Benchmarks.chunks(id, benchmark.chunkSize, CHUNKS_PER_FILE);
+                if ("RANDOM".equals(benchmark.order)) {
+                    Benchmarks.shuffle(chunks, new Random(id.hashCode()));
+                }
+                next = 0;
+            }
+            return chunks[next++];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void storeChunk1Thread(Uploader uploader) throws IOException {
+        store(uploader.nextChunk(this));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void storeChunk4Threads(Uploader uploader) throws IOException {
+        store(uploader.nextChunk(this));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void storeChunk16Threads(Uploader uploader) throws IOException {
+        store(uploader.nextChunk(this));
+    }
+
+    private void store(FileChunkInfo info) throws IOException {
+        storage.storeChunk(info, new ByteArrayInputStream(data, 0, info.currentChunkSize), info.currentChunkSize);
+    }
+}
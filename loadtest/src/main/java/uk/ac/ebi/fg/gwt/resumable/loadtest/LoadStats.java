@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.loadtest;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// What the simulated clients saw, shared by all of them
+class LoadStats {
+
+    final AtomicLong tests          = new AtomicLong();
+    final AtomicLong testHits       = new AtomicLong();
+    final AtomicLong posts          = new AtomicLong();
+    final AtomicLong bytesSent      = new AtomicLong();
+    final AtomicLong chunksStored   = new AtomicLong();
+    final AtomicLong disconnects    = new AtomicLong();
+    final AtomicLong retries        = new AtomicLong();
+    final AtomicLong rejected       = new AtomicLong();
+    final AtomicLong conflicts      = new AtomicLong();
+    final AtomicLong ioErrors       = new AtomicLong();
+    final AtomicLong failedChunks   = new AtomicLong();
+
+    private long[] latencies = new long[1024];
+    private int count;
+
+    // latency of a chunk POST that the server accepted, from opening the request to reading the response
+    synchronized void recordLatency(long nanos) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+    }
+
+    synchronized long[] sortedLatencies() {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    static long quantile(long[] sorted, double q) {
+        if (0 == sorted.length) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1)];
+    }
+
+    void print(PrintStream out, long elapsedNanos, long payloadBytes) {
+        double seconds = elapsedNanos / 1e9;
+        long[] sorted = sortedLatencies();
+        out.printf("elapsed             %.2f s%n", seconds);
+        out.printf("throughput          %.1f MB/s (%.1f MB/s on the wire)%n",
+                payloadBytes / seconds / (1 << 20), bytesSent.get() / seconds / (1 << 20));
+        out.printf("chunks              %d stored, %.0f/s%n", chunksStored.get(), chunksStored.get() / seconds);
+        out.printf("chunk latency       p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                quantile(sorted, 0.5) / 1e6, quantile(sorted, 0.99) / 1e6, quantile(sorted, 1) / 1e6);
+        out.println("requests            " + posts.get() + " posts, " + tests.get() + " tests (" + testHits.get()
+                + " already present)");
+        out.println("interruptions       " + disconnects.get() + " disconnects, " + retries.get() + " retries, "
+                + rejected.get() + " rejected (503), " + conflicts.get() + " conflicts (409), "
+                + ioErrors.get() + " I/O errors");
+        out.println("failed chunks       " + failedChunks.get());
+    }
+}
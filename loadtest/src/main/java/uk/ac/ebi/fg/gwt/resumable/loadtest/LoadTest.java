@@ -0,0 +1,225 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.loadtest;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import uk.ac.ebi.fg.gwt.resumable.server.CompletedUpload;
+import uk.ac.ebi.fg.gwt.resumable.server.ResumableUploadServlet;
+import uk.ac.ebi.fg.gwt.resumable.server.SimpleUploadStorageImpl;
+import uk.ac.ebi.fg.gwt.resumable.server.UploadCompletionListener;
+import uk.ac.ebi.fg.gwt.resumable.server.UploadMetrics;
+
+import javax.servlet.MultipartConfigElement;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Runs the upload servlet in an embedded Jetty, drives it with simulated resumable.js clients and
+// checks every assembled file byte for byte. Exits with 1 if any file failed or did not verify.
+public class LoadTest {
+
+    private final static String PATH = "/upload";
+
+    private final LoadTestOptions options;
+    private final PrintStream out;
+
+    public LoadTest(LoadTestOptions options, PrintStream out) {
+        this.options = options;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException x) {
+            System.err.println(x.getMessage());
+            System.err.println("Options (-name=value):");
+            new LoadTestOptions().print(System.err);
+            System.exit(2);
+            return;
+        }
+        System.exit(new LoadTest(options, System.out).run() ? 0 : 1);
+    }
+
+    // Returns true if every file was uploaded and assembled correctly
+    public boolean run() throws Exception {
+        options.print(out);
+        out.println();
+
+        Path directory = null == options.uploadDirectory
+                ? Files.createTempDirectory("resumable-loadtest")
+                : Files.createDirectories(new File(options.uploadDirectory).toPath());
+
+        final Map<String, CompletedUpload> completed = new ConcurrentHashMap<>();
+        final CountDownLatch completions = new CountDownLatch(options.clients * options.files);
+        SimpleUploadStorageImpl storage = new SimpleUploadStorageImpl(directory.toString());
+        storage.addCompletionListener(new UploadCompletionListener() {
+            @Override
+            public void uploadCompleted(CompletedUpload upload) {
+                if (null == completed.put(upload.id, upload)) {
+                    completions.countDown();
+                }
+            }
+        });
+        ResumableUploadServlet servlet = new ResumableUploadServlet();
+        servlet.setStorage(storage);
+        Server server = startServer(servlet);
+        String target = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + PATH;
+
+        ResourceSampler sampler = new ResourceSampler();
+        LoadStats stats = new LoadStats();
+        try {
+            List<SimulatedFile> files = new ArrayList<>();
+            List<SimulatedClient> clients = createClients(target, stats, files);
+
+            sampler.start();
+            long start = System.nanoTime();
+            runClients(clients);
+            long elapsed = System.nanoTime() - start;
+            completions.await(options.completionTimeout, TimeUnit.MILLISECONDS);
+            sampler.stop();
+
+            stats.print(out, elapsed, (long) files.size() * options.fileSize);
+            printServerMetrics(servlet.getMetrics());
+            sampler.print(out);
+            out.println();
+            return verify(files, completed);
+        } finally {
+            server.stop();
+            storage.close();
+            if (!options.keepFiles) {
+                deleteRecursively(directory);
+            }
+        }
+    }
+
+    private Server startServer(ResumableUploadServlet servlet) throws Exception {
+        Server server = new Server(0);
+        ServletContextHandler context = new ServletContextHandler();
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        holder.setInitParameters(options.initParameters);
+        holder.getRegistration().setMultipartConfig(new MultipartConfigElement(""));
+        context.addServlet(holder, PATH);
+        server.setHandler(context);
+        server.start();
+        return server;
+    }
+
+    private List<SimulatedClient> createClients(String target, LoadStats stats, List<SimulatedFile> all) {
+        byte[] pattern = SimulatedFile.pattern(options.chunkSize, options.seed);
+        List<SimulatedClient> clients = new ArrayList<>();
+        for (int c = 0; c < options.clients; c++) {
+            List<SimulatedFile> files = new ArrayList<>();
+            for (int f = 0; f < options.files; f++) {
+                files.add(new SimulatedFile("client-" + c + "-file-" + f + ".bin", options.fileSize, options.chunkSize,
+                        pattern, (long) c * options.files + f));
+            }
+            all.addAll(files);
+            clients.add(new SimulatedClient(options, target, files, stats, options.seed + c));
+        }
+        return clients;
+    }
+
+    private static void runClients(List<SimulatedClient> clients) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (final SimulatedClient client : clients) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.run();
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void printServerMetrics(UploadMetrics metrics) {
+        if (null == metrics) {
+            return;
+        }
+        out.println("server chunk store  p50 " + metrics.getChunkStoreTimeP50Micros() + " us, p99 "
+                + metrics.getChunkStoreTimeP99Micros() + " us, max " + metrics.getChunkStoreTimeMaxMicros() + " us");
+        out.println("server disk write   p50 " + metrics.getDiskWriteTimeP50Micros() + " us, p99 "
+                + metrics.getDiskWriteTimeP99Micros() + " us");
+        out.println("server errors       " + metrics.getChunkErrors() + " chunk errors, "
+                + metrics.getDuplicateChunks() + " duplicates, " + metrics.getRejectedRequests() + " rejected");
+    }
+
+    private boolean verify(List<SimulatedFile> files, Map<String, CompletedUpload> completed) throws IOException {
+        int failures = 0;
+        for (SimulatedFile file : files) {
+            String problem;
+            CompletedUpload upload = completed.get(file.identifier);
+            if (file.isFailed()) {
+                problem = "upload failed";
+            } else if (null == upload) {
+                problem = "not completed";
+            } else {
+                problem = file.verify(upload.file.toPath());
+            }
+            if (null != problem) {
+                out.println(file.name + ": " + problem);
+                failures++;
+            }
+        }
+        out.println(failures == 0 ? "verified " + files.size() + " files" : failures + " of " + files.size()
+                + " files failed verification");
+        return failures == 0;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException x) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.loadtest;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LoadTestOptions {
+
+    public final static String METHOD_MULTIPART = "multipart";
+    public final static String METHOD_OCTET     = "octet";
+
+    private final static String INIT_PREFIX = "init.";
+
+    public int                  clients             = 4;
+    public int                  files               = 4;
+    public long                 fileSize            = 32L << 20;
+    public int                  chunkSize           = 1 << 20;
+    public int                  simultaneousUploads = 3;
+    public boolean              testChunks          = true;
+    public String               method              = METHOD_MULTIPART;
+    public double               disconnectRate      = 0;
+    public long                 resumeDelay         = 200;
+    public long                 chunkRetryInterval  = 100;
+    public int                  maxChunkRetries     = 100;
+    public long                 completionTimeout   = 60000;
+    public long                 seed                = 1;
+    public String               uploadDirectory;
+    public boolean              keepFiles;
+    public Map<String, String>  initParameters      = new LinkedHashMap<>();
+
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("-") || separator < 0) {
+                throw new IllegalArgumentException("Expected -name=value, got " + arg);
+            }
+            String name = arg.substring(1, separator);
+            String value = arg.substring(separator + 1);
+            if (name.startsWith(INIT_PREFIX)) {
+                options.initParameters.put(name.substring(INIT_PREFIX.length()), value);
+                continue;
+            }
+            switch (name) {
+                case "clients":             options.clients = Integer.parseInt(value); break;
+                case "files":               options.files = Integer.parseInt(value); break;
+                case "fileSize":            options.fileSize = parseSize(value); break;
+                case "chunkSize":           options.chunkSize = (int) parseSize(value); break;
+                case "simultaneousUploads": options.simultaneousUploads = Integer.parseInt(value); break;
+                case "testChunks":          options.testChunks = Boolean.parseBoolean(value); break;
+                case "method":              options.method = value; break;
+                case "disconnectRate":      options.disconnectRate = Double.parseDouble(value); break;
+                case "resumeDelay":         options.resumeDelay = Long.parseLong(value); break;
+                case "chunkRetryInterval":  options.chunkRetryInterval = Long.parseLong(value); break;
+                case "maxChunkRetries":     options.maxChunkRetries = Integer.parseInt(value); break;
+                case "completionTimeout":   options.completionTimeout = Long.parseLong(value); break;
+                case "seed":                options.seed = Long.parseLong(value); break;
+                case "uploadDirectory":     options.uploadDirectory = value; break;
+                case "keepFiles":           options.keepFiles = Boolean.parseBoolean(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option -" + name);
+            }
+        }
+        if (!METHOD_MULTIPART.equals(options.method) && !METHOD_OCTET.equals(options.method)) {
+            throw new IllegalArgumentException("Unknown method " + options.method);
+        }
+        if (options.clients < 1 || options.files < 1 || options.simultaneousUploads < 1
+                || options.fileSize < 1 || options.chunkSize < 1) {
+            throw new IllegalArgumentException("Counts and sizes must be positive");
+        }
+        return options;
+    }
+
+    // Accepts plain byte counts as well as k, m and g suffixes
+    static long parseSize(String value) {
+        String size = value.trim().toLowerCase();
+        int shift = 0;
+        switch (size.charAt(size.length() - 1)) {
+            case 'k': shift = 10; break;
+            case 'm': shift = 20; break;
+            case 'g': shift = 30; break;
+            default:
+        }
+        if (shift > 0) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return Long.parseLong(size) << shift;
+    }
+
+    void print(PrintStream out) {
+        out.println("clients             " + clients);
+        out.println("files per client    " + files);
+        out.println("file size           " + fileSize);
+        out.println("chunk size          " + chunkSize);
+        out.println("simultaneousUploads " + simultaneousUploads);
+        out.println("testChunks          " + testChunks);
+        out.println("method              " + method);
+        out.println("disconnect rate     " + disconnectRate);
+        for (Map.Entry<String, String> parameter : initParameters.entrySet()) {
+            out.println("init " + parameter.getKey() + " = " + parameter.getValue());
+        }
+    }
+}
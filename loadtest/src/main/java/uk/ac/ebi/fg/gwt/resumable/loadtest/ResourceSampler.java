@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.loadtest;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Samples heap usage and open file descriptors of the JVM. Server and clients share the process, so
+// descriptors include the client sockets; the idle count after the run is what shows leaked channels.
+class ResourceSampler {
+
+    private final static long INTERVAL = 100;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "resource-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private long startHeap;
+    private long startDescriptors;
+    private volatile long peakHeap;
+    private volatile long peakDescriptors;
+
+    void start() {
+        System.gc();
+        startHeap = heap();
+        startDescriptors = descriptors();
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        executor.shutdownNow();
+        sample();
+    }
+
+    private void sample() {
+        peakHeap = Math.max(peakHeap, heap());
+        peakDescriptors = Math.max(peakDescriptors, descriptors());
+    }
+
+    private long heap() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // -1 where the platform does not report it
+    private long descriptors() {
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    void print(PrintStream out) {
+        System.gc();
+        out.printf("heap                %.1f MB before, %.1f MB peak, %.1f MB after (of %.1f MB max)%n",
+                startHeap / 1048576.0, peakHeap / 1048576.0, heap() / 1048576.0,
+                memory.getHeapMemoryUsage().getMax() / 1048576.0);
+        out.println("file descriptors    " + startDescriptors + " before, " + peakDescriptors + " peak, "
+                + descriptors() + " after");
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Talks to the servlet the way resumable.js does: up to simultaneousUploads chunk requests in flight,
+// always taking the first pending chunk of the first unfinished file, probing each chunk with a GET
+// first when testChunks is on and retrying anything that is neither a success nor a permanent error.
+//
+// A simulated disconnect drops the connection halfway through a chunk body. The file then resumes the
+// way it would after a page reload: it pauses for resumeDelay and starts over from its first chunk.
+class SimulatedClient {
+
+    private final static String BOUNDARY = "----ResumableLoadTestBoundary";
+    private final static int[] PERMANENT_ERRORS = {400, 404, 415, 500, 501};
+
+    private final LoadTestOptions options;
+    private final String target;
+    private final List<SimulatedFile> files;
+    private final LoadStats stats;
+    private final Random random;
+
+    SimulatedClient(LoadTestOptions options, String target, List<SimulatedFile> files, LoadStats stats, long seed) {
+        this.options = options;
+        this.target = target;
+        this.files = files;
+        this.stats = stats;
+        this.random = new Random(seed);
+    }
+
+    void run() throws InterruptedException {
+        Thread[] workers = new Thread[options.simultaneousUploads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work();
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void work() throws InterruptedException {
+        Request request;
+        while (null != (request = next())) {
+            upload(request);
+        }
+    }
+
+    private synchronized Request next() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wakeUp = Long.MAX_VALUE;
+            boolean finished = true;
+            for (SimulatedFile file : files) {
+                if (file.isFinished()) {
+                    continue;
+                }
+                finished = false;
+                if (now < file.resumeAt) {
+                    wakeUp = Math.min(wakeUp, file.resumeAt);
+                    continue;
+                }
+                for (int chunk = 0; chunk < file.totalChunks; chunk++) {
+                    if (file.state[chunk] != SimulatedFile.PENDING) {
+                        continue;
+                    }
+                    if (now < file.readyAt[chunk]) {
+                        wakeUp = Math.min(wakeUp, file.readyAt[chunk]);
+                        continue;
+                    }
+                    file.state[chunk] = SimulatedFile.UPLOADING;
+                    return new Request(file, chunk, !file.tested[chunk] && options.testChunks,
+                            random.nextDouble() < options.disconnectRate);
+                }
+            }
+            if (finished) {
+                return null;
+            }
+            // everything left is either uploading or waiting for a retry
+            wait(wakeUp == Long.MAX_VALUE ? 0 : Math.max(1, wakeUp - now));
+        }
+    }
+
+    private void upload(Request request) {
+        SimulatedFile file = request.file;
+        int chunk = request.chunk;
+        try {
+            if (request.test) {
+                stats.tests.incrementAndGet();
+                int status = test(file, chunk);
+                synchronized (this) {
+                    file.tested[chunk] = true;
+                }
+                if (status == HttpURLConnection.HTTP_OK) {
+                    stats.testHits.incrementAndGet();
+                    finish(file, chunk, SimulatedFile.DONE);
+                    return;
+                }
+            }
+            stats.posts.incrementAndGet();
+            long start = System.nanoTime();
+            if (request.disconnect) {
+                stats.bytesSent.addAndGet(file.chunkLength(chunk) / 2);
+                postAndDisconnect(file, chunk);
+                stats.disconnects.incrementAndGet();
+                interrupt(file, chunk);
+                return;
+            }
+            stats.bytesSent.addAndGet(file.chunkLength(chunk));
+            int status = post(file, chunk);
+            if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_CREATED) {
+                stats.recordLatency(System.nanoTime() - start);
+                stats.chunksStored.incrementAndGet();
+                finish(file, chunk, SimulatedFile.DONE);
+            } else if (isPermanent(status)) {
+                stats.failedChunks.incrementAndGet();
+                finish(file, chunk, SimulatedFile.FAILED);
+            } else {
+                if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    stats.rejected.incrementAndGet();
+                } else if (status == HttpURLConnection.HTTP_CONFLICT) {
+                    stats.conflicts.incrementAndGet();
+                }
+                retry(file, chunk);
+            }
+        } catch (IOException x) {
+            stats.ioErrors.incrementAndGet();
+            retry(file, chunk);
+        }
+    }
+
+    private synchronized void finish(SimulatedFile file, int chunk, int state) {
+        file.state[chunk] = state;
+        notifyAll();
+    }
+
+    private synchronized void retry(SimulatedFile file, int chunk) {
+        if (++file.retries[chunk] > options.maxChunkRetries) {
+            stats.failedChunks.incrementAndGet();
+            file.state[chunk] = SimulatedFile.FAILED;
+        } else {
+            stats.retries.incrementAndGet();
+            file.state[chunk] = SimulatedFile.PENDING;
+            file.readyAt[chunk] = System.currentTimeMillis() + options.chunkRetryInterval;
+        }
+        notifyAll();
+    }
+
+    // Like a reload, the file forgets which chunks it has sent. Chunks other workers are sending carry
+    // on, the rest go through testChunks again after the pause, or are sent again without it.
+    private synchronized void interrupt(SimulatedFile file, int chunk) {
+        file.state[chunk] = SimulatedFile.PENDING;
+        for (int i = 0; i < file.totalChunks; i++) {
+            if (file.state[i] == SimulatedFile.PENDING || file.state[i] == SimulatedFile.DONE) {
+                file.state[i] = SimulatedFile.PENDING;
+                file.tested[i] = false;
+            }
+        }
+        file.resumeAt = System.currentTimeMillis() + options.resumeDelay;
+        notifyAll();
+    }
+
+    private static boolean isPermanent(int status) {
+        for (int error : PERMANENT_ERRORS) {
+            if (error == status) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int test(SimulatedFile file, int chunk) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(target + "?" + query(file, chunk)).openConnection();
+        return complete(connection);
+    }
+
+    private int post(SimulatedFile file, int chunk) throws IOException {
+        HttpURLConnection connection = open(file, chunk);
+        try (OutputStream out = connection.getOutputStream()) {
+            writeBody(out, file, chunk, file.chunkLength(chunk));
+        }
+        return complete(connection);
+    }
+
+    private void postAndDisconnect(SimulatedFile file, int chunk) throws IOException {
+        HttpURLConnection connection = open(file, chunk);
+        try {
+            OutputStream out = connection.getOutputStream();
+            writeBody(out, file, chunk, file.chunkLength(chunk) / 2);
+            out.flush();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(SimulatedFile file, int chunk) throws IOException {
+        HttpURLConnection connection;
+        long length;
+        if (LoadTestOptions.METHOD_OCTET.equals(options.method)) {
+            connection = (HttpURLConnection) new URL(target + "?" + query(file, chunk)).openConnection();
+            connection.setRequestProperty("Content-Type", "binary/octet-stream");
+            length = file.chunkLength(chunk);
+        } else {
+            connection = (HttpURLConnection) new URL(target).openConnection();
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            length = multipartHead(file, chunk).length + file.chunkLength(chunk) + multipartTail().length;
+        }
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        return connection;
+    }
+
+    // Writes the first {@code length} bytes of the chunk and, if that is all of it, the rest of the body
+    private void writeBody(OutputStream out, SimulatedFile file, int chunk, int length) throws IOException {
+        boolean multipart = LoadTestOptions.METHOD_MULTIPART.equals(options.method);
+        if (multipart) {
+            out.write(multipartHead(file, chunk));
+        }
+        out.write(file.pattern(), file.patternOffset(chunk), length);
+        if (multipart && length == file.chunkLength(chunk)) {
+            out.write(multipartTail());
+        }
+    }
+
+    private static int complete(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (null != in) {
+            // drained so that the connection can be reused
+            try {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0) {
+                    // discarded
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    private static Map<String, String> parameters(SimulatedFile file, int chunk) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("resumableChunkNumber", String.valueOf(chunk + 1));
+        parameters.put("resumableChunkSize", String.valueOf(file.chunkSize));
+        parameters.put("resumableCurrentChunkSize", String.valueOf(file.chunkLength(chunk)));
+        parameters.put("resumableTotalSize", String.valueOf(file.size));
+        parameters.put("resumableType", "application/octet-stream");
+        parameters.put("resumableIdentifier", file.identifier);
+        parameters.put("resumableFilename", file.name);
+        parameters.put("resumableRelativePath", file.name);
+        parameters.put("resumableTotalChunks", String.valueOf(file.totalChunks));
+        return parameters;
+    }
+
+    private static String query(SimulatedFile file, int chunk) throws UnsupportedEncodingException {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters(file, chunk).entrySet()) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(parameter.getKey()).append('=').append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+        }
+        return query.toString();
+    }
+
+    private static byte[] multipartHead(SimulatedFile file, int chunk) {
+        StringBuilder head = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters(file, chunk).entrySet()) {
+            head.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(parameter.getKey()).append("\"\r\n\r\n")
+                    .append(parameter.getValue()).append("\r\n");
+        }
+        head.append("--").append(BOUNDARY).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"file\"; filename=\"blob\"\r\n")
+                .append("Content-Type: application/octet-stream\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] multipartTail() {
+        return ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Request {
+
+        final SimulatedFile file;
+        final int chunk;
+        final boolean test;
+        final boolean disconnect;
+
+        Request(SimulatedFile file, int chunk, boolean test, boolean disconnect) {
+            this.file = file;
+            this.chunk = chunk;
+            this.test = test;
+            this.disconnect = disconnect;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// One file of a simulated client, chunked the way resumable.js does it: the last chunk takes the
+// remainder, so it may be up to twice the chunk size. The content is a window into a shared random
+// pattern, starting at an offset derived from the file and chunk, so nothing has to be kept in memory
+// and a chunk written to the wrong place or the wrong file does not verify.
+class SimulatedFile {
+
+    final static int PENDING   = 0;
+    final static int UPLOADING = 1;
+    final static int DONE      = 2;
+    final static int FAILED    = 3;
+
+    private final static int PATTERN_WINDOWS = 65536;
+
+    final String name;
+    final String identifier;
+    final long size;
+    final int chunkSize;
+    final int totalChunks;
+
+    // guarded by the owning client
+    final int[] state;
+    final boolean[] tested;
+    final int[] retries;
+    final long[] readyAt;
+    long resumeAt;
+
+    private final byte[] pattern;
+    private final long key;
+
+    SimulatedFile(String name, long size, int chunkSize, byte[] pattern, long key) {
+        this.name = name;
+        this.identifier = size + "-" + name.replaceAll("[^0-9a-zA-Z_-]", "");
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.totalChunks = (int) Math.max(1, size / chunkSize);
+        this.state = new int[totalChunks];
+        this.tested = new boolean[totalChunks];
+        this.retries = new int[totalChunks];
+        this.readyAt = new long[totalChunks];
+        this.pattern = pattern;
+        this.key = key;
+    }
+
+    // The pattern every file content is cut from
+    static byte[] pattern(int chunkSize, long seed) {
+        byte[] pattern = new byte[2 * chunkSize + PATTERN_WINDOWS];
+        new Random(seed).nextBytes(pattern);
+        return pattern;
+    }
+
+    boolean isFinished() {
+        for (int s : state) {
+            if (s != DONE && s != FAILED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isFailed() {
+        for (int s : state) {
+            if (s == FAILED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // chunk numbers are zero based here and one based on the wire
+    long chunkStart(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    int chunkLength(int chunk) {
+        return chunk == totalChunks - 1 ? (int) (size - chunkStart(chunk)) : chunkSize;
+    }
+
+    byte[] pattern() {
+        return pattern;
+    }
+
+    int patternOffset(int chunk) {
+        long h = (key * 31 + chunk) * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 17) % PATTERN_WINDOWS);
+    }
+
+    // Compares the assembled file with the content that was sent, returns null if they match
+    String verify(Path file) throws IOException {
+        long length = Files.size(file);
+        if (length != size) {
+            return "size " + length + ", expected " + size;
+        }
+        byte[] buffer = new byte[2 * chunkSize];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int chunk = 0; chunk < totalChunks; chunk++) {
+                int chunkLength = chunkLength(chunk);
+                int read = 0;
+                while (read < chunkLength) {
+                    int r = in.read(buffer, read, chunkLength - read);
+                    if (r < 0) {
+                        return "unexpected end of file in chunk " + (chunk + 1);
+                    }
+                    read += r;
+                }
+                int offset = patternOffset(chunk);
+                for (int i = 0; i < chunkLength; i++) {
+                    if (buffer[i] != pattern[offset + i]) {
+                        return "content of chunk " + (chunk + 1) + " differs at byte " + (chunkStart(chunk) + i);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
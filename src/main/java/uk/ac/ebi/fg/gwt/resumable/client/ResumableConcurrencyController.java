@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.client;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.JsArray;
+
+// Tunes an uploader's simultaneousUploads while it runs, additive increase / multiplicative decrease: one
+// more chunk at a time for as long as that buys throughput, half as many as soon as chunks start failing.
+// Throughput is sampled from the uploader's progress once per interval.
+public class ResumableConcurrencyController implements ResumableCallback, ResumableFileCallback {
+
+    // a step up has to buy this much more throughput to be kept
+    private final static double MIN_GAIN = 0.05;
+    // intervals to stay put after stepping back from a step up that did not pay
+    private final static int HOLD_INTERVALS = 5;
+    private final static double SMOOTHING = 0.3;
+
+    private final ResumableUploader uploader;
+    private ResumableThroughputCallback callback;
+
+    private int minConcurrency = 1;
+    private int maxConcurrency = 16;
+    private int interval = 2000;
+
+    private boolean running;
+    private double intervalStart;
+    private double intervalBytes;
+    private boolean failed;
+    private double lastRate;
+    private boolean increased;
+    private int hold;
+    private double throughput;
+
+    public ResumableConcurrencyController(ResumableUploader uploader) {
+        this.uploader = uploader;
+        uploader.addCallback(this);
+        uploader.addFileCallback(this);
+    }
+
+    public void setMinConcurrency(int minConcurrency) {
+        this.minConcurrency = Math.max(1, minConcurrency);
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    // Milliseconds between decisions, long enough for several chunks to finish at the current concurrency
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    // Told the achieved throughput and the concurrency chosen for the next interval
+    public void setThroughputCallback(ResumableThroughputCallback callback) {
+        this.callback = callback;
+    }
+
+    public int getConcurrency() {
+        return uploader.getSimultaneousUploads();
+    }
+
+    // Bytes per second, smoothed over the last intervals
+    public double getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public void onUploadStart(ResumableUploader uploader) {
+        running = true;
+        increased = false;
+        hold = 0;
+        lastRate = 0;
+        setConcurrency(getConcurrency());
+        startInterval();
+    }
+
+    @Override
+    public void onComplete(ResumableUploader uploader) {
+        running = false;
+    }
+
+    @Override
+    public void onProgress(ResumableUploader uploader) {
+        if (!running) {
+            return;
+        }
+        double now = Duration.currentTimeMillis();
+        double elapsed = now - intervalStart;
+        if (elapsed < interval) {
+            return;
+        }
+        double rate = (uploader.getUploadedBytes() - intervalBytes) * 1000 / elapsed;
+        throughput = 0 == throughput ? rate : throughput + SMOOTHING * (rate - throughput);
+
+        int concurrency = getConcurrency();
+        if (failed) {
+            // already backed off when the failure came in
+            increased = false;
+        } else if (hold > 0) {
+            hold--;
+            increased = false;
+        } else if (increased && rate < lastRate * (1 + MIN_GAIN)) {
+            setConcurrency(concurrency - 1);
+            hold = HOLD_INTERVALS;
+            increased = false;
+        } else if (concurrency < maxConcurrency) {
+            setConcurrency(concurrency + 1);
+            increased = true;
+        }
+        lastRate = rate;
+        if (null != callback) {
+            callback.onThroughput(uploader, throughput, getConcurrency());
+        }
+        startInterval();
+    }
+
+    @Override
+    public void onError(ResumableUploader uploader, String message, ResumableFile file) {
+    }
+
+    @Override
+    public void onPause() {
+        running = false;
+    }
+
+    @Override
+    public void beforeCancel() {
+    }
+
+    @Override
+    public void onCancel() {
+        running = false;
+    }
+
+    @Override
+    public void onChunkingStart(ResumableFile file) {
+    }
+
+    @Override
+    public void onChunkingProgress(ResumableFile file, String ratio) {
+    }
+
+    @Override
+    public void onChunkingComplete(ResumableFile file) {
+    }
+
+    @Override
+    public void onFileAdded(ResumableUploader uploader, ResumableFile file) {
+    }
+
+    @Override
+    public void onFilesAdded(ResumableUploader uploader, JsArray<ResumableFile> files) {
+    }
+
+    @Override
+    public void onFileProgress(ResumableUploader uploader, ResumableFile file) {
+    }
+
+    @Override
+    public void onFileSuccess(ResumableUploader uploader, ResumableFile file) {
+    }
+
+    @Override
+    public void onFileRetry(ResumableUploader uploader, ResumableFile file) {
+        backOff();
+    }
+
+    @Override
+    public void onFileError(ResumableUploader uploader, ResumableFile file, String message) {
+        backOff();
+    }
+
+    // Once per interval, however many of the chunks in flight fail together
+    private void backOff() {
+        if (!running || failed) {
+            return;
+        }
+        failed = true;
+        setConcurrency(getConcurrency() / 2);
+    }
+
+    private void setConcurrency(int concurrency) {
+        uploader.setSimultaneousUploads(Math.max(minConcurrency, Math.min(maxConcurrency, concurrency)));
+    }
+
+    private void startInterval() {
+        intervalStart = Duration.currentTimeMillis();
+        intervalBytes = uploader.getUploadedBytes();
+        failed = false;
+    }
+}
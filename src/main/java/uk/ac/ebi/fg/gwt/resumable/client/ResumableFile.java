@@ -27,6 +27,15 @@ public class ResumableFile extends JavaScriptObject {
         return this.fileName;
     }-*/;
 
+    public final native String getUniqueIdentifier() /*-{
+        return this.uniqueIdentifier;
+    }-*/;
+
+    // Hex SHA-256 of the content when the uploader hashes files (see enableContentIdentifiers), else null
+    public final native String getContentDigest() /*-{
+        return this.file.contentDigest || null;
+    }-*/;
+
     public final long getSize() {
         String size = _getSize();
         return Long.parseLong(size);
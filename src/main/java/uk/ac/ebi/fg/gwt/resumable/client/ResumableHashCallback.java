@@ -0,0 +1,24 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.client;
+
+public interface ResumableHashCallback {
+    void onHashingProgress(ResumableUploader uploader, String fileName, double ratio);
+    // digest is null when the file could not be hashed and got resumable.js' own identifier
+    void onHashingComplete(ResumableUploader uploader, String fileName, String digest);
+}
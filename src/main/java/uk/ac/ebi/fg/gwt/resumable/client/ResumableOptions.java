@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+// Typed resumable.js options for ResumableUploader.newInstance; anything not set keeps its default
+public class ResumableOptions extends JavaScriptObject {
+
+    protected ResumableOptions() {}
+
+    public static native ResumableOptions create() /*-{
+        return {};
+    }-*/;
+
+    public final native ResumableOptions setChunkSize(int chunkSize) /*-{
+        this.chunkSize = chunkSize;
+        return this;
+    }-*/;
+
+    // Makes every chunk but the last exactly chunkSize, instead of folding the remainder into the last one;
+    // ResumableUploadServlet counts chunks the folding way and turns such uploads away
+    public final native ResumableOptions setForceChunkSize(boolean forceChunkSize) /*-{
+        this.forceChunkSize = forceChunkSize;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setSimultaneousUploads(int simultaneousUploads) /*-{
+        this.simultaneousUploads = simultaneousUploads;
+        return this;
+    }-*/;
+
+    // "multipart" or "octet"
+    public final native ResumableOptions setMethod(String method) /*-{
+        this.method = method;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setTestChunks(boolean testChunks) /*-{
+        this.testChunks = testChunks;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setPrioritizeFirstAndLastChunk(boolean prioritizeFirstAndLastChunk) /*-{
+        this.prioritizeFirstAndLastChunk = prioritizeFirstAndLastChunk;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setMaxChunkRetries(int maxChunkRetries) /*-{
+        this.maxChunkRetries = maxChunkRetries;
+        return this;
+    }-*/;
+
+    // Milliseconds
+    public final native ResumableOptions setChunkRetryInterval(int chunkRetryInterval) /*-{
+        this.chunkRetryInterval = chunkRetryInterval;
+        return this;
+    }-*/;
+
+    // Milliseconds, zero waits forever
+    public final native ResumableOptions setXhrTimeout(int xhrTimeout) /*-{
+        this.xhrTimeout = xhrTimeout;
+        return this;
+    }-*/;
+
+    // Statuses that fail a file rather than being retried
+    public final native ResumableOptions setPermanentErrors(int[] permanentErrors) /*-{
+        this.permanentErrors = [];
+        for (var i = 0; i < permanentErrors.length; i++) {
+            this.permanentErrors.push(permanentErrors[i]);
+        }
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setWithCredentials(boolean withCredentials) /*-{
+        this.withCredentials = withCredentials;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setParameterNamespace(String parameterNamespace) /*-{
+        this.parameterNamespace = parameterNamespace;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setFileParameterName(String fileParameterName) /*-{
+        this.fileParameterName = fileParameterName;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setMaxFiles(int maxFiles) /*-{
+        this.maxFiles = maxFiles;
+        return this;
+    }-*/;
+
+    public final native ResumableOptions setMaxFileSize(double maxFileSize) /*-{
+        this.maxFileSize = maxFileSize;
+        return this;
+    }-*/;
+
+    // Sent with every request
+    public final native ResumableOptions addHeader(String name, String value) /*-{
+        if (undefined === this.headers) {
+            this.headers = {};
+        }
+        this.headers[name] = value;
+        return this;
+    }-*/;
+
+    // Sent as a request parameter with every request
+    public final native ResumableOptions addQuery(String name, String value) /*-{
+        if (undefined === this.query) {
+            this.query = {};
+        }
+        this.query[name] = value;
+        return this;
+    }-*/;
+}
@@ -34,12 +34,33 @@ public class ResumableUploader extends JavaScriptObject {
         return createResumableJso(url, options.getJavaScriptObject());
     }
 
+    public static ResumableUploader newInstance(String url, ResumableOptions options) {
+        return createResumableJso(url, options);
+    }
+
     private static native ResumableUploader createResumableJso(String url, JavaScriptObject options) /*-{
         if (undefined !== $wnd.Resumable) {
             if (undefined == options) {
                 options = {};
             }
             options.target = url;
+            // the servlet answers 400 to parameters it cannot take and 507 to an upload that does not fit,
+            // which no retry is going to fix
+            if (undefined === options.permanentErrors) {
+                options.permanentErrors = [400, 404, 415, 500, 501, 507];
+            }
+            // names the upload in a header as well, which lets the servlet apply its per-upload limit
+            // before it reads a multipart body
+            var headers = options.headers;
+            options.headers = function(file, chunk) {
+                var custom = typeof headers === 'function' ? headers(file, chunk) : headers;
+                var all = {};
+                for (var k in custom) all[k] = custom[k];
+                if (file && file.uniqueIdentifier) {
+                    all['X-Resumable-Identifier'] = encodeURIComponent(file.uniqueIdentifier);
+                }
+                return all;
+            };
             return new $wnd.Resumable(options);
         } else {
             console.error('resumable.init: please ensure resumable.js is included');
@@ -70,6 +91,690 @@ public class ResumableUploader extends JavaScriptObject {
         }
     }-*/;
 
+    public final native void resumeUpload() /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.resumeUpload: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        var r = this;
+        var pending = r.files.length;
+        var done = function() {
+            if (0 == --pending) {
+                r.upload();
+            }
+        };
+        if (0 == pending) {
+            r.upload();
+            return;
+        }
+        for (var i = 0; i < r.files.length; i++) {(function(file) {
+            var xhr = @uk.ac.ebi.fg.gwt.resumable.client.ResumableUploader::openFileRequest(*)(r, file, {resumableManifest: true});
+            xhr.addEventListener('load', function() {
+                if (200 == xhr.status) {
+                    var manifest = $wnd.atob(xhr.responseText);
+                    for (var c = 0; c < file.chunks.length; c++) {
+                        var chunk = file.chunks[c];
+                        // the server already told us which chunks are missing, no need to test them one by one
+                        chunk.tested = true;
+                        if (manifest.charCodeAt(chunk.offset >> 3) & (1 << (chunk.offset & 7))) {
+                            chunk.xhr = {readyState: 4, status: 200, responseText: 'Uploaded.', abort: function() {}};
+                        }
+                    }
+                    if (file.chunks.length > 0 && file.isComplete()) {
+                        r.fire('fileSuccess', file, 'All finished.');
+                    }
+                }
+                done();
+            }, false);
+            xhr.addEventListener('error', done, false);
+            xhr.send(null);
+        })(r.files[i])}
+    }-*/;
+
+    // Sends the whole-file digest (hex, in the server's digest algorithm) before any chunk. If the server
+    // already has the content the file is complete after this one request and fileSuccess fires; otherwise
+    // the file uploads as usual. The callback is told either way.
+    public final native void checkDuplicate(ResumableFile file, String digest, ResumableDuplicateCallback callback) /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.checkDuplicate: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        var r = this;
+        var xhr = @uk.ac.ebi.fg.gwt.resumable.client.ResumableUploader::openFileRequest(*)(r, file,
+                {resumableDeduplicate: true, resumableFileDigest: digest});
+        var done = function(duplicate) {
+            callback.@uk.ac.ebi.fg.gwt.resumable.client.ResumableDuplicateCallback::onDuplicateChecked(*)(r, file, duplicate);
+        };
+        xhr.addEventListener('load', function() {
+            if (200 != xhr.status) {
+                done(false);
+                return;
+            }
+            for (var c = 0; c < file.chunks.length; c++) {
+                var chunk = file.chunks[c];
+                chunk.tested = true;
+                chunk.xhr = {readyState: 4, status: 200, responseText: xhr.responseText, abort: function() {}};
+            }
+            r.fire('fileSuccess', file, xhr.responseText);
+            done(true);
+        }, false);
+        xhr.addEventListener('error', function() {
+            done(false);
+        }, false);
+        xhr.send(null);
+    }-*/;
+
+    // Opens a request about one file with the parameters, custom query and headers resumable.js sends with
+    // its chunks, plus the given query; the caller adds listeners and sends it
+    private static native JavaScriptObject openFileRequest(ResumableUploader r, ResumableFile file,
+            JavaScriptObject extraQuery) /*-{
+        var query = {
+            resumableChunkSize: file.getOpt('chunkSize'),
+            resumableTotalSize: file.size,
+            resumableIdentifier: file.uniqueIdentifier,
+            resumableFilename: file.fileName,
+            resumableRelativePath: file.relativePath,
+            resumableTotalChunks: file.chunks.length
+        };
+        for (var k in extraQuery) query[k] = extraQuery[k];
+        var customQuery = r.getOpt('query');
+        if (typeof customQuery == 'function') customQuery = customQuery(file);
+        for (var k in customQuery) query[k] = customQuery[k];
+        var ns = r.getOpt('parameterNamespace');
+        var params = [];
+        for (var k in query) {
+            params.push([encodeURIComponent(ns + k), encodeURIComponent(query[k])].join('='));
+        }
+        var target = r.getOpt('target');
+        if (typeof target === 'function') {
+            target = target(params);
+        } else {
+            target += (target.indexOf('?') < 0 ? '?' : '&') + params.join('&');
+        }
+
+        var xhr = new XMLHttpRequest();
+        xhr.open(r.getOpt('testMethod'), target);
+        xhr.withCredentials = r.getOpt('withCredentials');
+        var customHeaders = r.getOpt('headers');
+        if (typeof customHeaders === 'function') customHeaders = customHeaders(file);
+        for (var k in customHeaders) xhr.setRequestHeader(k, customHeaders[k]);
+        return xhr;
+    }-*/;
+
+    public final native void enableBatching(int batchSize) /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.enableBatching: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        var r = this;
+        var batch = [];
+
+        var settle = function(chunk, status, message) {
+            chunk.xhr = {readyState: 4, status: status, responseText: message, abort: function() {}};
+            chunk.preprocessState = 2;
+            chunk.tested = true;
+            chunk.callback(200 == status ? 'success' : 'error', message);
+        };
+        var requeue = function(chunk) {
+            chunk.xhr = null;
+            chunk.preprocessState = 0;
+            chunk.retries++;
+            if (chunk.retries > r.getOpt('maxChunkRetries')) {
+                settle(chunk, 500, 'Too many retries.');
+            } else {
+                chunk.callback('retry');
+            }
+        };
+        var flush = function() {
+            var chunks = batch;
+            batch = [];
+            if (0 == chunks.length) {
+                return;
+            }
+            var ns = r.getOpt('parameterNamespace');
+            var data = new FormData();
+            data.append(ns + 'resumableBatch', chunks.length);
+            for (var i = 0; i < chunks.length; i++) {
+                var chunk = chunks[i];
+                var file = chunk.fileObj;
+                var query = {
+                    resumableChunkNumber: chunk.offset + 1,
+                    resumableChunkSize: chunk.getOpt('chunkSize'),
+                    resumableCurrentChunkSize: chunk.endByte - chunk.startByte,
+                    resumableTotalSize: chunk.fileObjSize,
+                    resumableType: chunk.fileObjType,
+                    resumableIdentifier: file.uniqueIdentifier,
+                    resumableFilename: file.fileName,
+                    resumableRelativePath: file.relativePath,
+                    resumableTotalChunks: file.chunks.length
+                };
+                for (var k in query) {
+                    data.append(ns + k + '.' + i, query[k]);
+                }
+                var slice = file.file.slice || file.file.mozSlice || file.file.webkitSlice;
+                data.append(ns + r.getOpt('fileParameterName') + '.' + i,
+                        slice.call(file.file, chunk.startByte, chunk.endByte), 'blob');
+            }
+
+            var xhr = new XMLHttpRequest();
+            var total = 0;
+            for (var i = 0; i < chunks.length; i++) {
+                chunks[i].xhr = xhr;
+                chunks[i].loaded = 0;
+                total += chunks[i].endByte - chunks[i].startByte;
+            }
+            xhr.upload.addEventListener('progress', function(e) {
+                // spread the request's progress over its chunks in order
+                var loaded = (e.loaded || 0) * total / (e.total || total);
+                for (var i = 0; i < chunks.length; i++) {
+                    var size = chunks[i].endByte - chunks[i].startByte;
+                    chunks[i].loaded = Math.min(loaded, size);
+                    loaded = Math.max(loaded - size, 0);
+                }
+                chunks[0].callback('progress');
+            }, false);
+            var failed = function() {
+                for (var i = 0; i < chunks.length; i++) {
+                    if (chunks[i].xhr === xhr) {
+                        requeue(chunks[i]);
+                    }
+                }
+                var retryInterval = r.getOpt('chunkRetryInterval');
+                window.setTimeout(function() {
+                    for (var i = 0; i < chunks.length; i++) {
+                        r.uploadNextChunk();
+                    }
+                }, undefined !== retryInterval ? retryInterval : 0);
+            };
+            xhr.addEventListener('load', function() {
+                if (200 != xhr.status) {
+                    failed();
+                    return;
+                }
+                var lines = xhr.responseText.split('\n');
+                for (var l = 0; l < lines.length; l++) {
+                    var match = /^(\d+) (\d+) (.*)$/.exec(lines[l]);
+                    var status = match ? parseInt(match[2]) : 0;
+                    // anything but a success or a permanent error is left for the requeue below,
+                    // as resumable.js does with a single chunk
+                    if (match && chunks[match[1]]
+                            && (200 == status || r.getOpt('permanentErrors').indexOf(status) >= 0)) {
+                        settle(chunks[match[1]], status, match[3]);
+                    }
+                }
+                for (var i = 0; i < chunks.length; i++) {
+                    if (chunks[i].xhr === xhr) {
+                        requeue(chunks[i]);
+                    }
+                    r.uploadNextChunk();
+                }
+            }, false);
+            xhr.addEventListener('error', failed, false);
+            xhr.addEventListener('timeout', failed, false);
+            xhr.addEventListener('abort', function() {
+                // paused, the chunks go back to the queue untouched
+                for (var i = 0; i < chunks.length; i++) {
+                    if (1 === chunks[i].preprocessState) {
+                        chunks[i].xhr = null;
+                        chunks[i].preprocessState = 0;
+                    }
+                }
+            }, false);
+            xhr.open(r.getOpt('uploadMethod'), r.getOpt('target'));
+            xhr.timeout = r.getOpt('xhrTimeout');
+            xhr.withCredentials = r.getOpt('withCredentials');
+            var customHeaders = r.getOpt('headers');
+            if (typeof customHeaders === 'function') customHeaders = customHeaders(chunks[0].fileObj, chunks[0]);
+            for (var k in customHeaders) xhr.setRequestHeader(k, customHeaders[k]);
+            xhr.send(data);
+        };
+
+        // resumable.js parks a chunk in preprocessing until preprocessFinished() is called, which lets
+        // the batch collect chunks instead of sending them one request at a time
+        r.opts.preprocess = function(chunk) {
+            batch.push(chunk);
+            if (batch.length >= batchSize || !r.uploadNextChunk()) {
+                flush();
+            }
+        };
+    }-*/;
+
+    public final void enableCompression() {
+        enableCompression("gzip");
+    }
+
+    // Compresses each chunk in the browser ("gzip" or "deflate") and sends it with a Content-Encoding the
+    // servlet decodes as it stores the chunk. Needs the octet method and a browser with CompressionStream,
+    // otherwise chunks go as they are; it takes the preprocess hook, so it does not mix with batching.
+    public final native void enableCompression(String encoding) /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.enableCompression: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        if ('octet' !== this.getOpt('method')) {
+            console.error('resumable.enableCompression: chunks can only be compressed with the octet method');
+            return;
+        }
+        if (typeof $wnd.CompressionStream === 'undefined' || typeof $wnd.Response === 'undefined') {
+            return;
+        }
+        var r = this;
+        // formats that will not get any smaller
+        var compressed = /\.(gz|tgz|bz2|xz|zst|zip|7z|bam|cram|jpe?g|png|gif|mp4|pdf)$/i;
+
+        var headers = r.opts.headers;
+        r.opts.headers = function(file, chunk) {
+            var custom = typeof headers === 'function' ? headers(file, chunk) : headers;
+            var all = {};
+            for (var k in custom) all[k] = custom[k];
+            if (chunk && chunk.contentEncoding) all['Content-Encoding'] = chunk.contentEncoding;
+            return all;
+        };
+
+        var send = function(chunk, body) {
+            var file = chunk.fileObj;
+            if (null != body) {
+                // resumable.js slices the chunk out of fileObj.file, so it is given one that slices to the
+                // compressed body for as long as the request is being set up
+                var shadow = Object.create(file);
+                shadow.file = {slice: function() { return body; }, type: file.file.type};
+                chunk.fileObj = shadow;
+                chunk.contentEncoding = encoding;
+            }
+            try {
+                chunk.preprocessFinished();
+            } finally {
+                chunk.fileObj = file;
+                chunk.contentEncoding = null;
+            }
+            if (null != body && chunk.xhr) {
+                // progress is counted in chunk bytes, not in compressed ones
+                var size = chunk.endByte - chunk.startByte;
+                chunk.xhr.upload.addEventListener('progress', function(e) {
+                    chunk.loaded = Math.min(size, (e.loaded || 0) * size / (body.size || 1));
+                }, false);
+            }
+            // a retry comes back through preprocess and compresses again, rather than the blob being
+            // kept for the chunk's lifetime
+            chunk.preprocessState = 0;
+        };
+
+        r.opts.preprocess = function(chunk) {
+            var file = chunk.fileObj;
+            if ((r.getOpt('testChunks') && !chunk.tested) || file.incompressible || compressed.test(file.fileName)) {
+                send(chunk, null);
+                return;
+            }
+            var slice = file.file.slice || file.file.mozSlice || file.file.webkitSlice;
+            var bytes = slice.call(file.file, chunk.startByte, chunk.endByte);
+            new $wnd.Response(bytes.stream().pipeThrough(new $wnd.CompressionStream(encoding))).blob().then(function(body) {
+                // a chunk that hardly shrinks goes as it is, and so does the rest of its file
+                if (body.size > bytes.size * 0.9) {
+                    file.incompressible = true;
+                    body = null;
+                }
+                send(chunk, body);
+            }, function() {
+                send(chunk, null);
+            });
+        };
+    }-*/;
+
+    // Lets the server decide each file's chunk size (see the servlet's adaptiveChunkSize): a file waits,
+    // paused, until the server has answered with the size an upload under way was started with or the
+    // size it recommends for this client, and is cut again if that differs. Chunk responses carry the
+    // recommendation too, which the uploader takes as its chunkSize for the files that come after.
+    // Call it before any file is added.
+    public final native void enableAdaptiveChunkSize() /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.enableAdaptiveChunkSize: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        var r = this;
+        var PENDING = 1, RECHUNKING = 2;
+        var uploading = false;
+        r.on('uploadStart', function() { uploading = true; });
+        r.on('complete', function() { uploading = false; });
+        r.on('pause', function() { uploading = false; });
+
+        var release = function(file) {
+            file.chunkSizeState = undefined;
+            file.pause(false);
+            if (uploading) {
+                r.upload();
+            }
+        };
+        r.on('chunkingStart', function(file) {
+            // a file keeps the chunks it is cut into, whatever the uploader's option says later
+            file.opts.chunkSize = r.getOpt('chunkSize');
+            file.chunkSizeState = PENDING;
+            file.pause(true);
+        });
+        r.on('chunkingComplete', function(file) {
+            if (RECHUNKING === file.chunkSizeState) {
+                release(file);
+                return;
+            }
+            if (PENDING !== file.chunkSizeState) {
+                return;
+            }
+            var xhr = @uk.ac.ebi.fg.gwt.resumable.client.ResumableUploader::openFileRequest(*)(r, file,
+                    {resumableChunkSizeAdvice: true});
+            xhr.addEventListener('load', function() {
+                var chunkSize = 200 == xhr.status ? parseInt(xhr.responseText, 10) : 0;
+                if (chunkSize > 0 && chunkSize != file.opts.chunkSize) {
+                    file.chunkSizeState = RECHUNKING;
+                    file.opts.chunkSize = chunkSize;
+                    file.bootstrap();
+                } else {
+                    release(file);
+                }
+            }, false);
+            xhr.addEventListener('error', function() {
+                release(file);
+            }, false);
+            xhr.send(null);
+        });
+        r.on('fileSuccess', function(file) {
+            for (var c = file.chunks.length - 1; c >= 0; c--) {
+                var chunkXhr = file.chunks[c].xhr;
+                var advice = chunkXhr && chunkXhr.getResponseHeader
+                        ? parseInt(chunkXhr.getResponseHeader('X-Resumable-Chunk-Size'), 10) : 0;
+                if (advice > 0) {
+                    r.opts.chunkSize = advice;
+                    return;
+                }
+            }
+        });
+    }-*/;
+
+    public final void enableContentIdentifiers(ResumableHashCallback callback) {
+        enableContentIdentifiers(4 * 1024 * 1024, callback);
+    }
+
+    // Identifies each file by the hex SHA-256 of its content as well as its size and name, so a file that
+    // changed since it was first sent starts a new upload instead of resuming the old one. The identifier also
+    // carries a random salt kept for the browser tab's session, so two users uploading the same content
+    // never write to one upload; the bare digest is left on the file (see ResumableFile.getContentDigest)
+    // for checkDuplicate. Files are hashed one at a time in a Web Worker, read sliceSize bytes at a time,
+    // and only show up in the uploader once hashed. Without Web Worker support, or if hashing fails, a file
+    // keeps the usual identifier. Call it before any file is added; callback may be null.
+    public final native void enableContentIdentifiers(int sliceSize, ResumableHashCallback callback) /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.enableContentIdentifiers: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        var r = this;
+        var fallback = function(file) {
+            var relativePath = file.webkitRelativePath || file.fileName || file.name;
+            return file.size + '-' + relativePath.replace(/[^0-9a-zA-Z_-]/img, '');
+        };
+        var salt = @uk.ac.ebi.fg.gwt.resumable.client.ResumableUploader::identifierSalt()();
+        if (typeof $wnd.Worker === 'undefined' || typeof $wnd.Blob === 'undefined' || typeof $wnd.URL === 'undefined') {
+            return;
+        }
+        var progress = function(file, ratio) {
+            if (null != callback) {
+                callback.@uk.ac.ebi.fg.gwt.resumable.client.ResumableHashCallback::onHashingProgress(*)(r, file.name, ratio);
+            }
+        };
+        var complete = function(file, digest) {
+            if (null != callback) {
+                callback.@uk.ac.ebi.fg.gwt.resumable.client.ResumableHashCallback::onHashingComplete(*)(r, file.name, digest);
+            }
+        };
+
+        var worker = null;
+        var pending = {};
+        var nextId = 0;
+        var settle = function(id, digest) {
+            var job = pending[id];
+            delete pending[id];
+            if (null != digest) {
+                job.file.contentDigest = digest;
+            }
+            complete(job.file, digest);
+            job.resolve(null != digest ? digest + '-' + salt + '-' + fallback(job.file) : fallback(job.file));
+        };
+        var start = function() {
+            var source = '(' + @uk.ac.ebi.fg.gwt.resumable.client.ResumableUploader::hashWorker() + ')();';
+            var url = $wnd.URL.createObjectURL(new $wnd.Blob([source], {type: 'application/javascript'}));
+            worker = new $wnd.Worker(url);
+            $wnd.URL.revokeObjectURL(url);
+            worker.onmessage = function(e) {
+                var message = e.data;
+                if (undefined !== message.loaded) {
+                    progress(pending[message.id].file, message.loaded / (pending[message.id].file.size || 1));
+                } else {
+                    settle(message.id, message.digest);
+                }
+            };
+            worker.onerror = function(e) {
+                // a worker that cannot run at all; every file waiting on it gets the usual identifier
+                e.preventDefault();
+                worker = null;
+                for (var id in pending) {
+                    settle(id, null);
+                }
+            };
+        };
+
+        r.opts.generateUniqueIdentifier = function(file) {
+            // resumable.js waits on anything with done() and fail()
+            var callbacks = [];
+            var identifier = null;
+            var deferred = {
+                done: function(f) {
+                    if (null != identifier) f(identifier); else callbacks.push(f);
+                    return deferred;
+                },
+                fail: function() {
+                    return deferred;
+                }
+            };
+            var id = nextId++;
+            pending[id] = {file: file, resolve: function(value) {
+                identifier = value;
+                for (var i = 0; i < callbacks.length; i++) callbacks[i](value);
+            }};
+            if (null == worker) {
+                start();
+            }
+            worker.postMessage({id: id, file: file, sliceSize: sliceSize});
+            return deferred;
+        };
+    }-*/;
+
+    // Random hex, the same for every uploader in the tab until the tab is closed so that uploads resume
+    // across page reloads
+    private static native String identifierSalt() /*-{
+        var key = 'resumable.identifierSalt';
+        var storage = null;
+        try {
+            storage = $wnd.sessionStorage || null;
+        } catch (e) {
+            // storage disabled by the browser's settings
+        }
+        var salt = null != storage ? storage.getItem(key) : null;
+        if (null == salt) {
+            var bytes = new Array(16);
+            var crypto = $wnd.crypto || $wnd.msCrypto;
+            if (crypto && crypto.getRandomValues) {
+                bytes = crypto.getRandomValues(new Uint8Array(16));
+            } else {
+                for (var i = 0; i < bytes.length; i++) bytes[i] = Math.floor(Math.random() * 256);
+            }
+            salt = '';
+            for (var j = 0; j < bytes.length; j++) salt += (bytes[j] < 16 ? '0' : '') + bytes[j].toString(16);
+            if (null != storage) {
+                try {
+                    storage.setItem(key, salt);
+                } catch (e) {
+                    // quota exceeded; the salt lasts for this page only
+                }
+            }
+        }
+        return salt;
+    }-*/;
+
+    // Runs in the worker, from its source text: one message per file, answered with progress as slices are
+    // read and then the hex digest, or a null one if the file cannot be read. Messages are handled in turn,
+    // so only one slice is in memory at a time.
+    private static native JavaScriptObject hashWorker() /*-{
+        return function() {
+            var K = [
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+            ];
+            var W = new Int32Array(64);
+            var H = new Int32Array(8);
+
+            var compress = function(bytes, off) {
+                var t;
+                for (t = 0; t < 16; t++, off += 4) {
+                    W[t] = (bytes[off] << 24) | (bytes[off + 1] << 16) | (bytes[off + 2] << 8) | bytes[off + 3];
+                }
+                for (t = 16; t < 64; t++) {
+                    var w15 = W[t - 15], w2 = W[t - 2];
+                    var s0 = ((w15 >>> 7) | (w15 << 25)) ^ ((w15 >>> 18) | (w15 << 14)) ^ (w15 >>> 3);
+                    var s1 = ((w2 >>> 17) | (w2 << 15)) ^ ((w2 >>> 19) | (w2 << 13)) ^ (w2 >>> 10);
+                    W[t] = (W[t - 16] + s0 + W[t - 7] + s1) | 0;
+                }
+                var a = H[0], b = H[1], c = H[2], d = H[3], e = H[4], f = H[5], g = H[6], h = H[7];
+                for (t = 0; t < 64; t++) {
+                    var S1 = ((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7));
+                    var t1 = (h + S1 + ((e & f) ^ (~e & g)) + K[t] + W[t]) | 0;
+                    var S0 = ((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10));
+                    var t2 = (S0 + ((a & b) ^ (a & c) ^ (b & c))) | 0;
+                    h = g; g = f; f = e; e = (d + t1) | 0;
+                    d = c; c = b; b = a; a = (t1 + t2) | 0;
+                }
+                H[0] += a; H[1] += b; H[2] += c; H[3] += d;
+                H[4] += e; H[5] += f; H[6] += g; H[7] += h;
+            };
+
+            var hash = function(id, file, sliceSize) {
+                H.set([0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19]);
+                var reader = new FileReaderSync();
+                // the bytes of a block split across two slices
+                var block = new Uint8Array(64);
+                var blockLength = 0;
+                for (var start = 0; start < file.size; start += sliceSize) {
+                    var bytes = new Uint8Array(reader.readAsArrayBuffer(file.slice(start, start + sliceSize)));
+                    var off = 0;
+                    if (blockLength > 0) {
+                        off = Math.min(64 - blockLength, bytes.length);
+                        block.set(bytes.subarray(0, off), blockLength);
+                        blockLength += off;
+                        if (64 == blockLength) {
+                            compress(block, 0);
+                            blockLength = 0;
+                        }
+                    }
+                    for (; off + 64 <= bytes.length; off += 64) {
+                        compress(bytes, off);
+                    }
+                    block.set(bytes.subarray(off), blockLength);
+                    blockLength += bytes.length - off;
+                    self.postMessage({id: id, loaded: Math.min(start + sliceSize, file.size)});
+                }
+
+                block[blockLength++] = 0x80;
+                if (blockLength > 56) {
+                    block.fill(0, blockLength);
+                    compress(block, 0);
+                    blockLength = 0;
+                }
+                block.fill(0, blockLength);
+                // the length in bits, big-endian in the last eight bytes
+                var high = Math.floor(file.size / 0x20000000), low = (file.size % 0x20000000) * 8;
+                block[56] = high >>> 24; block[57] = high >>> 16; block[58] = high >>> 8; block[59] = high;
+                block[60] = low >>> 24; block[61] = low >>> 16; block[62] = low >>> 8; block[63] = low;
+                compress(block, 0);
+
+                var hex = '';
+                for (var i = 0; i < 8; i++) {
+                    hex += ('0000000' + (H[i] >>> 0).toString(16)).slice(-8);
+                }
+                return hex;
+            };
+
+            self.onmessage = function(e) {
+                var digest = null;
+                try {
+                    digest = hash(e.data.id, e.data.file, e.data.sliceSize);
+                } catch (error) {
+                    // unreadable, the file keeps the usual identifier
+                }
+                self.postMessage({id: e.data.id, digest: digest});
+            };
+        };
+    }-*/;
+
+    // Changes how many chunks are sent at once while an upload is under way: more start straight away when
+    // it goes up, and when it goes down no new chunk starts until enough of those in flight are done
+    public final native void setSimultaneousUploads(int simultaneousUploads) /*-{
+        if (undefined === this.upload) {
+            console.error('resumable.setSimultaneousUploads: please obtain an instance through ResumableUpload.newInstance');
+            return;
+        }
+        var r = this;
+        var inFlight = function() {
+            var count = 0;
+            for (var i = 0; i < r.files.length; i++) {
+                var chunks = r.files[i].chunks;
+                for (var c = 0; c < chunks.length; c++) {
+                    var chunk = chunks[c];
+                    // what chunk.status() calls uploading, without its side effects
+                    if (chunk.pendingRetry || 1 === chunk.preprocessState || (chunk.xhr && chunk.xhr.readyState < 4)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        };
+        if (undefined === r.concurrencyLimited) {
+            // resumable.js only reads simultaneousUploads when an upload starts; every finished chunk asks
+            // for the next one, which is where the current limit is held
+            var uploadNextChunk = r.uploadNextChunk;
+            r.uploadNextChunk = function() {
+                if (inFlight() >= r.getOpt('simultaneousUploads')) {
+                    return false;
+                }
+                return uploadNextChunk.apply(r, arguments);
+            };
+            r.concurrencyLimited = true;
+        }
+        var previous = r.getOpt('simultaneousUploads');
+        r.opts.simultaneousUploads = Math.max(1, simultaneousUploads);
+        if (r.isUploading()) {
+            for (var i = previous; i < r.opts.simultaneousUploads; i++) {
+                if (!r.uploadNextChunk()) {
+                    break;
+                }
+            }
+        }
+    }-*/;
+
+    public final native int getSimultaneousUploads() /*-{
+        return this.getOpt('simultaneousUploads');
+    }-*/;
+
+    // Bytes of all files acknowledged or on the wire, the numerator of progress()
+    public final native double getUploadedBytes() /*-{
+        var bytes = 0;
+        for (var i = 0; i < this.files.length; i++) {
+            bytes += this.files[i].progress() * this.files[i].size;
+        }
+        return bytes;
+    }-*/;
+
     public final native void pause() /*-{
         if (undefined !== this.pause) {
             this.pause();
@@ -169,6 +874,12 @@ public class ResumableUploader extends JavaScriptObject {
             this.on('fileSuccess', function(file) {
                 callback.@uk.ac.ebi.fg.gwt.resumable.client.ResumableFileCallback::onFileSuccess(*)(this, file);
             });
+            this.on('fileRetry', function(file) {
+                callback.@uk.ac.ebi.fg.gwt.resumable.client.ResumableFileCallback::onFileRetry(*)(this, file);
+            });
+            this.on('fileError', function(file, message) {
+                callback.@uk.ac.ebi.fg.gwt.resumable.client.ResumableFileCallback::onFileError(*)(this, file, message);
+            });
         } else {
             console.error('resumable.on: please obtain an instance through ResumableUpload.newInstance');
         }
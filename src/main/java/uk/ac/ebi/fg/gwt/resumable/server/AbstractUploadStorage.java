@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// What the storages have in common however they keep uploads: chunk claims and checksums, the buffers
+// chunks are read through, metrics, the completion pipeline and the housekeeping thread
+public abstract class AbstractUploadStorage implements ConfigurableUploadStorage, Closeable {
+
+    final static long HOUSEKEEPING_INTERVAL = 10000L;
+    // how long completed uploads are remembered, for requests that come in late
+    final static long FINISHED_RETENTION = 60000L;
+
+    final BufferPool buffers = new BufferPool();
+
+    private volatile long uploadIdleTimeout = 0;
+    private volatile String digestAlgorithm;
+
+    private volatile CompletionPipeline completions = new CompletionPipeline();
+    private volatile UploadMetrics metrics = new UploadMetrics();
+
+    private final ThreadLocal<ChunkChecksum> checksums = new ThreadLocal<>();
+
+    private final ScheduledExecutorService housekeeper = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("upload-storage-housekeeper"));
+
+    AbstractUploadStorage() {
+        metrics.storages.add(this);
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    housekeeping();
+                } catch (IOException | RuntimeException x) {
+                    // will be retried on the next run
+                }
+            }
+        }, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void configure(ServletConfig config) throws ServletException {
+        String digestAlgorithm = config.getInitParameter(ResumableUploadServlet.INIT_DIGEST_ALGORITHM);
+        if (null != digestAlgorithm) {
+            setDigestAlgorithm(digestAlgorithm);
+        }
+    }
+
+    // Unfinished uploads idle for longer than this are discarded with whatever has been kept of them;
+    // zero keeps them forever
+    public void setUploadIdleTimeout(long uploadIdleTimeout) {
+        this.uploadIdleTimeout = uploadIdleTimeout;
+    }
+
+    public long getUploadIdleTimeout() {
+        return uploadIdleTimeout;
+    }
+
+    // With an algorithm set, chunks are checked against the client's resumableChunkChecksum as they are
+    // stored and the whole-file digest is taken; null turns checksums off
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        if (null != digestAlgorithm) {
+            ChunkChecksum.newDigest(digestAlgorithm);
+        }
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    // Replaces the default pipeline, e.g. to change its pool or queue size; listeners are not carried over
+    public void setCompletionPipeline(CompletionPipeline completions) {
+        CompletionPipeline previous = this.completions;
+        this.completions = completions;
+        previous.shutdown();
+    }
+
+    public CompletionPipeline getCompletionPipeline() {
+        return completions;
+    }
+
+    @Override
+    public void addCompletionListener(UploadCompletionListener listener) {
+        completions.addListener(listener);
+    }
+
+    @Override
+    public void removeCompletionListener(UploadCompletionListener listener) {
+        completions.removeListener(listener);
+    }
+
+    public void setMetrics(UploadMetrics metrics) {
+        this.metrics.storages.remove(this);
+        metrics.storages.add(this);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    public abstract int getLiveUploads();
+
+    // Space promised to uploads that has not been written yet
+    public long getReservedBytes() {
+        return 0;
+    }
+
+    @Override
+    public void storeChunk(FileChunkInfo info, InputStream stream, long length) throws IOException {
+        BufferPool.PooledBuffer buffer = buffers.acquire();
+        try {
+            storeChunk(info, stream, length, buffer);
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    @Override
+    public void storeChunks(List<ChunkUpload> batch) {
+        BufferPool.PooledBuffer buffer = buffers.acquire();
+        try {
+            for (ChunkUpload chunk : batch) {
+                try {
+                    storeChunk(chunk.info, chunk.stream, chunk.length, buffer);
+                    chunk.complete = hasAllChunks(chunk.info);
+                } catch (IOException | RuntimeException x) {
+                    chunk.failure = x;
+                }
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    abstract void storeChunk(FileChunkInfo info, InputStream stream, long length, BufferPool.PooledBuffer buffer)
+            throws IOException;
+
+    // Runs every HOUSEKEEPING_INTERVAL until the storage is closed
+    abstract void housekeeping() throws IOException;
+
+    // Returns false if the chunk has already been stored, throws if another request is storing it
+    boolean claimChunk(ChunkBitmap stored, ChunkBitmap inFlight, FileChunkInfo info) throws IOException {
+        if (claim(stored, inFlight, info.chunkNumber)) {
+            return true;
+        }
+        metrics.duplicateChunks.increment();
+        if (stored.get(info.chunkNumber)) {
+            return false;
+        }
+        throw new ChunkInFlightException("Chunk " + info.chunkNumber + " of " + info.id + " is being stored");
+    }
+
+    // A chunk is set in stored before it is released from inFlight, so a claim that wins after a release
+    // always sees it as stored
+    static boolean claim(ChunkBitmap stored, ChunkBitmap inFlight, int chunkNumber) {
+        if (stored.get(chunkNumber) || !inFlight.set(chunkNumber)) {
+            return false;
+        }
+        if (stored.get(chunkNumber)) {
+            inFlight.clear(chunkNumber);
+            return false;
+        }
+        return true;
+    }
+
+    // The thread's checksum, ready for a chunk; null if the upload has no digest algorithm
+    ChunkChecksum startChecksum(String digestAlgorithm, MessageDigest fileDigest) {
+        if (null == digestAlgorithm) {
+            return null;
+        }
+        ChunkChecksum checksum = checksums.get();
+        if (null == checksum || !checksum.getAlgorithm().equals(digestAlgorithm)) {
+            checksum = new ChunkChecksum(digestAlgorithm);
+            checksums.set(checksum);
+        }
+        return checksum.reset(fileDigest);
+    }
+
+    // Counts the upload as completed and hands it to the listeners, if there are any; file is null for
+    // uploads that were not assembled here
+    void recordCompletion(FileChunkInfo info, File file, String digest, long createdAt) {
+        UploadMetrics metrics = this.metrics;
+        metrics.uploadsCompleted.increment();
+        metrics.completionLatency.record(System.nanoTime() - createdAt);
+
+        CompletionPipeline completions = this.completions;
+        if (!completions.hasListeners()) {
+            return;
+        }
+        CompletedUpload upload = new CompletedUpload();
+        upload.id = info.id;
+        upload.fileName = info.fileName;
+        upload.relativePath = info.relativePath;
+        upload.file = file;
+        upload.fileSize = info.fileSize;
+        upload.digest = digest;
+        upload.completedAt = System.currentTimeMillis();
+        if (!completions.submit(upload)) {
+            metrics.completionsDropped.increment();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        metrics.storages.remove(this);
+        housekeeper.shutdownNow();
+        completions.shutdown();
+    }
+}
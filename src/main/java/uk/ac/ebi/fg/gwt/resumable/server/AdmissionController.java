@@ -0,0 +1,253 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides before a chunk's body is read whether the server has room for it. Limits of zero are off.
+public class AdmissionController {
+
+    private final static int DEFAULT_RETRY_AFTER = 1;
+    // how often buckets of clients that have gone quiet are dropped
+    private final static long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private volatile int maxInFlight;
+    private volatile int maxInFlightPerUpload;
+    private volatile int maxInFlightPerClient;
+    private volatile long maxBytesPerSecond;
+    private volatile long maxClientBytesPerSecond;
+
+    // guarded by this
+    private int inFlight;
+    private int peakInFlight;
+    private final Map<String, Integer> uploadsInFlight = new HashMap<>();
+    private final Map<String, Integer> clientsInFlight = new HashMap<>();
+    private final Map<String, TokenBucket> clientBandwidth = new HashMap<>();
+    private TokenBucket bandwidth;
+    private long sweptAt = System.nanoTime();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedInFlight = new AtomicLong();
+    private final AtomicLong rejectedPerUpload = new AtomicLong();
+    private final AtomicLong rejectedPerClient = new AtomicLong();
+    private final AtomicLong rejectedBandwidth = new AtomicLong();
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setMaxInFlightPerUpload(int maxInFlightPerUpload) {
+        this.maxInFlightPerUpload = maxInFlightPerUpload;
+    }
+
+    public void setMaxInFlightPerClient(int maxInFlightPerClient) {
+        this.maxInFlightPerClient = maxInFlightPerClient;
+    }
+
+    public synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.bandwidth = maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond) : null;
+    }
+
+    public synchronized void setMaxClientBytesPerSecond(long maxClientBytesPerSecond) {
+        this.maxClientBytesPerSecond = maxClientBytesPerSecond;
+        clientBandwidth.clear();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getPeakInFlight() {
+        return peakInFlight;
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected() {
+        return rejectedInFlight.get() + rejectedPerUpload.get() + rejectedPerClient.get() + rejectedBandwidth.get();
+    }
+
+    public long getRejectedInFlight() {
+        return rejectedInFlight.get();
+    }
+
+    public long getRejectedPerUpload() {
+        return rejectedPerUpload.get();
+    }
+
+    public long getRejectedPerClient() {
+        return rejectedPerClient.get();
+    }
+
+    public long getRejectedBandwidth() {
+        return rejectedBandwidth.get();
+    }
+
+    // Checks the global and per-client limits; the upload is not always known yet at this point,
+    // see Permit.attach
+    public synchronized Permit admit(String client, long bytes) throws OverloadedException {
+        if (maxInFlight > 0 && inFlight >= maxInFlight) {
+            rejectedInFlight.incrementAndGet();
+            throw new OverloadedException("Too many uploads in progress", DEFAULT_RETRY_AFTER);
+        }
+        if (maxInFlightPerClient > 0 && count(clientsInFlight, client) >= maxInFlightPerClient) {
+            rejectedPerClient.incrementAndGet();
+            throw new OverloadedException("Too many uploads in progress from " + client, DEFAULT_RETRY_AFTER);
+        }
+        if (bytes > 0) {
+            TokenBucket clientBucket = null;
+            if (maxClientBytesPerSecond > 0) {
+                sweepClientBandwidth();
+                clientBucket = clientBandwidth.get(client);
+                if (null == clientBucket) {
+                    clientBucket = new TokenBucket(maxClientBytesPerSecond);
+                    clientBandwidth.put(client, clientBucket);
+                }
+            }
+            // both limits are checked before either is charged, so a request turned away costs nothing
+            throttle(clientBucket, bytes);
+            throttle(bandwidth, bytes);
+            if (null != clientBucket) {
+                clientBucket.take(bytes);
+            }
+            if (null != bandwidth) {
+                bandwidth.take(bytes);
+            }
+        }
+
+        inFlight++;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+        increment(clientsInFlight, client);
+        admitted.incrementAndGet();
+        return new Permit(client);
+    }
+
+    private void throttle(TokenBucket bucket, long bytes) throws OverloadedException {
+        long wait = null == bucket ? 0 : bucket.available(bytes);
+        if (wait > 0) {
+            rejectedBandwidth.incrementAndGet();
+            throw new OverloadedException("Upload bandwidth exceeded",
+                    (int) Math.max(DEFAULT_RETRY_AFTER, TimeUnit.NANOSECONDS.toSeconds(wait + 999999999L)));
+        }
+    }
+
+    private synchronized void attach(Permit permit, String uploadId) throws OverloadedException {
+        if (null != permit.uploadId) {
+            return;
+        }
+        if (maxInFlightPerUpload > 0 && count(uploadsInFlight, uploadId) >= maxInFlightPerUpload) {
+            rejectedPerUpload.incrementAndGet();
+            throw new OverloadedException("Too many chunks of " + uploadId + " in progress", DEFAULT_RETRY_AFTER);
+        }
+        increment(uploadsInFlight, uploadId);
+        permit.uploadId = uploadId;
+    }
+
+    private synchronized void release(Permit permit) {
+        inFlight--;
+        decrement(clientsInFlight, permit.client);
+        if (null != permit.uploadId) {
+            decrement(uploadsInFlight, permit.uploadId);
+        }
+    }
+
+    // A bucket that has filled up again is no different from a new one, so clients with nothing in
+    // flight and a full bucket are forgotten
+    private void sweepClientBandwidth() {
+        long now = System.nanoTime();
+        if (now - sweptAt < SWEEP_INTERVAL) {
+            return;
+        }
+        sweptAt = now;
+        Iterator<Map.Entry<String, TokenBucket>> i = clientBandwidth.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, TokenBucket> entry = i.next();
+            if (!clientsInFlight.containsKey(entry.getKey()) && entry.getValue().isFull()) {
+                i.remove();
+            }
+        }
+    }
+
+    // Clients with a bandwidth bucket
+    public synchronized int getTrackedClients() {
+        return clientBandwidth.size();
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return null == count ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        counts.put(key, count(counts, key) + 1);
+    }
+
+    private static int decrement(Map<String, Integer> counts, String key) {
+        int count = count(counts, key) - 1;
+        if (count > 0) {
+            counts.put(key, count);
+        } else {
+            counts.remove(key);
+        }
+        return count;
+    }
+
+    public class Permit {
+
+        private final String client;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private String uploadId;
+
+        private Permit(String client) {
+            this.client = client;
+        }
+
+        // Applies the per-upload limit once the request's upload identifier is known; a permit counts
+        // against the first upload it is attached to only. The permit is released if the limit is exceeded.
+        public void attach(String uploadId) throws OverloadedException {
+            try {
+                AdmissionController.this.attach(this, uploadId);
+            } catch (OverloadedException x) {
+                release();
+                throw x;
+            }
+        }
+
+        // null until attached
+        public String getUploadId() {
+            synchronized (AdmissionController.this) {
+                return uploadId;
+            }
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                AdmissionController.this.release(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+// How the file of an upload gets its disk space
+public enum AllocationMode {
+
+    // The file grows as chunks are written to it, leaving holes where chunks have not arrived yet
+    SPARSE,
+
+    // The file is given its full length when the first chunk is posted, and the space it still needs is
+    // counted against what the volume has free, so an upload that does not fit is refused straight away
+    // rather than halfway through. This is a reservation, not an allocation: nothing is written ahead of
+    // the chunks, the file stays sparse, and its blocks are laid out as the chunks arrive, just as they are
+    // with SPARSE, so it does nothing about fragmentation.
+    PREALLOCATE
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AsyncChunkUpload implements ReadListener, AsyncListener {
+
+    private final static int MAX_PENDING_WRITES = 4;
+
+    private final AsyncContext context;
+    private final FileChunkInfo info;
+    private final ChunkWriter writer;
+    private final UploadStorage storage;
+    private final Executor ioExecutor;
+    private final BufferPool buffers;
+    private final AdmissionController.Permit permit;
+
+    private final ServletInputStream input;
+
+    // one extra count is held by the reading side until the whole body has been read
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicBoolean readingDone = new AtomicBoolean();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private volatile Throwable failure;
+    private volatile String invalidMessage;
+
+    private long received;
+    private boolean paused;
+
+    AsyncChunkUpload(AsyncContext context, FileChunkInfo info, ChunkWriter writer, UploadStorage storage,
+                     Executor ioExecutor, BufferPool buffers, AdmissionController.Permit permit) throws IOException {
+        this.context = context;
+        this.info = info;
+        this.writer = writer;
+        this.storage = storage;
+        this.ioExecutor = ioExecutor;
+        this.buffers = buffers;
+        this.permit = permit;
+        this.input = context.getRequest().getInputStream();
+    }
+
+    void start(long timeout) {
+        context.setTimeout(timeout);
+        context.addListener(this);
+        input.setReadListener(this);
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        synchronized (this) {
+            if (received != info.currentChunkSize) {
+                invalidMessage = ResumableUploadServlet.RESPONSE_INVALID_REQUEST;
+            }
+        }
+        finishReading();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        fail(t);
+        finishReading();
+    }
+
+    private synchronized void drain() throws IOException {
+        while (!paused && null == failure && null == invalidMessage && input.isReady()) {
+            if (pending.get() > MAX_PENDING_WRITES) {
+                // resumed by the I/O executor once the disk has caught up
+                paused = true;
+                return;
+            }
+            final BufferPool.PooledBuffer buffer = buffers.acquire();
+            int r = input.read(buffer.array);
+            if (r < 0) {
+                buffers.release(buffer);
+                return;
+            }
+            if (received + r > info.currentChunkSize) {
+                buffers.release(buffer);
+                invalidMessage = ResumableUploadServlet.RESPONSE_INVALID_REQUEST;
+                finishReading();
+                return;
+            }
+            buffer.direct.clear();
+            buffer.direct.put(buffer.array, 0, r);
+            buffer.direct.flip();
+
+            final long offset = received;
+            received += r;
+            pending.incrementAndGet();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (null == failure) {
+                            writer.write(buffer.direct, offset);
+                        }
+                    } catch (IOException x) {
+                        fail(x);
+                    } finally {
+                        buffers.release(buffer);
+                        writeDone();
+                    }
+                }
+            });
+        }
+    }
+
+    private void writeDone() {
+        if (0 == pending.decrementAndGet()) {
+            finish();
+            return;
+        }
+        boolean resume;
+        synchronized (this) {
+            resume = paused;
+            paused = false;
+        }
+        if (resume) {
+            try {
+                drain();
+            } catch (IOException x) {
+                fail(x);
+                finishReading();
+            }
+        }
+    }
+
+    private void finishReading() {
+        if (readingDone.compareAndSet(false, true) && 0 == pending.decrementAndGet()) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            });
+        }
+    }
+
+    private void finish() {
+        permit.release();
+        try {
+            if (null != failure || null != invalidMessage) {
+                writer.abort();
+                if (null != invalidMessage) {
+                    sendError(HttpServletResponse.SC_BAD_REQUEST, invalidMessage);
+                } else if (failure instanceof OverloadedException) {
+                    sendOverloaded((OverloadedException) failure);
+                } else {
+                    sendError(failure.getMessage());
+                }
+            } else {
+                writer.commit();
+                respond(storage.hasAllChunks(info) ?
+                        ResumableUploadServlet.RESPONSE_ALL_FINISHED : ResumableUploadServlet.RESPONSE_UPLOADED);
+            }
+        } catch (ChecksumMismatchException x) {
+            sendError(HttpServletResponse.SC_CONFLICT, x.getMessage());
+        } catch (OverloadedException x) {
+            sendOverloaded(x);
+        } catch (IOException x) {
+            sendError(x.getMessage());
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            ioExecutor.execute(task);
+        } catch (RejectedExecutionException x) {
+            fail(x);
+            task.run();
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (null == failure) {
+            failure = t;
+        }
+    }
+
+    private void respond(String message) throws IOException {
+        if (completed.get()) {
+            return;
+        }
+        final byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        final ServletOutputStream output = context.getResponse().getOutputStream();
+        output.setWriteListener(new WriteListener() {
+
+            private boolean written;
+
+            @Override
+            public void onWritePossible() throws IOException {
+                if (!written) {
+                    written = true;
+                    output.write(body);
+                }
+                if (output.isReady()) {
+                    complete();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                complete();
+            }
+        });
+    }
+
+    private void sendError(String message) {
+        sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, message);
+    }
+
+    private void sendOverloaded(OverloadedException x) {
+        if (!completed.get()) {
+            ((HttpServletResponse) context.getResponse()).setHeader("Retry-After", String.valueOf(x.getRetryAfter()));
+        }
+        sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, x.getMessage());
+    }
+
+    private void sendError(int status, String message) {
+        if (completed.get()) {
+            return;
+        }
+        try {
+            ((HttpServletResponse) context.getResponse()).sendError(status, message);
+        } catch (IOException | IllegalStateException x) {
+            // the client has gone away
+        }
+        complete();
+    }
+
+    private void complete() {
+        if (completed.compareAndSet(false, true)) {
+            context.complete();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        permit.release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        fail(new IOException("Timed out reading chunk " + info.chunkNumber + " of " + info.id));
+        completed.set(true);
+        finishReading();
+        event.getAsyncContext().complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        fail(event.getThrowable());
+        completed.set(true);
+        finishReading();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BufferPool {
+
+    final static int DEFAULT_BUFFER_SIZE = 65536;
+    final static int DEFAULT_MAX_POOLED = 64;
+
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<PooledBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    PooledBuffer acquire() {
+        PooledBuffer buffer = pool.poll();
+        if (null == buffer) {
+            return new PooledBuffer(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    void release(PooledBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffer.direct.clear();
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    static class PooledBuffer {
+
+        final byte[] array;
+        final ByteBuffer direct;
+
+        // time spent by the last transfer waiting on the stream and on the channel
+        long readNanos;
+        long writeNanos;
+
+        private PooledBuffer(int size) {
+            this.array = new byte[size];
+            this.direct = ByteBuffer.allocateDirect(size);
+        }
+
+        // Streams the next {@code length} bytes of the stream into the channel starting at the given
+        // position, returns the number of bytes written (less than length if the stream ended early).
+        // FileChannel.transferFrom gains nothing from a stream, it copies through a buffer of its own,
+        // so the pooled buffers are used for every chunk.
+        long transfer(InputStream stream, FileChannel channel, long position, long length, ChunkChecksum checksum)
+                throws IOException {
+            readNanos = 0;
+            writeNanos = 0;
+            long written = 0;
+            while (written < length) {
+                long start = System.nanoTime();
+                int r = stream.read(array, 0, (int) Math.min(array.length, length - written));
+                long read = System.nanoTime();
+                readNanos += read - start;
+                if (r < 0) {
+                    break;
+                }
+                if (null != checksum) {
+                    checksum.update(array, 0, r);
+                }
+                direct.clear();
+                direct.put(array, 0, r);
+                direct.flip();
+                while (direct.hasRemaining()) {
+                    written += channel.write(direct, position + written);
+                }
+                writeNanos += System.nanoTime() - read;
+            }
+            return written;
+        }
+
+        // Feeds bytes already written to the channel through the checksum
+        void readBack(FileChannel channel, long position, long length, ChunkChecksum checksum) throws IOException {
+            long read = 0;
+            while (read < length) {
+                direct.clear();
+                direct.limit((int) Math.min(direct.capacity(), length - read));
+                int r = channel.read(direct, position + read);
+                if (r < 0) {
+                    throw new IOException("Unexpected end of file at " + (position + read));
+                }
+                direct.flip();
+                direct.get(array, 0, r);
+                checksum.update(array, 0, r);
+                read += r;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class ChunkBitmap {
+
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality = new AtomicInteger();
+
+    ChunkBitmap(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int cardinality() {
+        return cardinality.get();
+    }
+
+    boolean isFull() {
+        return cardinality.get() >= size;
+    }
+
+    boolean get(int chunkNumber) {
+        int bit = chunkNumber - 1;
+        return bit >= 0 && bit < size && 0 != (words.get(bit >>> 6) & (1L << bit));
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (words.get(i >>> 3) >>> ((i & 7) << 3));
+        }
+        return bytes;
+    }
+
+    // Returns true if the chunk was not set before
+    boolean set(int chunkNumber) {
+        int bit = chunkNumber - 1;
+        if (bit < 0 || bit >= size) {
+            return false;
+        }
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        long word;
+        do {
+            word = words.get(index);
+            if (0 != (word & mask)) {
+                return false;
+            }
+        } while (!words.compareAndSet(index, word, word | mask));
+        cardinality.incrementAndGet();
+        return true;
+    }
+
+    // Returns true if the chunk was set before
+    boolean clear(int chunkNumber) {
+        int bit = chunkNumber - 1;
+        if (bit < 0 || bit >= size) {
+            return false;
+        }
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        long word;
+        do {
+            word = words.get(index);
+            if (0 == (word & mask)) {
+                return false;
+            }
+        } while (!words.compareAndSet(index, word, word & ~mask));
+        cardinality.decrementAndGet();
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+// Per-chunk CRC32 and cryptographic digest, updated as the chunk bytes stream past
+class ChunkChecksum {
+
+    final static String CRC32 = "crc32";
+
+    private final String algorithm;
+    private final CRC32 crc = new CRC32();
+    private final MessageDigest chunkDigest;
+
+    private MessageDigest fileDigest;
+    private byte[] digest;
+
+    ChunkChecksum(String algorithm) {
+        this.algorithm = algorithm;
+        this.chunkDigest = newDigest(algorithm);
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalArgumentException("Unsupported digest algorithm " + algorithm, x);
+        }
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    int getRecordSize() {
+        return 4 + chunkDigest.getDigestLength();
+    }
+
+    // fileDigest is also updated when this chunk is the next one in line for the whole-file digest
+    ChunkChecksum reset(MessageDigest fileDigest) {
+        crc.reset();
+        chunkDigest.reset();
+        this.fileDigest = fileDigest;
+        this.digest = null;
+        return this;
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        crc.update(bytes, offset, length);
+        chunkDigest.update(bytes, offset, length);
+        if (null != fileDigest) {
+            fileDigest.update(bytes, offset, length);
+        }
+    }
+
+    void update(ByteBuffer bytes) {
+        crc.update(bytes.duplicate());
+        chunkDigest.update(bytes.duplicate());
+        if (null != fileDigest) {
+            fileDigest.update(bytes.duplicate());
+        }
+    }
+
+    // Expected value is "<algorithm>:<hex>", where algorithm is crc32 or the configured digest algorithm
+    void verify(String expected) throws ChecksumMismatchException {
+        if (null == expected || expected.isEmpty()) {
+            return;
+        }
+        int separator = expected.indexOf(':');
+        String expectedAlgorithm = separator < 0 ? algorithm : expected.substring(0, separator);
+        String expectedValue = expected.substring(separator + 1).trim();
+        String actual;
+        if (CRC32.equalsIgnoreCase(expectedAlgorithm)) {
+            actual = String.format("%08x", crc.getValue());
+        } else if (algorithm.equalsIgnoreCase(expectedAlgorithm)) {
+            actual = toHex(getDigest());
+        } else {
+            throw new ChecksumMismatchException("Unsupported checksum algorithm " + expectedAlgorithm);
+        }
+        if (!actual.equalsIgnoreCase(expectedValue)) {
+            throw new ChecksumMismatchException("Chunk " + expectedAlgorithm + " is " + actual
+                    + ", expected " + expectedValue);
+        }
+    }
+
+    ByteBuffer getRecord() {
+        ByteBuffer record = ByteBuffer.allocate(getRecordSize());
+        record.putInt((int) crc.getValue());
+        record.put(getDigest());
+        record.flip();
+        return record;
+    }
+
+    private byte[] getDigest() {
+        if (null == digest) {
+            digest = chunkDigest.digest();
+        }
+        return digest;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
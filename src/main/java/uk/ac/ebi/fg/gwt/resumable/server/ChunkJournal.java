@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Memory-mapped chunk bitmap; layout is magic, chunk size, file size, identifier length,
+// identifier bytes, then one bit per chunk
+class ChunkJournal {
+
+    private final static int MAGIC = 0x524a4e31;
+    private final static int HEADER_SIZE = 20;
+
+    private final MappedByteBuffer map;
+    private final int bitmapOffset;
+    private final int chunkCount;
+
+    private ChunkJournal(MappedByteBuffer map, int bitmapOffset, int chunkCount) {
+        this.map = map;
+        this.bitmapOffset = bitmapOffset;
+        this.chunkCount = chunkCount;
+    }
+
+    // Opens the journal for the upload, starting a new one if the file on disk belongs to a different upload
+    static ChunkJournal open(File file, FileChunkInfo info) throws IOException {
+        byte[] id = info.id.getBytes(StandardCharsets.UTF_8);
+        // as many chunks as the storage counts, the last one taking up the rest of the file
+        int chunkCount = info.getTotalChunks();
+        int bitmapOffset = HEADER_SIZE + id.length;
+        int size = bitmapOffset + (chunkCount + 7) / 8;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean matches = channel.size() == size;
+            if (!matches) {
+                channel.truncate(0);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (matches) {
+                byte[] journalId = new byte[id.length];
+                map.position(HEADER_SIZE);
+                map.get(journalId);
+                matches = MAGIC == map.getInt(0) && info.chunkSize == map.getInt(4)
+                        && info.fileSize == map.getLong(8) && id.length == map.getInt(16)
+                        && Arrays.equals(id, journalId);
+            }
+            if (!matches) {
+                for (int i = 0; i < size; i++) {
+                    map.put(i, (byte) 0);
+                }
+                map.putInt(4, info.chunkSize);
+                map.putLong(8, info.fileSize);
+                map.putInt(16, id.length);
+                map.position(HEADER_SIZE);
+                map.put(id);
+                // written last so that a torn header never validates
+                map.putInt(0, MAGIC);
+            }
+            return new ChunkJournal(map, bitmapOffset, chunkCount);
+        }
+    }
+
+    // Chunk size recorded in the journal if it belongs to the upload, 0 otherwise
+    static int readChunkSize(File file, FileChunkInfo info) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        byte[] id = info.id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + id.length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // reads the header and identifier
+            }
+        }
+        if (header.hasRemaining()) {
+            return 0;
+        }
+        byte[] journalId = new byte[id.length];
+        header.position(HEADER_SIZE);
+        header.get(journalId);
+        boolean matches = MAGIC == header.getInt(0) && info.fileSize == header.getLong(8)
+                && id.length == header.getInt(16) && Arrays.equals(id, journalId);
+        return matches ? header.getInt(4) : 0;
+    }
+
+    int chunkCount() {
+        return chunkCount;
+    }
+
+    synchronized boolean get(int chunkNumber) {
+        int bit = chunkNumber - 1;
+        return bit >= 0 && bit < chunkCount && 0 != (map.get(bitmapOffset + bit / 8) & (1 << (bit % 8)));
+    }
+
+    synchronized void set(int chunkNumber) {
+        int bit = chunkNumber - 1;
+        if (bit >= 0 && bit < chunkCount) {
+            int index = bitmapOffset + bit / 8;
+            map.put(index, (byte) (map.get(index) | (1 << (bit % 8))));
+        }
+    }
+
+    void force() {
+        map.force();
+    }
+}
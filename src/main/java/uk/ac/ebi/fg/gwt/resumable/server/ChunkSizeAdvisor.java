@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Recommends a chunk size per client from the throughput and failure rate of its recent chunk requests:
+// as much as one request moves in the target time, less on a link where requests fail, since a failed
+// chunk is sent again in full. Sizes are powers of two, so that small swings in throughput do not change
+// the advice from one file to the next.
+public class ChunkSizeAdvisor {
+
+    public final static int DEFAULT_MIN_CHUNK_SIZE = 256 << 10;
+    public final static int DEFAULT_MAX_CHUNK_SIZE = 64 << 20;
+    public final static long DEFAULT_TARGET_CHUNK_TIME = 3000L;
+
+    private final static int MAX_CLIENTS = 10000;
+    private final static int MIN_SAMPLES = 3;
+    private final static double THROUGHPUT_WEIGHT = 0.2;
+    private final static double FAILURE_WEIGHT = 0.1;
+    // a failure rate of 10% halves the advice
+    private final static double FAILURE_PENALTY = 10.0;
+
+    private volatile int minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+    private volatile int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private volatile long targetChunkTime = DEFAULT_TARGET_CHUNK_TIME;
+
+    // guarded by itself, least recently seen clients are dropped first
+    private final Map<String, ClientStats> clients = new LinkedHashMap<String, ClientStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ClientStats> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    public void setMinChunkSize(int minChunkSize) {
+        this.minChunkSize = minChunkSize;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    // How long one chunk request should take, in milliseconds
+    public void setTargetChunkTime(long targetChunkTime) {
+        this.targetChunkTime = targetChunkTime;
+    }
+
+    public long getTargetChunkTime() {
+        return targetChunkTime;
+    }
+
+    // A request that carried chunk bytes, whether they were stored or not
+    public void record(String client, long bytes, long nanos, boolean stored) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double throughput = bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        synchronized (clients) {
+            ClientStats stats = clients.get(client);
+            if (null == stats) {
+                stats = new ClientStats();
+                clients.put(client, stats);
+            }
+            stats.record(throughput, stored);
+        }
+    }
+
+    // Recommended chunk size in bytes, or 0 while too little is known about the client
+    public int advise(String client) {
+        double throughput;
+        double failureRate;
+        synchronized (clients) {
+            ClientStats stats = clients.get(client);
+            if (null == stats || stats.samples < MIN_SAMPLES) {
+                return 0;
+            }
+            throughput = stats.throughput;
+            failureRate = stats.failureRate;
+        }
+        double size = throughput * targetChunkTime / 1000.0 / (1.0 + failureRate * FAILURE_PENALTY);
+        int min = minChunkSize;
+        int max = Math.max(min, maxChunkSize);
+        if (size <= min) {
+            return min;
+        }
+        if (size >= max) {
+            return max;
+        }
+        return Math.max(min, Integer.highestOneBit((int) size));
+    }
+
+    public int getClientCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    // Exponentially weighted, the first successful request sets the throughput outright
+    private static class ClientStats {
+
+        int samples;
+        double throughput;
+        double failureRate;
+
+        void record(double requestThroughput, boolean stored) {
+            failureRate += FAILURE_WEIGHT * ((stored ? 0.0 : 1.0) - failureRate);
+            // a failed request says little about how fast the link is
+            if (stored) {
+                throughput = 0 == samples ? requestThroughput
+                        : throughput + THROUGHPUT_WEIGHT * (requestThroughput - throughput);
+                samples++;
+            }
+        }
+    }
+}
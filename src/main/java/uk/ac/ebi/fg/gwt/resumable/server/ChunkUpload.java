@@ -0,0 +1,37 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.InputStream;
+
+public class ChunkUpload {
+
+    public FileChunkInfo    info;
+    public InputStream      stream;
+    public long             length;
+
+    // set by the storage
+    public boolean          complete;
+    public Exception        failure;
+
+    public ChunkUpload(FileChunkInfo info, InputStream stream, long length) {
+        this.info = info;
+        this.stream = stream;
+        this.length = length;
+    }
+}
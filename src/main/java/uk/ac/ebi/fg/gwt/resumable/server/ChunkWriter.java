@@ -0,0 +1,31 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ChunkWriter {
+
+    // Writes the remaining bytes of the buffer at the given offset relative to the start of the chunk,
+    // may be called concurrently for non-overlapping ranges
+    void write(ByteBuffer data, long offset) throws IOException;
+
+    void commit() throws IOException;
+    void abort() throws IOException;
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
+
+// For nodes behind a load balancer without sticky sessions, all with the same upload directory on a
+// shared file system. Any node takes any chunk, writes it into the shared partial file and records it in
+// the shared state once it is synced; a node that finds every chunk recorded claims the finalization
+// there, and only the node that gets the claim renames the file and notifies its completion listeners.
+// Other nodes see the upload complete once they next look at it.
+//
+// A chunk only counts as stored once it is synced, since other nodes act on the shared state as soon as
+// it is recorded there: durability defaults to GROUP_COMMIT, and NONE is refused.
+public class ClusteredUploadStorageImpl extends SimpleUploadStorageImpl {
+
+    private final static String STATE_DIRECTORY = ".cluster";
+    private final static long FINALIZATION_LEASE = 300000L;
+    private final static long COMPLETED_RETENTION = 3600000L;
+
+    private final SharedUploadState state;
+    private final String nodeId;
+
+    // Keeps the shared state in marker files under the upload directory
+    public ClusteredUploadStorageImpl(String uploadDirectory) throws IOException {
+        this(uploadDirectory, null, null);
+    }
+
+    public ClusteredUploadStorageImpl(String uploadDirectory, SharedUploadState state) throws IOException {
+        this(uploadDirectory, state, null);
+    }
+
+    public ClusteredUploadStorageImpl(String uploadDirectory, SharedUploadState state, String nodeId)
+            throws IOException {
+        super(uploadDirectory);
+        this.state = null != state ? state
+                : new DirectorySharedUploadState(new File(getUploadDirectory(), STATE_DIRECTORY));
+        // host name and process id
+        this.nodeId = null != nodeId ? nodeId : ManagementFactory.getRuntimeMXBean().getName();
+        super.setDurability(DurabilityMode.GROUP_COMMIT);
+    }
+
+    public SharedUploadState getSharedState() {
+        return state;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void setDurability(DurabilityMode durability) {
+        if (DurabilityMode.NONE == durability) {
+            throw new IllegalArgumentException("Uploads shared by several nodes need their chunks synced");
+        }
+        super.setDurability(durability);
+    }
+
+    // Every node would promise itself the space of the whole file, for chunks most of which others store
+    @Override
+    public void setAllocationMode(AllocationMode allocationMode) {
+        if (AllocationMode.PREALLOCATE == allocationMode) {
+            throw new IllegalArgumentException("Uploads shared by several nodes cannot be preallocated");
+        }
+        super.setAllocationMode(allocationMode);
+    }
+
+    @Override
+    public ReapReport reap() throws IOException {
+        ReapReport report = super.reap();
+        long now = System.currentTimeMillis();
+        long idleTimeout = getUploadIdleTimeout();
+        state.purge(now - COMPLETED_RETENTION, idleTimeout > 0 ? now - idleTimeout : 0);
+        return report;
+    }
+
+    @Override
+    protected void storageInfoCreated(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        BitSet chunks = state.getChunks(info.id);
+        for (int chunkNumber = chunks.nextSetBit(1); chunkNumber > 0; chunkNumber = chunks.nextSetBit(chunkNumber + 1)) {
+            if (storageInfo.isValidChunk(chunkNumber)) {
+                storageInfo.addChunk(chunkNumber);
+            }
+        }
+    }
+
+    @Override
+    protected void chunkWritten(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        state.addChunk(info.id, info.chunkNumber);
+    }
+
+    // Looks chunks up in order and stops at the first one nobody has stored, so the cost of following an
+    // upload is spread over its chunks rather than paid in full every time
+    @Override
+    protected boolean refreshChunks(FileStorageInfo storageInfo) throws IOException {
+        String uploadId = storageInfo.info.id;
+        boolean changed = false;
+        for (int chunkNumber = 1; chunkNumber <= storageInfo.chunks.size(); chunkNumber++) {
+            if (!storageInfo.hasChunk(chunkNumber)) {
+                if (!state.hasChunk(uploadId, chunkNumber)) {
+                    break;
+                }
+                storageInfo.addChunk(chunkNumber);
+                changed = true;
+            }
+        }
+        if (storageInfo.chunks.isFull() && !storageInfo.hasAllChunks() && state.isComplete(uploadId)) {
+            changed |= storageInfo.completedElsewhere();
+        }
+        return changed;
+    }
+
+    @Override
+    protected boolean claimFinalization(FileStorageInfo storageInfo) throws IOException {
+        return state.claimFinalization(storageInfo.info.id, nodeId, FINALIZATION_LEASE);
+    }
+
+    @Override
+    protected void finalizationFailed(FileStorageInfo storageInfo) throws IOException {
+        state.releaseFinalization(storageInfo.info.id, nodeId);
+    }
+
+    @Override
+    protected void uploadCompleted(FileStorageInfo storageInfo) throws IOException {
+        state.markComplete(storageInfo.info.id);
+    }
+
+    // Other nodes hold on to an upload for the idle timeout after they last recorded anything for it; with
+    // no idle timeout there is no such lease, and an upload evicted here to make room is discarded
+    @Override
+    protected boolean isActiveElsewhere(FileStorageInfo storageInfo) throws IOException {
+        long idleTimeout = getUploadIdleTimeout();
+        return idleTimeout > 0
+                && System.currentTimeMillis() - state.getLastActivity(storageInfo.info.id) < idleTimeout;
+    }
+}
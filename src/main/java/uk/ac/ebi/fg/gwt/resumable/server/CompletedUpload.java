@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+
+public class CompletedUpload {
+
+    public String       id;
+    public String       fileName;
+    public String       relativePath;
+    // null when the upload was streamed to an UploadSink
+    public File         file;
+    public long         fileSize;
+    public String       digest;
+    public long         completedAt;
+
+    @Override
+    public String toString() {
+        return "CompletedUpload{" +
+                "id='" + id + '\'' +
+                ", fileName='" + fileName + '\'' +
+                ", file=" + file +
+                ", fileSize=" + fileSize +
+                '}';
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Runs the completion listeners, in the order they were added, on a bounded pool off the request thread.
+// When the queue is full an upload is dropped from the pipeline, logged and counted in the storage's
+// metrics, rather than having the completing request run the listeners and hold up its response.
+public class CompletionPipeline {
+
+    private final static Logger LOGGER = Logger.getLogger(CompletionPipeline.class.getName());
+
+    public final static int DEFAULT_THREADS = 2;
+    public final static int DEFAULT_QUEUE_DEPTH = 1024;
+
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private final Stage queue = new Stage("queue", null);
+    private final ThreadPoolExecutor executor;
+
+    public CompletionPipeline() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_DEPTH);
+    }
+
+    public CompletionPipeline(int threads, int queueDepth) {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth), new DaemonThreadFactory("upload-completion"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void addListener(UploadCompletionListener listener) {
+        String name = listener.getClass().getSimpleName();
+        stages.add(new Stage(name.isEmpty() ? listener.getClass().getName() : name, listener));
+    }
+
+    public void removeListener(UploadCompletionListener listener) {
+        for (Stage stage : stages) {
+            if (stage.listener == listener) {
+                stages.remove(stage);
+            }
+        }
+    }
+
+    public boolean hasListeners() {
+        return !stages.isEmpty();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    // The first entry is the time uploads spent waiting in the queue, then one per listener
+    public List<CompletionStageStats> getStageStats() {
+        List<CompletionStageStats> stats = new ArrayList<>(stages.size() + 1);
+        stats.add(queue.getStats());
+        for (Stage stage : stages) {
+            stats.add(stage.getStats());
+        }
+        return stats;
+    }
+
+    // Returns false if the upload was dropped for a full queue
+    boolean submit(final CompletedUpload upload) {
+        if (stages.isEmpty() || executor.isShutdown()) {
+            return true;
+        }
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queue.record(System.nanoTime() - queued, false);
+                    for (Stage stage : stages) {
+                        if (!stage.run(upload)) {
+                            break;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException x) {
+            if (executor.isShutdown()) {
+                return true;
+            }
+            LOGGER.warning("Completion queue is full, dropped " + upload);
+            return false;
+        }
+        return true;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class Stage {
+
+        final String name;
+        final UploadCompletionListener listener;
+
+        final AtomicLong invocations = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        Stage(String name, UploadCompletionListener listener) {
+            this.name = name;
+            this.listener = listener;
+        }
+
+        // A failing stage stops the remaining ones for that upload, as they usually depend on it
+        boolean run(CompletedUpload upload) {
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                listener.uploadCompleted(upload);
+            } catch (Exception x) {
+                failed = true;
+                LOGGER.log(Level.WARNING, "Completion stage " + name + " failed for " + upload, x);
+            }
+            record(System.nanoTime() - start, failed);
+            return !failed;
+        }
+
+        void record(long nanos, boolean failed) {
+            invocations.incrementAndGet();
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        CompletionStageStats getStats() {
+            CompletionStageStats stats = new CompletionStageStats();
+            stats.stage = name;
+            stats.invocations = invocations.get();
+            stats.failures = failures.get();
+            stats.totalNanos = totalNanos.get();
+            stats.maxNanos = maxNanos.get();
+            return stats;
+        }
+    }
+}
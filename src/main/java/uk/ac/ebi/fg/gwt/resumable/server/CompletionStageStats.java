@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+public class CompletionStageStats {
+
+    public String       stage;
+    public long         invocations;
+    public long         failures;
+    public long         totalNanos;
+    public long         maxNanos;
+
+    public long getAverageNanos() {
+        return 0 == invocations ? 0 : totalNanos / invocations;
+    }
+
+    @Override
+    public String toString() {
+        return stage + ": " + invocations + " runs, " + failures + " failed, avg "
+                + getAverageNanos() / 1000 + " us, max " + maxNanos / 1000 + " us";
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Undoes the Content-Encoding of a chunk body as it is read, so compressed chunks stream into storage
+// without being inflated into memory first
+class ContentDecoding {
+
+    private final static int INFLATE_BUFFER_SIZE = 65536;
+
+    static boolean isEncoded(String encoding) {
+        return null != encoding && !encoding.trim().isEmpty() && !"identity".equalsIgnoreCase(encoding.trim());
+    }
+
+    static boolean isSupported(String encoding) {
+        if (!isEncoded(encoding)) {
+            return true;
+        }
+        String name = encoding.trim().toLowerCase();
+        return "gzip".equals(name) || "x-gzip".equals(name) || "deflate".equals(name);
+    }
+
+    // The decoded body has to be exactly the expected length, which also bounds how much a small
+    // compressed body may inflate to
+    static InputStream decode(String encoding, InputStream body, long expectedLength) throws IOException {
+        if (!isEncoded(encoding)) {
+            return body;
+        }
+        return new ExactLengthStream(decode(encoding, body), expectedLength);
+    }
+
+    static InputStream decode(String encoding, InputStream body) throws IOException {
+        if (!isEncoded(encoding)) {
+            return body;
+        }
+        String name = encoding.trim().toLowerCase();
+        if ("gzip".equals(name) || "x-gzip".equals(name)) {
+            return new GZIPInputStream(body, INFLATE_BUFFER_SIZE);
+        } else if ("deflate".equals(name)) {
+            return inflate(body);
+        }
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+
+    // "deflate" is meant to be zlib wrapped, but some clients send a raw deflate stream
+    private static InputStream inflate(InputStream body) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(body, INFLATE_BUFFER_SIZE);
+        buffered.mark(2);
+        int cmf = buffered.read();
+        int flg = buffered.read();
+        buffered.reset();
+        boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(buffered, new Inflater(!zlib), INFLATE_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    // Counts the bytes read through it, for the compression ratio in the metrics
+    static class CountingStream extends FilterInputStream {
+
+        long count;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = in.read(b, off, len);
+            if (r > 0) {
+                count += r;
+            }
+            return r;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static class ExactLengthStream extends InputStream {
+
+        private final InputStream in;
+        private final long expectedLength;
+        private long remaining;
+
+        ExactLengthStream(InputStream in, long expectedLength) {
+            this.in = in;
+            this.expectedLength = expectedLength;
+            this.remaining = expectedLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            if (0 == remaining) {
+                checkEnd();
+                return -1;
+            }
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r < 0) {
+                throw new IOException("Decoded chunk is shorter than " + expectedLength + " bytes");
+            }
+            remaining -= r;
+            // the body has to end right here, checked before the last bytes are handed out
+            if (0 == remaining) {
+                checkEnd();
+            }
+            return r;
+        }
+
+        private void checkEnd() throws IOException {
+            if (in.read() >= 0) {
+                throw new IOException("Decoded chunk is longer than " + expectedLength + " bytes");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+// Keeps a content-addressed index of completed files, hard links under .blobs/<algorithm>/ in the upload
+// directory named by the whole-file digest, so that a client which sends the digest of a file before
+// uploading it gets a link to the stored copy instead. Files completed through chunks are linked to the
+// stored copy too when their content turns out to be there already.
+//
+// Completed files share their inode with the index, so they must not be modified in place. Anyone who
+// knows a digest can obtain the content behind it, so use this where uploaders may see each other's files.
+// On file systems without hard links nothing is indexed.
+public class DeduplicatingUploadStorageImpl extends SimpleUploadStorageImpl {
+
+    public final static String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+
+    private final static String BLOBS_DIRECTORY = ".blobs";
+    private final static Pattern HEX_DIGEST = Pattern.compile("[0-9a-f]{16,128}");
+
+    public DeduplicatingUploadStorageImpl() {
+        this(null);
+    }
+
+    public DeduplicatingUploadStorageImpl(String uploadDirectory) {
+        super(uploadDirectory);
+        setDigestAlgorithm(DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    @Override
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        if (null == digestAlgorithm) {
+            throw new IllegalArgumentException("Deduplication needs a digest algorithm");
+        }
+        super.setDigestAlgorithm(digestAlgorithm);
+    }
+
+    @Override
+    public boolean deduplicate(FileChunkInfo info, String digest) throws IOException {
+        if (!info.isValidFile()) {
+            throw new IllegalArgumentException("File chunk info is invalid");
+        }
+        File blob = getBlob(getDigestAlgorithm(), digest);
+        if (null == blob || !blob.isFile() || blob.length() != info.fileSize) {
+            return false;
+        }
+        return adoptUpload(info, blob, digest.toLowerCase());
+    }
+
+    @Override
+    protected void uploadCompleted(FileStorageInfo storageInfo) throws IOException {
+        byte[] digest = null == storageInfo.digester ? null : storageInfo.digester.getResult();
+        if (null == digest) {
+            // adopted, so it came from the index in the first place
+            return;
+        }
+        File file = new File(storageInfo.getFileLocation());
+        File blob = getBlob(storageInfo.digestAlgorithm, ChunkChecksum.toHex(digest));
+        if (blob.isFile() && blob.length() == file.length()) {
+            if (!Files.isSameFile(blob.toPath(), file.toPath())) {
+                share(blob, file);
+            }
+            return;
+        }
+        File directory = blob.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        try {
+            // a blob of the wrong length was modified through a completed file and is no good any more
+            Files.deleteIfExists(blob.toPath());
+            Files.createLink(blob.toPath(), file.toPath());
+        } catch (FileAlreadyExistsException x) {
+            // indexed by a concurrent upload of the same content
+        } catch (UnsupportedOperationException | FileSystemException x) {
+            // no hard links here
+        }
+    }
+
+    // Replaces the file with a link to the stored copy, freeing the space it took a second time
+    private static void share(File blob, File file) throws IOException {
+        File sharing = new File(file.getPath() + ".share");
+        try {
+            Files.createLink(sharing.toPath(), blob.toPath());
+        } catch (UnsupportedOperationException | FileSystemException x) {
+            return;
+        }
+        try {
+            Files.move(sharing.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(sharing.toPath());
+        }
+    }
+
+    // Returns null for anything that does not look like a hex digest, which also keeps it inside the index
+    private File getBlob(String digestAlgorithm, String digest) {
+        String hex = null == digest ? "" : digest.toLowerCase();
+        if (!HEX_DIGEST.matcher(hex).matches()) {
+            return null;
+        }
+        String algorithm = digestAlgorithm.toLowerCase().replace("-", "");
+        return new File(getUploadDirectory() + File.separator + BLOBS_DIRECTORY + File.separator + algorithm
+                + File.separator + hex.substring(0, 2) + File.separator + hex);
+    }
+}
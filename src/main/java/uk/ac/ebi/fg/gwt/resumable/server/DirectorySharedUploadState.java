@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+// Shared state as marker files in a directory every node mounts, one directory per upload. Markers are
+// created exclusively, which is atomic on local file systems and on NFS from version 3, and never
+// replaced or deleted until the upload is purged.
+//
+// Finalization claims are numbered: a node claims an upload, afresh or over a released or stale claim,
+// by creating the claim numbered one past the last, so of all the nodes that saw the same last claim
+// exactly one gets the next. A claim is released by a marker of the same number.
+public class DirectorySharedUploadState implements SharedUploadState {
+
+    private final static String CHUNK_PREFIX = "chunk.";
+    private final static String CLAIM_PREFIX = "finalizing.";
+    private final static String RELEASED_PREFIX = "released.";
+    private final static String COMPLETE = "complete";
+
+    private final Path directory;
+
+    public DirectorySharedUploadState(File directory) throws IOException {
+        this.directory = directory.toPath();
+        Files.createDirectories(this.directory);
+    }
+
+    @Override
+    public void addChunk(String uploadId, int chunkNumber) throws IOException {
+        createMarker(uploadDirectory(uploadId, true).resolve(CHUNK_PREFIX + chunkNumber), null);
+    }
+
+    @Override
+    public boolean hasChunk(String uploadId, int chunkNumber) throws IOException {
+        return Files.exists(uploadDirectory(uploadId, false).resolve(CHUNK_PREFIX + chunkNumber));
+    }
+
+    @Override
+    public BitSet getChunks(String uploadId) throws IOException {
+        return getNumbers(uploadDirectory(uploadId, false), CHUNK_PREFIX);
+    }
+
+    @Override
+    public boolean claimFinalization(String uploadId, String nodeId, long lease) throws IOException {
+        Path upload = uploadDirectory(uploadId, true);
+        if (Files.exists(upload.resolve(COMPLETE))) {
+            return false;
+        }
+        int last = lastClaim(upload);
+        if (last > 0 && !Files.exists(upload.resolve(RELEASED_PREFIX + last))) {
+            // a node that died while finalizing leaves its claim behind
+            try {
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(upload.resolve(CLAIM_PREFIX + last)).toMillis() < lease) {
+                    return false;
+                }
+            } catch (NoSuchFileException x) {
+                // purged meanwhile
+                return false;
+            }
+        }
+        return createMarker(upload.resolve(CLAIM_PREFIX + (last + 1)), nodeId);
+    }
+
+    // Only the last claim can be released, and only by the node that holds it
+    @Override
+    public void releaseFinalization(String uploadId, String nodeId) throws IOException {
+        Path upload = uploadDirectory(uploadId, false);
+        int last = lastClaim(upload);
+        if (last < 1) {
+            return;
+        }
+        try {
+            if (nodeId.equals(new String(Files.readAllBytes(upload.resolve(CLAIM_PREFIX + last)), StandardCharsets.UTF_8))) {
+                createMarker(upload.resolve(RELEASED_PREFIX + last), null);
+            }
+        } catch (NoSuchFileException x) {
+            // purged meanwhile
+        }
+    }
+
+    @Override
+    public void markComplete(String uploadId) throws IOException {
+        createMarker(uploadDirectory(uploadId, true).resolve(COMPLETE), null);
+    }
+
+    @Override
+    public boolean isComplete(String uploadId) throws IOException {
+        return Files.exists(uploadDirectory(uploadId, false).resolve(COMPLETE));
+    }
+
+    // Creating a marker touches the directory
+    @Override
+    public long getLastActivity(String uploadId) throws IOException {
+        File upload = uploadDirectory(uploadId, false).toFile();
+        return upload.lastModified();
+    }
+
+    @Override
+    public void purge(long completedBefore, long unfinishedBefore) throws IOException {
+        File[] uploads = directory.toFile().listFiles();
+        if (null == uploads) {
+            return;
+        }
+        for (File upload : uploads) {
+            long before = new File(upload, COMPLETE).exists() ? completedBefore : unfinishedBefore;
+            if (upload.isDirectory() && upload.lastModified() < before) {
+                File[] markers = upload.listFiles();
+                if (null != markers) {
+                    for (File marker : markers) {
+                        Files.deleteIfExists(marker.toPath());
+                    }
+                }
+                Files.deleteIfExists(upload.toPath());
+            }
+        }
+    }
+
+    // Claims are numbered from 1, 0 if there is none
+    private static int lastClaim(Path upload) throws IOException {
+        return Math.max(getNumbers(upload, CLAIM_PREFIX).length() - 1, 0);
+    }
+
+    // The numbers of the upload's markers with the prefix
+    private static BitSet getNumbers(Path upload, String prefix) throws IOException {
+        BitSet numbers = new BitSet();
+        try (DirectoryStream<Path> markers = Files.newDirectoryStream(upload, prefix + "*")) {
+            for (Path marker : markers) {
+                try {
+                    int number = Integer.parseInt(marker.getFileName().toString().substring(prefix.length()));
+                    if (number >= 0) {
+                        numbers.set(number);
+                    }
+                } catch (NumberFormatException x) {
+                    // not a marker of ours
+                }
+            }
+        } catch (NoSuchFileException x) {
+            // nothing recorded yet
+        }
+        return numbers;
+    }
+
+    // Returns false if the marker exists already
+    private static boolean createMarker(Path marker, String content) throws IOException {
+        try {
+            Files.write(marker, null == content ? new byte[0] : content.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException x) {
+            return false;
+        }
+    }
+
+    // Identifiers can be longer than a file name and contain anything, so directories are named by digest
+    private Path uploadDirectory(String uploadId, boolean create) throws IOException {
+        MessageDigest digest = ChunkChecksum.newDigest("SHA-256");
+        Path upload = directory.resolve(ChunkChecksum.toHex(digest.digest(uploadId.getBytes(StandardCharsets.UTF_8))));
+        if (create) {
+            Files.createDirectories(upload);
+        }
+        return upload;
+    }
+}
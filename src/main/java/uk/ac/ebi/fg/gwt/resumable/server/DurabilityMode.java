@@ -0,0 +1,37 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+// When a stored chunk is known to be on disk, and so when it is acknowledged and recorded as stored
+public enum DurabilityMode {
+
+    // Left to the operating system; a chunk acknowledged just before a power loss may be gone after it
+    NONE,
+
+    // Every chunk is synced before it is acknowledged
+    PER_CHUNK,
+
+    // Chunks wait for a background sync that covers everything written to their file in the last few
+    // milliseconds, which costs them that much latency but takes one sync per file instead of per chunk
+    GROUP_COMMIT;
+
+    // Also takes the hyphenated lower case of init parameters: none, per-chunk or group-commit
+    static DurabilityMode parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
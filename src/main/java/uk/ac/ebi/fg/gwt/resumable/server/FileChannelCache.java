@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class FileChannelCache {
+
+    final static int DEFAULT_MAX_OPEN_CHANNELS = 256;
+    final static long DEFAULT_IDLE_TIMEOUT = 60000L;
+
+    private volatile int maxOpenChannels = DEFAULT_MAX_OPEN_CHANNELS;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    // access-ordered, so iteration starts from the least recently used handle
+    private final Map<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    void setMaxOpenChannels(int maxOpenChannels) {
+        this.maxOpenChannels = maxOpenChannels;
+    }
+
+    void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    // Only creates the file if asked to, so that one that has been moved away or deleted since it was
+    // first opened, e.g. by a retire racing this, is not brought back empty
+    Handle acquire(String location, boolean create) throws IOException {
+        List<Handle> evicted = new ArrayList<>();
+        Handle handle;
+        synchronized (this) {
+            handle = handles.get(location);
+            if (null == handle || !handle.channel.isOpen()) {
+                if (null != handle) {
+                    handles.remove(location);
+                }
+                if (handles.size() >= maxOpenChannels) {
+                    evictLeastRecentlyUsed(evicted);
+                }
+                handle = new Handle(location, open(location, create), handles.size() < maxOpenChannels);
+                if (handle.cached) {
+                    handles.put(location, handle);
+                }
+            }
+            handle.refCount++;
+            handle.lastUsed = System.currentTimeMillis();
+        }
+        closeAll(evicted);
+        return handle;
+    }
+
+    void release(Handle handle) throws IOException {
+        boolean close;
+        synchronized (this) {
+            handle.refCount--;
+            close = handle.refCount == 0 && (handle.retired || !handle.cached);
+        }
+        if (close) {
+            handle.channel.close();
+        }
+    }
+
+    // Closes the channel for the location as soon as nobody is writing to it any more
+    void retire(String location) throws IOException {
+        Handle handle;
+        synchronized (this) {
+            handle = handles.remove(location);
+            if (null == handle) {
+                return;
+            }
+            handle.retired = true;
+            if (handle.refCount > 0) {
+                return;
+            }
+        }
+        handle.channel.close();
+    }
+
+    void closeIdle() throws IOException {
+        List<Handle> evicted = new ArrayList<>();
+        synchronized (this) {
+            evictIdle(System.currentTimeMillis(), evicted);
+        }
+        closeAll(evicted);
+    }
+
+    void closeAll() throws IOException {
+        List<Handle> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(handles.values());
+            handles.clear();
+        }
+        closeAll(evicted);
+    }
+
+    synchronized int size() {
+        return handles.size();
+    }
+
+    private void evictIdle(long now, List<Handle> evicted) {
+        Iterator<Handle> i = handles.values().iterator();
+        while (i.hasNext()) {
+            Handle handle = i.next();
+            if (0 == handle.refCount && now - handle.lastUsed > idleTimeout) {
+                i.remove();
+                evicted.add(handle);
+            }
+        }
+    }
+
+    private void evictLeastRecentlyUsed(List<Handle> evicted) {
+        Iterator<Handle> i = handles.values().iterator();
+        while (i.hasNext() && handles.size() >= maxOpenChannels) {
+            Handle handle = i.next();
+            if (0 == handle.refCount) {
+                i.remove();
+                evicted.add(handle);
+            }
+        }
+    }
+
+    private static FileChannel open(String location, boolean create) throws IOException {
+        if (create) {
+            return FileChannel.open(Paths.get(location),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return FileChannel.open(Paths.get(location), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void closeAll(List<Handle> evicted) throws IOException {
+        IOException failure = null;
+        for (Handle handle : evicted) {
+            try {
+                handle.channel.close();
+            } catch (IOException x) {
+                failure = x;
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    static class Handle {
+
+        final String location;
+        final FileChannel channel;
+        final boolean cached;
+
+        int refCount;
+        long lastUsed;
+        boolean retired;
+
+        private Handle(String location, FileChannel channel, boolean cached) {
+            this.location = location;
+            this.channel = channel;
+            this.cached = cached;
+        }
+    }
+}
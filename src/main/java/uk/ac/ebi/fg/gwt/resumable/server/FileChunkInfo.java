@@ -21,14 +21,30 @@ public class FileChunkInfo {
 
     public int          chunkNumber;
     public int          chunkSize;
+    public int          totalChunks;
     public int          currentChunkSize;
     public long         fileSize;
     public String       id;
     public String       fileName;
     public String       relativePath;
+    public String       checksum;
+    public String       fileDigest;
 
     public boolean isValid() {
-        return chunkNumber >= 0 && chunkSize > 0 && fileSize > 0
+        return chunkNumber >= 0 && isValidFile();
+    }
+
+    // Whether the upload itself is identified, regardless of the chunk; a resumableTotalChunks that does
+    // not match the chunk size and file size makes it invalid
+    public boolean isValidFile() {
+        return chunkSize > 0 && fileSize > 0 && fileSize / chunkSize <= Integer.MAX_VALUE
+                && (0 == totalChunks || totalChunks == getTotalChunks())
                 && !id.isEmpty() && !fileName.isEmpty() && !relativePath.isEmpty();
     }
+
+    // Always worked out from the chunk size and file size, never taken from the client, since the chunk
+    // bitmaps are sized by it. resumable.js folds the remainder into the last chunk.
+    public int getTotalChunks() {
+        return (int) Math.max(fileSize / chunkSize, 1);
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+// Whole-file digest built up chunk by chunk in file order; chunks arriving in order are digested
+// while they stream in, chunks that arrived early are read back once the gap before them is filled
+class FileDigester {
+
+    private MessageDigest digest;
+    private MessageDigest snapshot;
+    private int next = 1;
+    private boolean claimed;
+    private byte[] result;
+
+    FileDigester(String algorithm) {
+        this.digest = ChunkChecksum.newDigest(algorithm);
+    }
+
+    // Returns the digest to stream the chunk into, or null if the chunk is not next in line
+    synchronized MessageDigest claim(int chunkNumber) {
+        if (claimed || chunkNumber != next || null != result) {
+            return null;
+        }
+        try {
+            snapshot = (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException x) {
+            return null;
+        }
+        claimed = true;
+        return digest;
+    }
+
+    synchronized void release(boolean stored) {
+        if (!claimed) {
+            return;
+        }
+        if (stored) {
+            next++;
+        } else {
+            digest = snapshot;
+        }
+        snapshot = null;
+        claimed = false;
+    }
+
+    synchronized void catchUp(ChunkBitmap chunks, FileChunkInfo info, FileChannelCache channels, String location,
+                              BufferPool buffers) throws IOException {
+        if (!claimed && null == result && chunks.get(next)) {
+            FileChannelCache.Handle handle = channels.acquire(location, false);
+            BufferPool.PooledBuffer buffer = buffers.acquire();
+            try {
+                while (!claimed && chunks.get(next)) {
+                    digestChunk(chunks, info, handle.channel, buffer.direct);
+                    next++;
+                }
+            } finally {
+                buffers.release(buffer);
+                channels.release(handle);
+            }
+        }
+        if (null == result && next > chunks.size()) {
+            result = digest.digest();
+        }
+    }
+
+    private void digestChunk(ChunkBitmap chunks, FileChunkInfo info, FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        long position = (next - 1) * (long) info.chunkSize;
+        long end = next == chunks.size() ? info.fileSize : position + info.chunkSize;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int r = channel.read(buffer, position);
+            if (r < 0) {
+                throw new IOException("Unexpected end of file reading chunk " + next + " of " + info.id);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += r;
+        }
+    }
+
+    synchronized byte[] getResult() {
+        return result;
+    }
+}
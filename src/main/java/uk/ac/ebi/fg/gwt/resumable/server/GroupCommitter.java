@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Writers queue the channel they have written to and wait; the first one in a group schedules a sync
+// after the interval, which syncs each queued channel once and releases everybody waiting on it
+class GroupCommitter {
+
+    final static long DEFAULT_INTERVAL = 10L;
+
+    private volatile long interval = DEFAULT_INTERVAL;
+
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("upload-storage-committer"));
+
+    private List<Commit> pending = new ArrayList<>();
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    // Returns once everything written to the channel before the call is on disk
+    void commit(FileChannel channel, UploadMetrics metrics) throws IOException {
+        Commit commit = new Commit(channel, metrics);
+        synchronized (this) {
+            pending.add(commit);
+            if (1 == pending.size()) {
+                try {
+                    committer.schedule(flush, interval, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException x) {
+                    pending.remove(commit);
+                    throw new IOException("Storage is closed");
+                }
+            }
+        }
+        commit.await();
+    }
+
+    private void flush() {
+        List<Commit> commits;
+        synchronized (this) {
+            commits = pending;
+            pending = new ArrayList<>();
+        }
+        Map<FileChannel, IOException> synced = new IdentityHashMap<>();
+        for (Commit commit : commits) {
+            if (!synced.containsKey(commit.channel)) {
+                IOException failure = null;
+                try {
+                    commit.channel.force(false);
+                    commit.metrics.syncs.increment();
+                } catch (IOException x) {
+                    failure = x;
+                }
+                synced.put(commit.channel, failure);
+            }
+            commit.complete(synced.get(commit.channel));
+        }
+    }
+
+    void shutdown() {
+        committer.shutdownNow();
+        List<Commit> commits;
+        synchronized (this) {
+            commits = pending;
+            pending = new ArrayList<>();
+        }
+        for (Commit commit : commits) {
+            commit.complete(new IOException("Storage is closed"));
+        }
+    }
+
+    private static class Commit {
+
+        final FileChannel channel;
+        final UploadMetrics metrics;
+
+        private boolean done;
+        private IOException failure;
+
+        Commit(FileChannel channel, UploadMetrics metrics) {
+            this.channel = channel;
+            this.metrics = metrics;
+        }
+
+        synchronized void complete(IOException failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a sync");
+                }
+            }
+            if (null != failure) {
+                throw new IOException("Unable to sync chunk", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Shared state for storages in the same JVM, e.g. several servlets over one upload directory, and a
+// stand-in for a real shared store when trying a cluster setup out on one machine
+public class InMemorySharedUploadState implements SharedUploadState {
+
+    private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    @Override
+    public void addChunk(String uploadId, int chunkNumber) {
+        Upload upload = getUpload(uploadId);
+        synchronized (upload) {
+            upload.chunks.set(chunkNumber);
+            upload.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public boolean hasChunk(String uploadId, int chunkNumber) {
+        Upload upload = uploads.get(uploadId);
+        if (null == upload) {
+            return false;
+        }
+        synchronized (upload) {
+            return upload.chunks.get(chunkNumber);
+        }
+    }
+
+    @Override
+    public BitSet getChunks(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (null == upload) {
+            return new BitSet();
+        }
+        synchronized (upload) {
+            return (BitSet) upload.chunks.clone();
+        }
+    }
+
+    @Override
+    public boolean claimFinalization(String uploadId, String nodeId, long lease) {
+        Upload upload = getUpload(uploadId);
+        synchronized (upload) {
+            long now = System.currentTimeMillis();
+            if (upload.complete || (null != upload.finalizer && now - upload.claimedAt < lease)) {
+                return false;
+            }
+            upload.finalizer = nodeId;
+            upload.claimedAt = now;
+            upload.lastActivity = now;
+            return true;
+        }
+    }
+
+    @Override
+    public void releaseFinalization(String uploadId, String nodeId) {
+        Upload upload = getUpload(uploadId);
+        synchronized (upload) {
+            if (nodeId.equals(upload.finalizer)) {
+                upload.finalizer = null;
+            }
+        }
+    }
+
+    @Override
+    public void markComplete(String uploadId) {
+        Upload upload = getUpload(uploadId);
+        synchronized (upload) {
+            upload.complete = true;
+            upload.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public boolean isComplete(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (null == upload) {
+            return false;
+        }
+        synchronized (upload) {
+            return upload.complete;
+        }
+    }
+
+    @Override
+    public long getLastActivity(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (null == upload) {
+            return 0;
+        }
+        synchronized (upload) {
+            return upload.lastActivity;
+        }
+    }
+
+    @Override
+    public void purge(long completedBefore, long unfinishedBefore) {
+        Iterator<Upload> i = uploads.values().iterator();
+        while (i.hasNext()) {
+            Upload upload = i.next();
+            synchronized (upload) {
+                if (upload.lastActivity < (upload.complete ? completedBefore : unfinishedBefore)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private Upload getUpload(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (null == upload) {
+            Upload created = new Upload();
+            upload = uploads.putIfAbsent(uploadId, created);
+            if (null == upload) {
+                upload = created;
+            }
+        }
+        return upload;
+    }
+
+    private static class Upload {
+
+        final BitSet chunks = new BitSet();
+        long lastActivity = System.currentTimeMillis();
+        String finalizer;
+        long claimedAt;
+        boolean complete;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class JournaledUploadStorageImpl extends SimpleUploadStorageImpl {
+
+    private final static String JOURNAL_EXTENSION = ".journal";
+
+    private final Map<String, ChunkJournal> journals = new ConcurrentHashMap<>();
+
+    public JournaledUploadStorageImpl() {
+        super();
+    }
+
+    public JournaledUploadStorageImpl(String uploadDirectory) {
+        super(uploadDirectory);
+    }
+
+    @Override
+    protected void storageInfoCreated(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        File journalFile = new File(storageInfo.storageFileLocation + JOURNAL_EXTENSION);
+        if (!journalFile.exists()) {
+            return;
+        }
+        if (!new File(storageInfo.storageFileLocation).exists()) {
+            if (!journalFile.delete()) {
+                throw new IOException("Unable to delete stale journal " + journalFile);
+            }
+            return;
+        }
+        ChunkJournal journal = getJournal(storageInfo, info);
+        for (int chunkNumber = 1; chunkNumber <= journal.chunkCount(); chunkNumber++) {
+            if (journal.get(chunkNumber)) {
+                storageInfo.addChunk(chunkNumber);
+            }
+        }
+    }
+
+    // Also knows uploads from before a restart by their journal
+    @Override
+    public int getUploadChunkSize(FileChunkInfo info) throws IOException {
+        int chunkSize = super.getUploadChunkSize(info);
+        if (0 == chunkSize && info.isValidFile()) {
+            String storageFileLocation = getStorageFileLocation(info);
+            if (new File(storageFileLocation).exists()) {
+                chunkSize = ChunkJournal.readChunkSize(new File(storageFileLocation + JOURNAL_EXTENSION), info);
+            }
+        }
+        return chunkSize;
+    }
+
+    @Override
+    protected void chunkWritten(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        getJournal(storageInfo, info).set(info.chunkNumber);
+    }
+
+    @Override
+    protected void uploadCompleted(FileStorageInfo storageInfo) throws IOException {
+        journals.remove(storageInfo.storageFileLocation);
+        File journalFile = new File(storageInfo.storageFileLocation + JOURNAL_EXTENSION);
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Unable to delete journal " + journalFile);
+        }
+    }
+
+    @Override
+    protected long uploadDiscarded(String storageFileLocation) throws IOException {
+        journals.remove(storageFileLocation);
+        return delete(new File(storageFileLocation + JOURNAL_EXTENSION));
+    }
+
+    // Writes the journals out before letting go of them; they stay mapped until they are collected
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            for (ChunkJournal journal : journals.values()) {
+                journal.force();
+            }
+            journals.clear();
+        }
+    }
+
+    private ChunkJournal getJournal(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        ChunkJournal journal = journals.get(storageInfo.storageFileLocation);
+        if (null == journal) {
+            synchronized (journals) {
+                journal = journals.get(storageInfo.storageFileLocation);
+                if (null == journal) {
+                    journal = ChunkJournal.open(new File(storageInfo.storageFileLocation + JOURNAL_EXTENSION), info);
+                    journals.put(storageInfo.storageFileLocation, journal);
+                }
+            }
+        }
+        return journal;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Spreads uploads over several directories, ideally on separate disks, each with its own storage.
+// A new upload is placed on a consistent hash ring of the healthy volumes, where each volume gets a
+// share of the ring in proportion to its free space; an upload stays on its volume until it is done.
+// Every volume caps the chunk writes it has in progress, so a slow disk holds up its own uploads only.
+// The cap is not a queue: a write that finds every slot taken is turned away as overloaded straight
+// away, for the client to retry. Chunks are read off the network a pooled buffer at a time, and a slot
+// is only taken for each buffer written and for the commit, so a slow client holds none.
+//
+// Volumes are checked periodically and after failed writes, by writing and syncing a probe file and
+// looking at the free space. A volume that fails or runs short of space gets no new uploads until it
+// recovers; uploads already on it carry on there.
+public class MultiVolumeUploadStorageImpl implements ConfigurableUploadStorage, Closeable {
+
+    final static long DEFAULT_MIN_FREE_SPACE = 1L << 30;
+    final static int DEFAULT_MAX_CONCURRENT_WRITES = 32;
+
+    private final static long HEALTH_CHECK_INTERVAL = 10000L;
+    private final static long PLACEMENT_RETENTION = 60000L;
+    private final static int VIRTUAL_NODES = 128;
+    private final static int BUSY_RETRY_AFTER = 1;
+    private final static String PROBE_FILE = ".volume-probe";
+
+    private final List<Volume> volumes = new ArrayList<>();
+    private final UploadMetrics metrics = new UploadMetrics();
+    private final BufferPool buffers = new BufferPool();
+
+    private volatile long minFreeSpace = DEFAULT_MIN_FREE_SPACE;
+    private volatile TreeMap<Long, Volume> ring = new TreeMap<>();
+    private final ConcurrentMap<String, Placement> placements = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("upload-volume-health"));
+
+    public MultiVolumeUploadStorageImpl(String... directories) {
+        this(newStorages(directories));
+    }
+
+    // For volumes with their own storage setup, e.g. journaled ones; the storages should not be shared
+    public MultiVolumeUploadStorageImpl(List<? extends SimpleUploadStorageImpl> storages) {
+        if (storages.isEmpty()) {
+            throw new IllegalArgumentException("At least one volume is needed");
+        }
+        for (SimpleUploadStorageImpl storage : storages) {
+            storage.setMetrics(metrics);
+            volumes.add(new Volume(storage));
+        }
+        checkVolumes();
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkVolumes();
+                    prunePlacements();
+                } catch (RuntimeException x) {
+                    // will be retried on the next run
+                }
+            }
+        }, HEALTH_CHECK_INTERVAL, HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static List<SimpleUploadStorageImpl> newStorages(String[] directories) {
+        List<SimpleUploadStorageImpl> storages = new ArrayList<>();
+        for (String directory : directories) {
+            // SimpleUploadStorageImpl would quietly fall back to the temporary directory
+            if (!new File(directory).isDirectory()) {
+                throw new IllegalArgumentException("Upload volume " + directory + " is not a directory");
+            }
+            storages.add(new SimpleUploadStorageImpl(directory));
+        }
+        return storages;
+    }
+
+    public List<Volume> getVolumes() {
+        return Collections.unmodifiableList(volumes);
+    }
+
+    // Volumes with less usable space than this take no new uploads
+    public void setMinFreeSpace(long minFreeSpace) {
+        this.minFreeSpace = minFreeSpace;
+    }
+
+    // Chunk writes in progress per volume; further ones are not queued but turned away as overloaded
+    public void setMaxConcurrentWrites(int maxConcurrentWrites) {
+        for (Volume volume : volumes) {
+            volume.setMaxConcurrentWrites(maxConcurrentWrites);
+        }
+    }
+
+    public void setMaxOpenChannels(int maxOpenChannels) {
+        for (Volume volume : volumes) {
+            volume.storage.setMaxOpenChannels(maxOpenChannels);
+        }
+    }
+
+    public void setChannelIdleTimeout(long idleTimeout) {
+        for (Volume volume : volumes) {
+            volume.storage.setChannelIdleTimeout(idleTimeout);
+        }
+    }
+
+    @Override
+    public void configure(ServletConfig config) throws ServletException {
+        for (Volume volume : volumes) {
+            volume.storage.configure(config);
+        }
+    }
+
+    public void setUploadIdleTimeout(long uploadIdleTimeout) {
+        for (Volume volume : volumes) {
+            volume.storage.setUploadIdleTimeout(uploadIdleTimeout);
+        }
+    }
+
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        for (Volume volume : volumes) {
+            volume.storage.setDigestAlgorithm(digestAlgorithm);
+        }
+    }
+
+    public void setAllocationMode(AllocationMode allocationMode) {
+        for (Volume volume : volumes) {
+            volume.storage.setAllocationMode(allocationMode);
+        }
+    }
+
+    public void setDurability(DurabilityMode durability) {
+        for (Volume volume : volumes) {
+            volume.storage.setDurability(durability);
+        }
+    }
+
+    public void setGroupCommitInterval(long groupCommitInterval) {
+        for (Volume volume : volumes) {
+            volume.storage.setGroupCommitInterval(groupCommitInterval);
+        }
+    }
+
+    // Shared by the storages of all volumes
+    @Override
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getLiveUploads() {
+        return metrics.getLiveUploads();
+    }
+
+    @Override
+    public void addCompletionListener(UploadCompletionListener listener) {
+        for (Volume volume : volumes) {
+            volume.storage.addCompletionListener(listener);
+        }
+    }
+
+    @Override
+    public void removeCompletionListener(UploadCompletionListener listener) {
+        for (Volume volume : volumes) {
+            volume.storage.removeCompletionListener(listener);
+        }
+    }
+
+    @Override
+    public boolean hasChunk(FileChunkInfo info) throws IOException {
+        return getVolume(info).storage.hasChunk(info);
+    }
+
+    @Override
+    public boolean hasAllChunks(FileChunkInfo info) throws IOException {
+        return getVolume(info).storage.hasAllChunks(info);
+    }
+
+    @Override
+    public byte[] getChunkManifest(FileChunkInfo info) throws IOException {
+        return getVolume(info).storage.getChunkManifest(info);
+    }
+
+    @Override
+    public String getFileDigest(FileChunkInfo info) throws IOException {
+        return getVolume(info).storage.getFileDigest(info);
+    }
+
+    @Override
+    public int getUploadChunkSize(FileChunkInfo info) throws IOException {
+        return getVolume(info).storage.getUploadChunkSize(info);
+    }
+
+    // Only finds content stored on the volume the upload is placed on
+    @Override
+    public boolean deduplicate(FileChunkInfo info, String digest) throws IOException {
+        return getVolume(info).storage.deduplicate(info, digest);
+    }
+
+    @Override
+    public void storeChunk(FileChunkInfo info, InputStream stream, long length) throws IOException {
+        Volume volume = getVolume(info);
+        if (volume.storage.hasChunk(info)) {
+            return;
+        }
+        writeChunk(volume, info, stream, length);
+    }
+
+    @Override
+    public void storeChunks(List<ChunkUpload> batch) {
+        for (ChunkUpload chunk : batch) {
+            try {
+                Volume volume = getVolume(chunk.info);
+                if (volume.storage.hasChunk(chunk.info)) {
+                    chunk.complete = volume.storage.hasAllChunks(chunk.info);
+                    continue;
+                }
+                writeChunk(volume, chunk.info, chunk.stream, chunk.length);
+                chunk.complete = volume.storage.hasAllChunks(chunk.info);
+            } catch (IOException | RuntimeException x) {
+                chunk.failure = x;
+            }
+        }
+    }
+
+    // Goes through the same writer as streamed chunks, one pooled buffer at a time
+    private void writeChunk(Volume volume, FileChunkInfo info, InputStream stream, long length)
+            throws IOException {
+        ChunkWriter writer = openChunk(volume, info);
+        if (null == writer) {
+            // stored in the meantime
+            return;
+        }
+        boolean committed = false;
+        BufferPool.PooledBuffer buffer = buffers.acquire();
+        try {
+            long written = 0;
+            while (written < length) {
+                int r = stream.read(buffer.array, 0, (int) Math.min(buffer.array.length, length - written));
+                if (r < 0) {
+                    break;
+                }
+                buffer.direct.clear();
+                buffer.direct.put(buffer.array, 0, r);
+                buffer.direct.flip();
+                writer.write(buffer.direct, written);
+                written += r;
+            }
+            if (written != length) {
+                throw new IOException("Chunk " + info.chunkNumber + " of " + info.id + " ended after "
+                        + written + " of " + length + " bytes");
+            }
+            writer.commit();
+            committed = true;
+        } finally {
+            buffers.release(buffer);
+            if (!committed) {
+                writer.abort();
+            }
+        }
+    }
+
+    // Bytes come in off the network between writes, so the volume slot is only taken for each write
+    // and for the commit
+    @Override
+    public ChunkWriter openChunk(FileChunkInfo info) throws IOException {
+        return openChunk(getVolume(info), info);
+    }
+
+    private ChunkWriter openChunk(final Volume volume, FileChunkInfo info) throws IOException {
+        final ChunkWriter writer = volume.storage.openChunk(info);
+        if (null == writer) {
+            return null;
+        }
+        return new ChunkWriter() {
+
+            @Override
+            public void write(ByteBuffer data, long offset) throws IOException {
+                volume.acquire();
+                try {
+                    writer.write(data, offset);
+                } catch (IOException x) {
+                    writeFailed(volume, x);
+                    throw x;
+                } finally {
+                    volume.release();
+                }
+            }
+
+            @Override
+            public void commit() throws IOException {
+                volume.acquire();
+                try {
+                    writer.commit();
+                } catch (IOException x) {
+                    writeFailed(volume, x);
+                    throw x;
+                } finally {
+                    volume.release();
+                }
+            }
+
+            @Override
+            public void abort() throws IOException {
+                writer.abort();
+            }
+        };
+    }
+
+    // A failed write may be the client going away, or the disk; the probe tells them apart
+    private void writeFailed(final Volume volume, IOException x) {
+        if (x instanceof ChecksumMismatchException || x instanceof ChunkInFlightException
+                || x instanceof OverloadedException) {
+            return;
+        }
+        try {
+            healthChecker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (check(volume)) {
+                        buildRing();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private Volume getVolume(FileChunkInfo info) throws IOException {
+        if (!info.isValidFile()) {
+            throw new IllegalArgumentException("File chunk info is invalid");
+        }
+        Placement placement = placements.get(info.id);
+        if (null == placement) {
+            placement = place(info);
+        }
+        return placement.volume;
+    }
+
+    // Concurrent first chunks of an upload agree on one volume
+    private Placement place(final FileChunkInfo info) throws IOException {
+        try {
+            return placements.computeIfAbsent(info.id, new Function<String, Placement>() {
+                @Override
+                public Placement apply(String fileId) {
+                    try {
+                        return new Placement(chooseVolume(info));
+                    } catch (IOException x) {
+                        throw new UncheckedIOException(x);
+                    }
+                }
+            });
+        } catch (UncheckedIOException x) {
+            throw x.getCause();
+        }
+    }
+
+    private Volume chooseVolume(FileChunkInfo info) throws IOException {
+        // an upload that was started before a restart carries on where its partial file is
+        for (Volume volume : volumes) {
+            if (volume.storage.hasUpload(info)) {
+                return volume;
+            }
+        }
+        TreeMap<Long, Volume> ring = this.ring;
+        if (ring.isEmpty()) {
+            throw new OverloadedException("No upload volume is available",
+                    (int) TimeUnit.MILLISECONDS.toSeconds(HEALTH_CHECK_INTERVAL));
+        }
+        Map.Entry<Long, Volume> entry = ring.ceilingEntry(hash(info.id));
+        return null != entry ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // Forgets placements of uploads their storage has let go of
+    private void prunePlacements() {
+        long placedBefore = System.currentTimeMillis() - PLACEMENT_RETENTION;
+        Iterator<Map.Entry<String, Placement>> i = placements.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Placement> entry = i.next();
+            Placement placement = entry.getValue();
+            if (placement.placedAt < placedBefore && !placement.volume.storage.isLive(entry.getKey())) {
+                placements.remove(entry.getKey(), placement);
+            }
+        }
+    }
+
+    private void checkVolumes() {
+        for (Volume volume : volumes) {
+            check(volume);
+        }
+        buildRing();
+    }
+
+    // Returns true if the volume changed from healthy to unhealthy or back
+    private boolean check(Volume volume) {
+        boolean wasHealthy = volume.healthy;
+        try {
+            File probe = new File(volume.directory, PROBE_FILE);
+            try (FileChannel channel = FileChannel.open(probe.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(PROBE_FILE.getBytes(StandardCharsets.UTF_8)));
+                channel.force(false);
+            }
+            Files.delete(probe.toPath());
+            // space promised to preallocated uploads is as good as used
+            volume.usableSpace = volume.directory.getUsableSpace() - volume.storage.getReservedBytes();
+            if (volume.usableSpace < minFreeSpace) {
+                volume.healthy = false;
+                volume.lastError = "Only " + volume.usableSpace + " bytes free";
+            } else {
+                volume.healthy = true;
+                volume.lastError = null;
+            }
+        } catch (IOException | RuntimeException x) {
+            volume.healthy = false;
+            volume.lastError = x.toString();
+        }
+        return wasHealthy != volume.healthy;
+    }
+
+    private synchronized void buildRing() {
+        long totalSpace = 0;
+        int healthy = 0;
+        for (Volume volume : volumes) {
+            if (volume.healthy) {
+                totalSpace += volume.usableSpace;
+                healthy++;
+            }
+        }
+        TreeMap<Long, Volume> ring = new TreeMap<>();
+        for (Volume volume : volumes) {
+            if (!volume.healthy) {
+                continue;
+            }
+            // points are numbered per volume, so a change in weight only moves the uploads of the
+            // points that come or go
+            double share = totalSpace > 0 ? (double) volume.usableSpace / totalSpace : 1.0 / healthy;
+            long points = Math.max(1, Math.round(VIRTUAL_NODES * healthy * share));
+            for (int point = 0; point < points; point++) {
+                ring.put(hash(volume.directory.getPath() + "#" + point), volume);
+            }
+        }
+        this.ring = ring;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        healthChecker.shutdownNow();
+        IOException failure = null;
+        for (Volume volume : volumes) {
+            try {
+                volume.storage.close();
+            } catch (IOException x) {
+                failure = x;
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    private static class Placement {
+
+        final Volume volume;
+        final long placedAt = System.currentTimeMillis();
+
+        Placement(Volume volume) {
+            this.volume = volume;
+        }
+    }
+
+    public static class Volume {
+
+        final SimpleUploadStorageImpl storage;
+        final File directory;
+
+        volatile boolean healthy;
+        volatile long usableSpace;
+        volatile String lastError;
+
+        private int maxConcurrentWrites = DEFAULT_MAX_CONCURRENT_WRITES;
+        private int active;
+        private long rejected;
+
+        Volume(SimpleUploadStorageImpl storage) {
+            this.storage = storage;
+            this.directory = new File(storage.getUploadDirectory());
+        }
+
+        public String getDirectory() {
+            return directory.getPath();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getUsableSpace() {
+            return usableSpace;
+        }
+
+        // Why the volume is unhealthy, null if it is not
+        public String getLastError() {
+            return lastError;
+        }
+
+        public synchronized int getActive() {
+            return active;
+        }
+
+        // Chunk writes turned away because every slot was taken
+        public synchronized long getRejected() {
+            return rejected;
+        }
+
+        synchronized void setMaxConcurrentWrites(int maxConcurrentWrites) {
+            this.maxConcurrentWrites = maxConcurrentWrites;
+        }
+
+        synchronized void acquire() throws OverloadedException {
+            if (active >= maxConcurrentWrites) {
+                rejected++;
+                throw new OverloadedException("Upload volume " + directory + " is busy", BUSY_RETRY_AFTER);
+            }
+            active++;
+        }
+
+        synchronized void release() {
+            active--;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Reads multipart/form-data parts one after another straight off the request body through a fixed
+// buffer, so nothing is spooled and part contents can be streamed to their destination
+class MultipartStream {
+
+    private final static int BUFFER_SIZE = 16384;
+    private final static int MAX_HEADER_LENGTH = 8192;
+
+    private final InputStream input;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+
+    // unread bytes are buffer[head, tail)
+    private int head;
+    private int tail;
+    private boolean finished;
+
+    private PartStream current;
+    private String name;
+    private String fileName;
+
+    MultipartStream(InputStream input, String boundary) {
+        this.input = input;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+        // the first boundary is not preceded by a line break, pretend it is so that the preamble is just a part
+        buffer[tail++] = '\r';
+        buffer[tail++] = '\n';
+        this.current = new PartStream(-1);
+    }
+
+    static String getBoundary(String contentType) {
+        if (null == contentType) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = unquote(param.substring(9));
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    boolean nextPart() throws IOException {
+        if (finished) {
+            return false;
+        }
+        current.drain();
+
+        require(2);
+        if ('-' == buffer[head] && '-' == buffer[head + 1]) {
+            finished = true;
+            return false;
+        }
+        // the rest of the boundary line, normally empty
+        readLine();
+
+        name = null;
+        fileName = null;
+        int headerLength = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headerLength += line.length();
+            if (headerLength > MAX_HEADER_LENGTH) {
+                throw new IOException("Multipart headers are too long");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0 && "content-disposition".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                parseDisposition(line.substring(colon + 1));
+            }
+        }
+        current = new PartStream(-1);
+        return true;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // Null for plain form fields
+    String getFileName() {
+        return fileName;
+    }
+
+    String readString(int maxLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[256];
+        int r;
+        while ((r = current.read(chunk, 0, chunk.length)) >= 0) {
+            bytes.write(chunk, 0, r);
+            if (bytes.size() > maxLength) {
+                throw new IOException("Multipart field " + name + " is longer than " + maxLength + " bytes");
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // A stream over the current part that fails unless the part is exactly the expected length
+    InputStream getPartStream(long expectedLength) {
+        current = new PartStream(expectedLength);
+        return current;
+    }
+
+    private void parseDisposition(String disposition) {
+        for (String param : disposition.split(";")) {
+            param = param.trim();
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                String key = param.substring(0, equals).trim();
+                String value = unquote(param.substring(equals + 1).trim());
+                if ("name".equalsIgnoreCase(key)) {
+                    name = value;
+                } else if ("filename".equalsIgnoreCase(key)) {
+                    fileName = value;
+                }
+            }
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = head + scanned; i + 1 < tail; i++) {
+                if ('\r' == buffer[i] && '\n' == buffer[i + 1]) {
+                    String line = new String(buffer, head, i - head, StandardCharsets.UTF_8);
+                    head = i + 2;
+                    return line;
+                }
+            }
+            if (tail - head >= MAX_HEADER_LENGTH) {
+                throw new IOException("Multipart header line is too long");
+            }
+            scanned = Math.max(0, tail - head - 1);
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart stream");
+            }
+        }
+    }
+
+    private void require(int length) throws IOException {
+        while (tail - head < length) {
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart stream");
+            }
+        }
+    }
+
+    // Moves the unread bytes to the start of the buffer and reads more after them
+    private boolean fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int r;
+        do {
+            r = input.read(buffer, tail, buffer.length - tail);
+        } while (0 == r);
+        if (r < 0) {
+            return false;
+        }
+        tail += r;
+        return true;
+    }
+
+    private int indexOfDelimiter() {
+        int last = tail - delimiter.length;
+        for (int i = head; i <= last; i++) {
+            if (buffer[i] == delimiter[0] && startsWithDelimiter(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWithDelimiter(int at) {
+        for (int j = 1; j < delimiter.length; j++) {
+            if (buffer[at + j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class PartStream extends InputStream {
+
+        private final long expectedLength;
+        private long read;
+        private boolean done;
+
+        PartStream(long expectedLength) {
+            this.expectedLength = expectedLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (expectedLength < 0) {
+                return readRaw(b, off, len);
+            }
+            if (read == expectedLength) {
+                return -1;
+            }
+            int n = readRaw(b, off, (int) Math.min(len, expectedLength - read));
+            if (n < 0) {
+                throw new IOException("Multipart part " + name + " is shorter than " + expectedLength + " bytes");
+            }
+            // the part has to end right here, checked before the last bytes are handed out
+            if (read == expectedLength && !atDelimiter()) {
+                throw new IOException("Multipart part " + name + " is longer than " + expectedLength + " bytes");
+            }
+            return n;
+        }
+
+        private int readRaw(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                int match = indexOfDelimiter();
+                // without a match the tail may still hold the start of a delimiter
+                int available = match >= 0 ? match - head : tail - head - delimiter.length + 1;
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buffer, head, b, off, n);
+                    head += n;
+                    read += n;
+                    return n;
+                }
+                if (match == head) {
+                    head += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                if (!fill()) {
+                    throw new EOFException("Unexpected end of multipart stream");
+                }
+            }
+        }
+
+        private boolean atDelimiter() throws IOException {
+            require(delimiter.length);
+            if (buffer[head] == delimiter[0] && startsWithDelimiter(head)) {
+                head += delimiter.length;
+                done = true;
+                return true;
+            }
+            return false;
+        }
+
+        // Skips whatever the reader left of the part, including bytes past a length it rejected
+        void drain() throws IOException {
+            byte[] skip = new byte[1024];
+            while (!done) {
+                readRaw(skip, 0, skip.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+public class ReapReport {
+
+    public int          finishedEvicted;
+    public int          staleEvicted;
+    public int          orphansDeleted;
+    public long         bytesReclaimed;
+
+    public int getEvicted() {
+        return finishedEvicted + staleEvicted;
+    }
+
+    @Override
+    public String toString() {
+        return "evicted " + finishedEvicted + " finished and " + staleEvicted + " stale uploads, deleted "
+                + orphansDeleted + " orphaned files, reclaimed " + bytesReclaimed + " bytes";
+    }
+}
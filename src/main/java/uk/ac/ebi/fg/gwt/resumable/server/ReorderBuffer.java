@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Off-heap memory for chunks that have arrived ahead of their turn, bounded across all uploads. Buffers
+// are kept for reuse by capacity, which is nearly always the chunk size of the upload; the ones kept
+// count against the bound as well, and are dropped to make room for buffers of another size.
+class ReorderBuffer {
+
+    final static long DEFAULT_MAX_BYTES = 64L << 20;
+    private final static int MAX_POOLED_PER_SIZE = 8;
+
+    // guarded by this
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long used;
+    private long pooledBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> pool = new HashMap<>();
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim(0);
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // Held by chunks
+    synchronized long getUsed() {
+        return used;
+    }
+
+    // Kept for reuse
+    synchronized long getPooled() {
+        return pooledBytes;
+    }
+
+    // Returns null if the buffer is full
+    ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (used + capacity > maxBytes) {
+                return null;
+            }
+            ArrayDeque<ByteBuffer> pooled = pool.get(capacity);
+            buffer = null == pooled ? null : pooled.poll();
+            if (null != buffer) {
+                pooledBytes -= capacity;
+            } else {
+                trim(capacity);
+            }
+            used += capacity;
+        }
+        if (null == buffer) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        used -= capacity;
+        // otherwise left to the garbage collector, which frees its memory
+        if (used + pooledBytes + capacity > maxBytes) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> pooled = pool.get(capacity);
+        if (null == pooled) {
+            pooled = new ArrayDeque<>();
+            pool.put(capacity, pooled);
+        }
+        if (pooled.size() < MAX_POOLED_PER_SIZE) {
+            pooled.offer(buffer);
+            pooledBytes += capacity;
+        }
+    }
+
+    // Drops kept buffers until there is room for the given number of bytes more
+    private void trim(long needed) {
+        Iterator<ArrayDeque<ByteBuffer>> sizes = pool.values().iterator();
+        while (used + pooledBytes + needed > maxBytes && sizes.hasNext()) {
+            ArrayDeque<ByteBuffer> pooled = sizes.next();
+            while (used + pooledBytes + needed > maxBytes && !pooled.isEmpty()) {
+                pooledBytes -= pooled.poll().capacity();
+            }
+            if (pooled.isEmpty()) {
+                sizes.remove();
+            }
+        }
+    }
+}
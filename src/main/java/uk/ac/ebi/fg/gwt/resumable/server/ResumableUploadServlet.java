@@ -17,6 +17,10 @@
 
 package uk.ac.ebi.fg.gwt.resumable.server;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.http.HttpServlet;
@@ -24,64 +28,544 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @MultipartConfig
 public class ResumableUploadServlet extends HttpServlet {
 
+    private final static long serialVersionUID = 1L;
+
     public final static String RESUMABLE_CHUNK_NUMBER           = "resumableChunkNumber";
     public final static String RESUMABLE_CHUNK_SIZE             = "resumableChunkSize";
     public final static String RESUMABLE_CURRENT_CHUNK_SIZE     = "resumableCurrentChunkSize";
     public final static String RESUMABLE_TOTAL_SIZE             = "resumableTotalSize";
+    public final static String RESUMABLE_TOTAL_CHUNKS           = "resumableTotalChunks";
     public final static String RESUMABLE_IDENTIFIER             = "resumableIdentifier";
     public final static String RESUMABLE_FILENAME               = "resumableFilename";
     public final static String RESUMABLE_RELATIVE_PATH          = "resumableRelativePath";
+    public final static String RESUMABLE_MANIFEST               = "resumableManifest";
+    public final static String RESUMABLE_BATCH                  = "resumableBatch";
+    public final static String RESUMABLE_CHUNK_CHECKSUM         = "resumableChunkChecksum";
+    public final static String RESUMABLE_METRICS                = "resumableMetrics";
+    public final static String RESUMABLE_DEDUPLICATE            = "resumableDeduplicate";
+    public final static String RESUMABLE_CHUNK_SIZE_ADVICE      = "resumableChunkSizeAdvice";
+    public final static String RESUMABLE_FILE_DIGEST            = "resumableFileDigest";
+
+    public final static String INIT_ASYNC_UPLOAD                = "asyncUpload";
+    public final static String INIT_ASYNC_TIMEOUT               = "asyncTimeout";
+    public final static String INIT_IO_THREADS                  = "ioThreads";
+    public final static String INIT_DIGEST_ALGORITHM            = "digestAlgorithm";
+    public final static String INIT_COMPLETION_LISTENERS        = "completionListeners";
+    public final static String INIT_STREAMING_MULTIPART         = "streamingMultipart";
+    public final static String INIT_MAX_IN_FLIGHT               = "maxInFlight";
+    public final static String INIT_MAX_IN_FLIGHT_PER_UPLOAD    = "maxInFlightPerUpload";
+    public final static String INIT_MAX_IN_FLIGHT_PER_CLIENT    = "maxInFlightPerClient";
+    public final static String INIT_MAX_BYTES_PER_SECOND        = "maxBytesPerSecond";
+    public final static String INIT_MAX_CLIENT_BYTES_PER_SECOND = "maxClientBytesPerSecond";
+    public final static String INIT_JMX_METRICS                 = "jmxMetrics";
+    public final static String INIT_METRICS_ENDPOINT            = "metricsEndpoint";
+    public final static String INIT_ALLOCATION_MODE             = "allocationMode";
+    public final static String INIT_DURABILITY                  = "durability";
+    public final static String INIT_GROUP_COMMIT_INTERVAL       = "groupCommitInterval";
+    public final static String INIT_ADAPTIVE_CHUNK_SIZE         = "adaptiveChunkSize";
+    public final static String INIT_MIN_CHUNK_SIZE              = "minChunkSize";
+    public final static String INIT_MAX_CHUNK_SIZE              = "maxChunkSize";
+    public final static String INIT_TARGET_CHUNK_TIME           = "targetChunkTime";
+
+    // recommended chunk size for the client's next files, on chunk responses
+    public final static String CHUNK_SIZE_HEADER                = "X-Resumable-Chunk-Size";
+    // URL encoded resumableIdentifier on chunk requests, so that the upload is known before the body is read
+    public final static String IDENTIFIER_HEADER                = "X-Resumable-Identifier";
 
-    private final static String RESPONSE_UPLOADED               = "Uploaded.";
-    private final static String RESPONSE_ALL_FINISHED           = "All finished.";
-    private final static String RESPONSE_INVALID_REQUEST        = "Invalid request parameters.";
+    final static String RESPONSE_UPLOADED                       = "Uploaded.";
+    final static String RESPONSE_ALL_FINISHED                   = "All finished.";
+    final static String RESPONSE_INVALID_REQUEST                = "Invalid request parameters.";
+
+    private final static long DEFAULT_ASYNC_TIMEOUT             = 300000L;
+    private final static int MAX_BATCH_SIZE                     = 256;
+    private final static int MAX_FIELD_LENGTH                   = 8192;
+    private final static int SC_INSUFFICIENT_STORAGE            = 507;
 
     private final static String RESUMABLE_FILE_CHUNK            = "file";
     private final static String RESUMABLE_ENCODING              = "UTF-8";
+    private final static String CONTENT_ENCODING                = "Content-Encoding";
 
     private UploadStorage storage;
+    // whether storage is the default one, created here rather than set
+    private boolean defaultStorage;
 
-    public ResumableUploadServlet() {
-        setStorage(new SimpleUploadStorageImpl());
-    }
+    private boolean asyncUpload;
+    private boolean streamingMultipart;
+    private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+    private ExecutorService ioExecutor;
+    private final BufferPool buffers = new BufferPool();
+    private final AdmissionController admission = new AdmissionController();
+    private final ChunkSizeAdvisor advisor = new ChunkSizeAdvisor();
+    private boolean adaptiveChunkSize;
+    private UploadMetrics metrics = new UploadMetrics();
+    private boolean metricsEndpoint;
+    private ObjectName metricsName;
 
+    // A default storage created meanwhile is closed; a storage that was set is left to whoever set it
     public void setStorage(UploadStorage storage) {
+        UploadStorage previous = this.storage;
+        boolean created = defaultStorage;
         this.storage = storage;
+        defaultStorage = false;
+        if (created && previous instanceof Closeable) {
+            try {
+                ((Closeable) previous).close();
+            } catch (IOException x) {
+                // nothing more can be done about it
+            }
+        }
+    }
+
+    public void addCompletionListener(UploadCompletionListener listener) {
+        getStorage().addCompletionListener(listener);
     }
 
+    // Only creates the default storage, with its threads, once it is needed
+    private UploadStorage getStorage() {
+        if (null == storage) {
+            storage = new SimpleUploadStorageImpl();
+            defaultStorage = true;
+        }
+        return storage;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    public ChunkSizeAdvisor getChunkSizeAdvisor() {
+        return advisor;
+    }
+
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void init() throws ServletException {
+        asyncUpload = Boolean.parseBoolean(getInitParameter(INIT_ASYNC_UPLOAD));
+        streamingMultipart = Boolean.parseBoolean(getInitParameter(INIT_STREAMING_MULTIPART));
+        admission.setMaxInFlight(parseInt(getInitParameter(INIT_MAX_IN_FLIGHT), 0));
+        admission.setMaxInFlightPerUpload(parseInt(getInitParameter(INIT_MAX_IN_FLIGHT_PER_UPLOAD), 0));
+        admission.setMaxInFlightPerClient(parseInt(getInitParameter(INIT_MAX_IN_FLIGHT_PER_CLIENT), 0));
+        admission.setMaxBytesPerSecond(parseLong(getInitParameter(INIT_MAX_BYTES_PER_SECOND), 0));
+        admission.setMaxClientBytesPerSecond(parseLong(getInitParameter(INIT_MAX_CLIENT_BYTES_PER_SECOND), 0));
+        asyncTimeout = parseLong(getInitParameter(INIT_ASYNC_TIMEOUT), DEFAULT_ASYNC_TIMEOUT);
+        adaptiveChunkSize = Boolean.parseBoolean(getInitParameter(INIT_ADAPTIVE_CHUNK_SIZE));
+        advisor.setMinChunkSize(parseInt(getInitParameter(INIT_MIN_CHUNK_SIZE), ChunkSizeAdvisor.DEFAULT_MIN_CHUNK_SIZE));
+        advisor.setMaxChunkSize(parseInt(getInitParameter(INIT_MAX_CHUNK_SIZE), ChunkSizeAdvisor.DEFAULT_MAX_CHUNK_SIZE));
+        advisor.setTargetChunkTime(parseLong(getInitParameter(INIT_TARGET_CHUNK_TIME), ChunkSizeAdvisor.DEFAULT_TARGET_CHUNK_TIME));
+        if (asyncUpload) {
+            ioExecutor = Executors.newFixedThreadPool(
+                    parseInt(getInitParameter(INIT_IO_THREADS), Runtime.getRuntime().availableProcessors()),
+                    new DaemonThreadFactory("resumable-upload-io"));
+        }
+        UploadStorage storage = getStorage();
+        if (storage instanceof ConfigurableUploadStorage) {
+            try {
+                ((ConfigurableUploadStorage) storage).configure(getServletConfig());
+            } catch (IllegalArgumentException x) {
+                throw new ServletException(x);
+            }
+            metrics = ((ConfigurableUploadStorage) storage).getMetrics();
+        }
+        metrics.admission = admission;
+        metricsEndpoint = Boolean.parseBoolean(getInitParameter(INIT_METRICS_ENDPOINT));
+        if (!"false".equals(getInitParameter(INIT_JMX_METRICS))) {
+            registerMetrics();
+        }
+        String listeners = getInitParameter(INIT_COMPLETION_LISTENERS);
+        if (null != listeners) {
+            for (String className : listeners.split("[,\\s]+")) {
+                if (!className.isEmpty()) {
+                    addCompletionListener(newCompletionListener(className));
+                }
+            }
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName("uk.ac.ebi.fg.gwt.resumable:type=UploadMetrics,context="
+                    + ObjectName.quote(getServletContext().getContextPath()) + ",name=" + ObjectName.quote(getServletName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException x) {
+            log("Unable to register upload metrics", x);
+        }
+    }
+
+    private UploadCompletionListener newCompletionListener(String className) throws ServletException {
+        try {
+            return Class.forName(className, true, Thread.currentThread().getContextClassLoader())
+                    .asSubclass(UploadCompletionListener.class).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException x) {
+            throw new ServletException("Unable to create completion listener " + className, x);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (null != metricsName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException x) {
+                log("Unable to unregister upload metrics", x);
+            }
+        }
+        if (null != ioExecutor) {
+            ioExecutor.shutdown();
+        }
+        if (storage instanceof Closeable) {
+            try {
+                ((Closeable) storage).close();
+            } catch (IOException x) {
+                log("Unable to close upload storage", x);
+            }
+        }
+        super.destroy();
+    }
+
+    // An upload that does not fit gets a 507 from whichever request first asks about it, one that the
+    // storage has no room for at the moment a 503
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        try {
+            super.service(request, response);
+        } catch (InvalidRequestException x) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
+        } catch (InsufficientStorageException x) {
+            response.sendError(SC_INSUFFICIENT_STORAGE, x.getMessage());
+        } catch (OverloadedException x) {
+            sendOverloaded(response, x);
+        }
+    }
+
+    // Requests are admitted before anything but the headers has been read, overloaded ones get a 503
+    // with Retry-After, which resumable.js treats as retryable
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         request.setCharacterEncoding(RESUMABLE_ENCODING);
 
+        AdmissionController.Permit permit;
+        try {
+            permit = admission.admit(request.getRemoteAddr(), request.getContentLengthLong());
+        } catch (OverloadedException x) {
+            sendOverloaded(response, x);
+            return;
+        }
+        if (adaptiveChunkSize) {
+            adviseChunkSize(request, response);
+        }
+        long start = System.nanoTime();
+        boolean completed = false;
+        boolean overloaded = false;
+        try {
+            doAdmittedPost(request, response, permit);
+            completed = true;
+        } catch (OverloadedException x) {
+            overloaded = true;
+            sendOverloaded(response, x);
+        } finally {
+            // an async upload releases its own permit when it is done
+            if (!request.isAsyncStarted()) {
+                permit.release();
+                if (!overloaded) {
+                    recordChunkRequest(request, start, completed && response.getStatus() < 400);
+                }
+            } else {
+                recordAsyncChunkRequest(request, start);
+            }
+        }
+    }
+
+    private void adviseChunkSize(HttpServletRequest request, HttpServletResponse response) {
+        int chunkSize = advisor.advise(request.getRemoteAddr());
+        if (chunkSize > 0) {
+            response.setHeader(CHUNK_SIZE_HEADER, String.valueOf(chunkSize));
+        }
+    }
+
+    // Requests turned away for load say nothing about the client's link
+    private void recordChunkRequest(HttpServletRequest request, long start, boolean stored) {
+        advisor.record(request.getRemoteAddr(), request.getContentLengthLong(), System.nanoTime() - start, stored);
+    }
+
+    private void recordAsyncChunkRequest(final HttpServletRequest request, final long start) {
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                HttpServletResponse response = (HttpServletResponse) event.getSuppliedResponse();
+                recordChunkRequest(request, start, response.getStatus() < 400);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                recordChunkRequest(request, start, false);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                recordChunkRequest(request, start, false);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    private static void sendOverloaded(HttpServletResponse response, OverloadedException x) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(x.getRetryAfter()));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, x.getMessage());
+    }
+
+    private void doAdmittedPost(HttpServletRequest request, HttpServletResponse response,
+                                AdmissionController.Permit permit) throws ServletException, IOException {
+        String encoding = request.getHeader(CONTENT_ENCODING);
+        // the container's part handling cannot see through a compressed multipart body
+        if (!ContentDecoding.isSupported(encoding)
+                || (ContentDecoding.isEncoded(encoding) && isMultipart(request) && !streamingMultipart)) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported content encoding " + encoding);
+            return;
+        }
+        // the per-upload limit applies before any of the body is read if the request names its upload in
+        // the header or the query string, and otherwise once the chunk's fields have been read
+        String uploadId = getRequestIdentifier(request);
+        if (null != uploadId) {
+            permit.attach(uploadId);
+        }
+        if (streamingMultipart && isMultipart(request)) {
+            doStreamingPost(request, response, permit);
+            return;
+        }
+        if (isMultipart(request) && null != request.getPart(RESUMABLE_BATCH)) {
+            doBatchPost(request, response, permit);
+            return;
+        }
+
         FileChunkInfo info = buildChunkInfo(request);
         if (!info.isValid()) {
-            throw new ServletException(RESPONSE_INVALID_REQUEST);
+            throw new InvalidRequestException();
+        }
+        attach(permit, info);
+
+        // non-blocking reads hand over raw body bytes, so compressed chunks take the blocking path
+        if (asyncUpload && request.isAsyncSupported() && isOctetStream(request) && !ContentDecoding.isEncoded(encoding)) {
+            if (request.getContentLength() != info.currentChunkSize) {
+                throw new InvalidRequestException();
+            }
+            ChunkWriter writer;
+            try {
+                writer = storage.openChunk(info);
+            } catch (ChunkInFlightException x) {
+                response.sendError(HttpServletResponse.SC_CONFLICT, x.getMessage());
+                return;
+            }
+            if (null != writer) {
+                new AsyncChunkUpload(request.startAsync(), info, writer, storage, ioExecutor, buffers, permit)
+                        .start(asyncTimeout);
+                return;
+            }
         }
 
         if (!storage.hasChunk(info)) {
-            try (InputStream is = isMultipart(request) ?
-                    request.getPart(RESUMABLE_FILE_CHUNK).getInputStream() : request.getInputStream()) {
-                long length = isMultipart(request) ?
-                        request.getPart(RESUMABLE_FILE_CHUNK).getSize() : request.getContentLength();
+            Part part = isMultipart(request) ? request.getPart(RESUMABLE_FILE_CHUNK) : null;
+            boolean encoded = null == part && ContentDecoding.isEncoded(encoding);
+            ContentDecoding.CountingStream body = encoded ? new ContentDecoding.CountingStream(request.getInputStream()) : null;
+            try (InputStream is = null != part ? part.getInputStream()
+                    : encoded ? ContentDecoding.decode(encoding, body, info.currentChunkSize) : request.getInputStream()) {
+                // a compressed chunk is checked against its decoded length as it is read
+                long length = null != part ? part.getSize() : encoded ? info.currentChunkSize : request.getContentLength();
 
                 if (length != info.currentChunkSize) {
-                    throw new ServletException(RESPONSE_INVALID_REQUEST);
+                    throw new InvalidRequestException();
                 }
 
                 storage.storeChunk(info, is, length);
+                if (encoded) {
+                    metrics.chunkDecoded(body.count, length);
+                }
+            } catch (ChecksumMismatchException | ChunkInFlightException x) {
+                // a conflict makes resumable.js send the chunk again
+                response.sendError(HttpServletResponse.SC_CONFLICT, x.getMessage());
+                return;
             }
             if (storage.hasAllChunks(info)) {
                 response.getWriter().print(RESPONSE_ALL_FINISHED);
             } else {
                 response.getWriter().print(RESPONSE_UPLOADED);
             }
+        } else {
+            metrics.duplicateChunks.increment();
+        }
+    }
+
+    // Chunk parameters and file parts are suffixed with the chunk's index in the batch, e.g. "file.0";
+    // the response has one "<index> <status> <message>" line per chunk
+    protected void doBatchPost(HttpServletRequest request, HttpServletResponse response,
+                               AdmissionController.Permit permit) throws ServletException, IOException {
+        Map<String, String> fields = new HashMap<>();
+        Map<String, Part> files = new HashMap<>();
+        for (Part part : request.getParts()) {
+            if (null == part.getSubmittedFileName()) {
+                fields.put(part.getName(), partToString(part));
+            } else {
+                files.put(part.getName(), part);
+            }
+        }
+
+        int count = parseInt(fields.get(RESUMABLE_BATCH), -1);
+        if (count < 1 || count > MAX_BATCH_SIZE) {
+            throw new InvalidRequestException();
+        }
+
+        String[] results = new String[count];
+        List<ChunkUpload> batch = new ArrayList<>(count);
+        List<Integer> indexes = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                FileChunkInfo info = buildChunkInfo(fields, "." + i);
+                Part file = files.get(RESUMABLE_FILE_CHUNK + "." + i);
+                if (!info.isValid() || null == file || file.getSize() != info.currentChunkSize) {
+                    results[i] = HttpServletResponse.SC_BAD_REQUEST + " " + RESPONSE_INVALID_REQUEST;
+                } else {
+                    // a batch counts against the upload of its first chunk
+                    permit.attach(info.id);
+                    batch.add(new ChunkUpload(info, file.getInputStream(), file.getSize()));
+                    indexes.add(i);
+                }
+            }
+            storage.storeChunks(batch);
+        } finally {
+            for (ChunkUpload chunk : batch) {
+                chunk.stream.close();
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            results[indexes.get(i)] = batchResult(batch.get(i));
+        }
+        writeBatchResults(response, results);
+    }
+
+    private static String batchResult(ChunkUpload chunk) {
+        if (chunk.failure instanceof ChecksumMismatchException || chunk.failure instanceof ChunkInFlightException) {
+            return HttpServletResponse.SC_CONFLICT + " " + chunk.failure.getMessage();
+        } else if (chunk.failure instanceof OverloadedException) {
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE + " " + chunk.failure.getMessage();
+        } else if (chunk.failure instanceof InsufficientStorageException) {
+            return SC_INSUFFICIENT_STORAGE + " " + chunk.failure.getMessage();
+        } else if (null != chunk.failure) {
+            return HttpServletResponse.SC_INTERNAL_SERVER_ERROR + " " + chunk.failure.getMessage();
+        }
+        return HttpServletResponse.SC_OK + " " + (chunk.complete ? RESPONSE_ALL_FINISHED : RESPONSE_UPLOADED);
+    }
+
+    private static void writeBatchResults(HttpServletResponse response, String[] results) throws IOException {
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        for (int i = 0; i < results.length; i++) {
+            writer.print(i + " " + (null != results[i] ?
+                    results[i] : HttpServletResponse.SC_BAD_REQUEST + " " + RESPONSE_INVALID_REQUEST) + "\n");
+        }
+    }
+
+    // Parses the body as it arrives instead of through the container's part handling, so the chunk
+    // is copied into storage without being spooled first. Fields must come before their file part,
+    // which is how resumable.js and the batching client build their forms.
+    protected void doStreamingPost(HttpServletRequest request, HttpServletResponse response,
+                                   AdmissionController.Permit permit) throws ServletException, IOException {
+        String boundary = MultipartStream.getBoundary(request.getContentType());
+        if (null == boundary) {
+            throw new InvalidRequestException();
+        }
+        String encoding = request.getHeader(CONTENT_ENCODING);
+        ContentDecoding.CountingStream body = new ContentDecoding.CountingStream(request.getInputStream());
+        ContentDecoding.CountingStream decoded = new ContentDecoding.CountingStream(ContentDecoding.decode(encoding, body));
+        MultipartStream multipart = new MultipartStream(decoded, boundary);
+        Map<String, String> fields = new HashMap<>();
+        String[] results = null;
+        String message = null;
+
+        while (multipart.nextPart()) {
+            String name = multipart.getName();
+            if (null == multipart.getFileName()) {
+                fields.put(name, multipart.readString(MAX_FIELD_LENGTH));
+                if (RESUMABLE_BATCH.equals(name)) {
+                    int count = parseInt(fields.get(RESUMABLE_BATCH), -1);
+                    if (count < 1 || count > MAX_BATCH_SIZE) {
+                        throw new InvalidRequestException();
+                    }
+                    results = new String[count];
+                }
+            } else if (null != results && null != name && name.startsWith(RESUMABLE_FILE_CHUNK + ".")) {
+                int i = parseInt(name.substring(RESUMABLE_FILE_CHUNK.length() + 1), -1);
+                if (i < 0 || i >= results.length) {
+                    continue;
+                }
+                FileChunkInfo info = buildChunkInfo(fields, "." + i);
+                if (!info.isValid()) {
+                    results[i] = HttpServletResponse.SC_BAD_REQUEST + " " + RESPONSE_INVALID_REQUEST;
+                    continue;
+                }
+                permit.attach(info.id);
+                ChunkUpload chunk = new ChunkUpload(info, multipart.getPartStream(info.currentChunkSize),
+                        info.currentChunkSize);
+                storage.storeChunks(Collections.singletonList(chunk));
+                results[i] = batchResult(chunk);
+            } else if (null == results && RESUMABLE_FILE_CHUNK.equals(name)) {
+                FileChunkInfo info = buildChunkInfo(fields, "");
+                if (!info.isValid()) {
+                    throw new InvalidRequestException();
+                }
+                attach(permit, info);
+                if (storage.hasChunk(info)) {
+                    metrics.duplicateChunks.increment();
+                    message = "";
+                    continue;
+                }
+                try {
+                    storage.storeChunk(info, multipart.getPartStream(info.currentChunkSize), info.currentChunkSize);
+                } catch (ChecksumMismatchException | ChunkInFlightException x) {
+                    response.sendError(HttpServletResponse.SC_CONFLICT, x.getMessage());
+                    return;
+                }
+                message = storage.hasAllChunks(info) ? RESPONSE_ALL_FINISHED : RESPONSE_UPLOADED;
+            }
+        }
+
+        if (ContentDecoding.isEncoded(encoding)) {
+            metrics.chunkDecoded(body.count, decoded.count);
+        }
+
+        if (null != results) {
+            writeBatchResults(response, results);
+        } else if (null != message) {
+            response.getWriter().print(message);
+        } else {
+            throw new InvalidRequestException();
         }
     }
 
@@ -89,12 +573,52 @@ public class ResumableUploadServlet extends HttpServlet {
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         request.setCharacterEncoding(RESUMABLE_ENCODING);
 
+        if (metricsEndpoint && Boolean.parseBoolean(request.getParameter(RESUMABLE_METRICS))) {
+            response.setContentType("text/plain; version=0.0.4");
+            metrics.writeText(response.getWriter());
+            return;
+        }
+
         FileChunkInfo info = buildChunkInfo(request);
+        if (Boolean.parseBoolean(getParam(request, RESUMABLE_MANIFEST))) {
+            if (!info.isValidFile()) {
+                throw new InvalidRequestException();
+            }
+            response.setContentType("text/plain");
+            response.getWriter().print(Base64.getEncoder().encodeToString(storage.getChunkManifest(info)));
+            return;
+        }
+        // pre-flight before a file is cut into chunks: an upload under way keeps its chunk size, a new one
+        // gets the size recommended for the client, if any
+        if (Boolean.parseBoolean(getParam(request, RESUMABLE_CHUNK_SIZE_ADVICE))) {
+            int chunkSize = info.isValidFile() ? storage.getUploadChunkSize(info) : 0;
+            if (0 == chunkSize && adaptiveChunkSize) {
+                chunkSize = advisor.advise(request.getRemoteAddr());
+            }
+            if (chunkSize > 0) {
+                response.setContentType("text/plain");
+                response.getWriter().print(chunkSize);
+            } else {
+                response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            }
+            return;
+        }
+        // pre-flight with the digest of the whole file, which finishes the upload if the content is known
+        if (Boolean.parseBoolean(getParam(request, RESUMABLE_DEDUPLICATE))) {
+            if (!info.isValidFile() || null == info.fileDigest) {
+                throw new InvalidRequestException();
+            }
+            if (storage.deduplicate(info, info.fileDigest)) {
+                response.getWriter().print(RESPONSE_ALL_FINISHED);
+            } else {
+                response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            }
+            return;
+        }
         if (!info.isValid()) {
-            throw new ServletException(RESPONSE_INVALID_REQUEST);
+            throw new InvalidRequestException();
         }
 
-
         if (storage.hasChunk(info)) {
             response.getWriter().print(RESPONSE_UPLOADED);
         } else {
@@ -109,9 +633,29 @@ public class ResumableUploadServlet extends HttpServlet {
         info.chunkSize = parseInt(getParam(request, RESUMABLE_CHUNK_SIZE), -1);
         info.currentChunkSize = parseInt(getParam(request, RESUMABLE_CURRENT_CHUNK_SIZE), -1);
         info.fileSize = parseLong(getParam(request, RESUMABLE_TOTAL_SIZE), -1);
+        info.totalChunks = parseInt(getParam(request, RESUMABLE_TOTAL_CHUNKS), 0);
         info.id = nullToEmpty(getParam(request, RESUMABLE_IDENTIFIER));
         info.fileName = nullToEmpty(getParam(request, RESUMABLE_FILENAME));
         info.relativePath = nullToEmpty(getParam(request, RESUMABLE_RELATIVE_PATH));
+        info.checksum = getParam(request, RESUMABLE_CHUNK_CHECKSUM);
+        info.fileDigest = getParam(request, RESUMABLE_FILE_DIGEST);
+
+        return info;
+    }
+
+    protected static FileChunkInfo buildChunkInfo(Map<String, String> fields, String suffix) {
+        FileChunkInfo info = new FileChunkInfo();
+
+        info.chunkNumber = parseInt(fields.get(RESUMABLE_CHUNK_NUMBER + suffix), -1);
+        info.chunkSize = parseInt(fields.get(RESUMABLE_CHUNK_SIZE + suffix), -1);
+        info.currentChunkSize = parseInt(fields.get(RESUMABLE_CURRENT_CHUNK_SIZE + suffix), -1);
+        info.fileSize = parseLong(fields.get(RESUMABLE_TOTAL_SIZE + suffix), -1);
+        info.totalChunks = parseInt(fields.get(RESUMABLE_TOTAL_CHUNKS + suffix), 0);
+        info.id = nullToEmpty(fields.get(RESUMABLE_IDENTIFIER + suffix));
+        info.fileName = nullToEmpty(fields.get(RESUMABLE_FILENAME + suffix));
+        info.relativePath = nullToEmpty(fields.get(RESUMABLE_RELATIVE_PATH + suffix));
+        info.checksum = fields.get(RESUMABLE_CHUNK_CHECKSUM + suffix);
+        info.fileDigest = fields.get(RESUMABLE_FILE_DIGEST + suffix);
 
         return info;
     }
@@ -121,6 +665,48 @@ public class ResumableUploadServlet extends HttpServlet {
         return null != contentType && contentType.startsWith("multipart");
     }
 
+    // A request for a single chunk that named its upload up front has to stick to it
+    private static void attach(AdmissionController.Permit permit, FileChunkInfo info)
+            throws OverloadedException, InvalidRequestException {
+        String uploadId = permit.getUploadId();
+        if (null != uploadId && !uploadId.equals(info.id)) {
+            throw new InvalidRequestException();
+        }
+        permit.attach(info.id);
+    }
+
+    // The upload the request names in the header or the query string, which can be read without touching
+    // the body; null if it names none
+    private static String getRequestIdentifier(HttpServletRequest request) throws InvalidRequestException {
+        try {
+            String header = request.getHeader(IDENTIFIER_HEADER);
+            if (null != header && !header.isEmpty()) {
+                return URLDecoder.decode(header, RESUMABLE_ENCODING);
+            }
+            String query = request.getQueryString();
+            if (null != query) {
+                for (String param : query.split("&")) {
+                    int separator = param.indexOf('=');
+                    if (separator > 0 && RESUMABLE_IDENTIFIER.equals(
+                            URLDecoder.decode(param.substring(0, separator), RESUMABLE_ENCODING))) {
+                        String uploadId = URLDecoder.decode(param.substring(separator + 1), RESUMABLE_ENCODING);
+                        return uploadId.isEmpty() ? null : uploadId;
+                    }
+                }
+            }
+            return null;
+        } catch (UnsupportedEncodingException | IllegalArgumentException x) {
+            throw new InvalidRequestException();
+        }
+    }
+
+    // Chunk bytes are the whole request body and all parameters are in the query string
+    private static boolean isOctetStream(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return null == contentType
+                || !(contentType.startsWith("multipart") || contentType.startsWith("application/x-www-form-urlencoded"));
+    }
+
     private static String partToString(Part part) throws IOException {
 
         BufferedReader br;
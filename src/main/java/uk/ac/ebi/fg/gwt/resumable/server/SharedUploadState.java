@@ -0,0 +1,51 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+// Chunk state and finalization ownership of uploads, shared by every node storing them; see
+// ClusteredUploadStorageImpl. Uploads are identified by their resumableIdentifier.
+public interface SharedUploadState {
+
+    // Records the chunk as stored, once its bytes are durable in the shared upload directory
+    void addChunk(String uploadId, int chunkNumber) throws IOException;
+
+    boolean hasChunk(String uploadId, int chunkNumber) throws IOException;
+
+    // Chunk numbers are the bit indexes
+    BitSet getChunks(String uploadId) throws IOException;
+
+    // Makes the node the only one finalizing the upload, unless another node holds a claim younger than the
+    // lease or the upload is already complete
+    boolean claimFinalization(String uploadId, String nodeId, long lease) throws IOException;
+
+    void releaseFinalization(String uploadId, String nodeId) throws IOException;
+
+    void markComplete(String uploadId) throws IOException;
+
+    boolean isComplete(String uploadId) throws IOException;
+
+    // When anything was last recorded for the upload, 0 if nothing is known about it
+    long getLastActivity(String uploadId) throws IOException;
+
+    // Forgets completed uploads last active before the first time and unfinished ones last active before
+    // the second, which zero leaves alone
+    void purge(long completedBefore, long unfinishedBefore) throws IOException;
+}
@@ -17,21 +17,59 @@
 
 package uk.ac.ebi.fg.gwt.resumable.server;
 
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
-import java.util.Collections;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-public class SimpleUploadStorageImpl implements UploadStorage {
+public class SimpleUploadStorageImpl extends AbstractUploadStorage {
+
+    private final static String UPLOAD_EXTENSION = ".upload";
+    private final static String DIGESTS_EXTENSION = ".digests";
+    private final static String ADOPT_EXTENSION = ".adopt";
+    // partial files live apart from the finished ones, so that whatever the reaper finds there is ours
+    private final static String PARTIAL_DIRECTORY = ".partial";
+    private final static int FULL_RETRY_AFTER = 5;
 
     private final String uploadDirectory;
+    private final String partialDirectory;
+
+    private final FileChannelCache channels = new FileChannelCache();
+
+    private volatile int maxLiveUploads = Integer.MAX_VALUE;
+    private volatile AllocationMode allocationMode = AllocationMode.SPARSE;
+    private volatile DurabilityMode durability = DurabilityMode.NONE;
+
+    private final AtomicLong reclaimedUploads = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    private final GroupCommitter committer = new GroupCommitter();
 
     public SimpleUploadStorageImpl() {
-        this.uploadDirectory = System.getProperty("java.io.tmpdir");
+        this(null);
     }
 
     public SimpleUploadStorageImpl(String uploadDirectory) {
@@ -40,105 +78,906 @@ public class SimpleUploadStorageImpl implements UploadStorage {
         } else {
             this.uploadDirectory = System.getProperty("java.io.tmpdir");
         }
+        this.partialDirectory = this.uploadDirectory + File.separator + PARTIAL_DIRECTORY;
+        File partials = new File(partialDirectory);
+        if (!partials.isDirectory() && partials.mkdir()) {
+            syncDirectory(this.uploadDirectory);
+        }
     }
 
     @Override
-    public boolean hasChunk(FileChunkInfo info) {
-        return getStorageInfo(info).hasChunk(info.chunkNumber);
+    public void configure(ServletConfig config) throws ServletException {
+        super.configure(config);
+        String allocationMode = config.getInitParameter(ResumableUploadServlet.INIT_ALLOCATION_MODE);
+        if (null != allocationMode) {
+            setAllocationMode(AllocationMode.valueOf(allocationMode.trim().toUpperCase()));
+        }
+        String durability = config.getInitParameter(ResumableUploadServlet.INIT_DURABILITY);
+        if (null != durability) {
+            setDurability(DurabilityMode.parse(durability));
+        }
+        String groupCommitInterval = config.getInitParameter(ResumableUploadServlet.INIT_GROUP_COMMIT_INTERVAL);
+        if (null != groupCommitInterval) {
+            setGroupCommitInterval(Long.parseLong(groupCommitInterval.trim()));
+        }
+    }
+
+    public String getUploadDirectory() {
+        return uploadDirectory;
+    }
+
+    public void setMaxOpenChannels(int maxOpenChannels) {
+        channels.setMaxOpenChannels(maxOpenChannels);
+    }
+
+    public void setChannelIdleTimeout(long idleTimeout) {
+        channels.setIdleTimeout(idleTimeout);
+    }
+
+    // Beyond this many uploads new ones are turned away as overloaded; the ones under way are never pushed
+    // out to make room
+    public void setMaxLiveUploads(int maxLiveUploads) {
+        this.maxLiveUploads = maxLiveUploads;
     }
 
+    public void setAllocationMode(AllocationMode allocationMode) {
+        this.allocationMode = allocationMode;
+    }
+
+    public AllocationMode getAllocationMode() {
+        return allocationMode;
+    }
+
+    // Chunks are only acknowledged, and recorded as stored, once they are as durable as this says
+    public void setDurability(DurabilityMode durability) {
+        this.durability = durability;
+    }
+
+    public DurabilityMode getDurability() {
+        return durability;
+    }
+
+    // How long a group commit waits for more chunks to sync along with the first
+    public void setGroupCommitInterval(long groupCommitInterval) {
+        committer.setInterval(groupCommitInterval);
+    }
+
+    // Space promised to preallocated uploads that has not been written yet
     @Override
-    public boolean hasAllChunks(FileChunkInfo info) {
-        return getStorageInfo(info).hasAllChunks(info);
+    public long getReservedBytes() {
+        return reservedBytes.get();
     }
 
     @Override
-    public void storeChunk(FileChunkInfo info, InputStream stream, long length) throws IOException {
-        FileStorageInfo storageInfo = getStorageInfo(info);
+    public int getLiveUploads() {
+        return storageMap.size();
+    }
+
+    // Whether the upload is known here, or has a partial file left from before a restart
+    boolean hasUpload(FileChunkInfo info) {
+        return storageMap.containsKey(info.id) || new File(getStorageFileLocation(info)).isFile();
+    }
+
+    // Where the partial file of the upload is kept
+    protected String getStorageFileLocation(FileChunkInfo info) {
+        return partialDirectory + File.separator + info.fileName + UPLOAD_EXTENSION;
+    }
 
+    boolean isLive(String fileId) {
+        return storageMap.containsKey(fileId);
+    }
+
+    public long getReclaimedUploads() {
+        return reclaimedUploads.get();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    @Override
+    public boolean hasChunk(FileChunkInfo info) throws IOException {
+        FileStorageInfo storageInfo = getStorageInfo(info);
         if (!storageInfo.hasChunk(info.chunkNumber)) {
-            try (RandomAccessFile raf = new RandomAccessFile(storageInfo.storageFileLocation, "rw")) {
+            refresh(storageInfo);
+        }
+        return storageInfo.hasChunk(info.chunkNumber);
+    }
+
+    @Override
+    public boolean hasAllChunks(FileChunkInfo info) throws IOException {
+        FileStorageInfo storageInfo = getStorageInfo(info);
+        if (!storageInfo.hasAllChunks()) {
+            refresh(storageInfo);
+        }
+        if (!storageInfo.hasAllChunks() && storageInfo.chunks.isFull()) {
+            // retries a finalization that failed earlier, e.g. on a rename
+            finalizeUpload(storageInfo, info);
+        }
+        return storageInfo.hasAllChunks();
+    }
+
+    @Override
+    public byte[] getChunkManifest(FileChunkInfo info) throws IOException {
+        return getStorageInfo(info).chunks.toByteArray();
+    }
+
+    @Override
+    public String getFileDigest(FileChunkInfo info) throws IOException {
+        FileDigester digester = getStorageInfo(info).digester;
+        byte[] digest = null == digester ? null : digester.getResult();
+        return null == digest ? null : ChunkChecksum.toHex(digest);
+    }
+
+    @Override
+    public int getUploadChunkSize(FileChunkInfo info) throws IOException {
+        FileStorageInfo storageInfo = storageMap.get(info.id);
+        return null == storageInfo ? 0 : storageInfo.info.chunkSize;
+    }
+
+    // Nothing is indexed by content here, see DeduplicatingUploadStorageImpl
+    @Override
+    public boolean deduplicate(FileChunkInfo info, String digest) throws IOException {
+        return false;
+    }
+
+    @Override
+    void storeChunk(FileChunkInfo info, InputStream stream, long length, BufferPool.PooledBuffer buffer)
+            throws IOException {
+        long start = System.nanoTime();
+        FileStorageInfo storageInfo = getChunkStorageInfo(info);
+        if (!claimChunk(storageInfo.chunks, storageInfo.inFlight, info)) {
+            return;
+        }
+
+        UploadMetrics metrics = getMetrics();
+        boolean stored = false;
+        try {
+            reserveOnce(storageInfo, info);
+            ChunkChecksum checksum = startChecksum(storageInfo, info);
+            boolean verified = false;
+            FileChannelCache.Handle handle = acquirePartial(storageInfo);
+            try {
+                long written = buffer.transfer(stream, handle.channel, (info.chunkNumber - 1) * (long) info.chunkSize,
+                        length, checksum);
+                metrics.networkReadTime.record(buffer.readNanos);
+                metrics.diskWriteTime.record(buffer.writeNanos);
+                if (written != length) {
+                    throw new IOException("Chunk " + info.chunkNumber + " of " + info.id + " ended after "
+                            + written + " of " + length + " bytes");
+                }
+                if (null != checksum) {
+                    checksum.verify(info.checksum);
+                }
+                makeDurable(storageInfo, handle.channel);
+                verified = true;
+            } finally {
+                channels.release(handle);
+                if (null != checksum) {
+                    storageInfo.digester.release(verified);
+                }
+            }
+            chunkStored(storageInfo, info, checksum);
+            stored = true;
+        } finally {
+            storageInfo.releaseChunk(info.chunkNumber);
+            if (!stored) {
+                metrics.chunkErrors.increment();
+            }
+        }
+        metrics.chunkStored(length, System.nanoTime() - start);
+        finalizeUpload(storageInfo, info);
+    }
+
+    @Override
+    public ChunkWriter openChunk(FileChunkInfo info) throws IOException {
+        FileStorageInfo storageInfo = getChunkStorageInfo(info);
+        if (!claimChunk(storageInfo.chunks, storageInfo.inFlight, info)) {
+            return null;
+        }
+
+        try {
+            reserveOnce(storageInfo, info);
+            return new ChannelChunkWriter(storageInfo, info, acquirePartial(storageInfo));
+        } catch (IOException | RuntimeException x) {
+            storageInfo.releaseChunk(info.chunkNumber);
+            throw x;
+        }
+    }
+
+    // Only the first write of an upload creates its file; a later one fails rather than bring back a file
+    // that finalization or the reaper has moved away meanwhile
+    private FileChannelCache.Handle acquirePartial(FileStorageInfo storageInfo) throws IOException {
+        FileChannelCache.Handle handle = channels.acquire(storageInfo.storageFileLocation, !storageInfo.created);
+        storageInfo.created = true;
+        return handle;
+    }
+
+    // Runs with the chunk written and its channel still held, before the chunk counts as stored
+    private void makeDurable(FileStorageInfo storageInfo, FileChannel channel) throws IOException {
+        DurabilityMode durability = this.durability;
+        if (DurabilityMode.NONE == durability) {
+            return;
+        }
+        UploadMetrics metrics = getMetrics();
+        long start = System.nanoTime();
+        if (DurabilityMode.PER_CHUNK == durability) {
+            channel.force(false);
+            metrics.syncs.increment();
+        } else {
+            committer.commit(channel, metrics);
+        }
+        // the partial file itself has to survive too
+        if (!storageInfo.directorySynced) {
+            syncDirectory(partialDirectory);
+            storageInfo.directorySynced = true;
+        }
+        metrics.syncWaitTime.record(System.nanoTime() - start);
+    }
+
+    // Makes a created or renamed file's directory entry durable; not every platform can open a directory
+    private static void syncDirectory(String directory) {
+        try (FileChannel channel = FileChannel.open(Paths.get(directory), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException x) {
+            // nothing more can be done about it
+        }
+    }
 
-                //Seek to offset
-                raf.seek((info.chunkNumber - 1) * (long) info.chunkSize);
+    // Preallocated uploads get their space promised by the first chunk that is posted, not by a probe
+    private void reserveOnce(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        if (storageInfo.reserved || AllocationMode.PREALLOCATE != allocationMode) {
+            return;
+        }
+        synchronized (storageInfo.setUp) {
+            if (!storageInfo.reserved) {
+                reserve(storageInfo, info);
+                storageInfo.reserved = true;
+            }
+        }
+    }
+
+    private static long chunkStart(FileChunkInfo info, int chunkNumber) {
+        return (chunkNumber - 1) * (long) info.chunkSize;
+    }
+
+    // The last chunk takes whatever is left of the file
+    private static long chunkEnd(FileChunkInfo info, int chunkNumber) {
+        return chunkNumber >= info.getTotalChunks() ? info.fileSize : chunkNumber * (long) info.chunkSize;
+    }
+
+    // Refuses the upload unless the chunks it does not have yet fit next to what is promised to others,
+    // then gives its file the full size. Only the length is set, which file systems keep sparse: the
+    // space is accounted for here rather than written out.
+    private void reserve(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        long needed = 0;
+        for (int chunkNumber = 1; chunkNumber <= storageInfo.chunks.size(); chunkNumber++) {
+            if (!storageInfo.hasChunk(chunkNumber)) {
+                needed += chunkEnd(info, chunkNumber) - chunkStart(info, chunkNumber);
+            }
+        }
+        synchronized (reservedBytes) {
+            long available = new File(uploadDirectory).getUsableSpace() - reservedBytes.get();
+            if (needed > available) {
+                throw new InsufficientStorageException("Upload of " + info.fileName + " needs " + needed
+                        + " bytes but only " + Math.max(0, available) + " are available");
+            }
+            reservedBytes.addAndGet(needed);
+        }
+        storageInfo.unallocated.set(needed);
+        try (RandomAccessFile file = new RandomAccessFile(storageInfo.storageFileLocation, "rw")) {
+            if (file.length() < info.fileSize) {
+                file.setLength(info.fileSize);
+            }
+        } catch (IOException x) {
+            unreserve(storageInfo, Long.MAX_VALUE);
+            throw x;
+        }
+    }
+
+    private void unreserve(FileStorageInfo storageInfo, long bytes) {
+        long unallocated;
+        long released;
+        do {
+            unallocated = storageInfo.unallocated.get();
+            released = Math.min(unallocated, bytes);
+        } while (!storageInfo.unallocated.compareAndSet(unallocated, unallocated - released));
+        reservedBytes.addAndGet(-released);
+    }
+
+    // Every chunk gets a CRC32 and a digest that are kept in a sidecar file, and the whole-file digest is
+    // written next to the completed file
+    private ChunkChecksum startChecksum(FileStorageInfo storageInfo, FileChunkInfo info) {
+        if (null == storageInfo.digester) {
+            return null;
+        }
+        return startChecksum(storageInfo.digestAlgorithm, storageInfo.digester.claim(info.chunkNumber));
+    }
+
+    private void chunkStored(FileStorageInfo storageInfo, FileChunkInfo info, ChunkChecksum checksum)
+            throws IOException {
+        if (null != checksum) {
+            String location = storageInfo.storageFileLocation + DIGESTS_EXTENSION;
+            FileChannelCache.Handle handle = channels.acquire(location, !storageInfo.digestsCreated);
+            storageInfo.digestsCreated = true;
+            try {
+                ByteBuffer record = checksum.getRecord();
+                long position = (info.chunkNumber - 1) * (long) checksum.getRecordSize();
+                while (record.hasRemaining()) {
+                    position += handle.channel.write(record, position);
+                }
+            } finally {
+                channels.release(handle);
+            }
+        }
+        chunkWritten(storageInfo, info);
+        storageInfo.addChunk(info.chunkNumber);
+        // written now, so no longer just promised
+        unreserve(storageInfo, chunkEnd(info, info.chunkNumber) - chunkStart(info, info.chunkNumber));
+        if (null != storageInfo.digester) {
+            storageInfo.digester.catchUp(storageInfo.chunks, info, channels, storageInfo.storageFileLocation, buffers);
+        }
+    }
+
+    // Picks up chunks that other nodes sharing the upload have stored
+    private void refresh(FileStorageInfo storageInfo) throws IOException {
+        if (refreshChunks(storageInfo) && null != storageInfo.digester) {
+            storageInfo.digester.catchUp(storageInfo.chunks, storageInfo.info, channels,
+                    storageInfo.storageFileLocation, buffers);
+        }
+    }
+
+    // Finalizes uploads whose last chunks were stored by other nodes, and retries failed finalizations
+    private void recheck() {
+        for (FileStorageInfo storageInfo : storageMap.values()) {
+            try {
+                if (storageInfo.ready && !storageInfo.hasAllChunks()) {
+                    refresh(storageInfo);
+                    finalizeUpload(storageInfo, storageInfo.info);
+                }
+            } catch (IOException | RuntimeException x) {
+                // tried again on the next run
+            }
+        }
+    }
+
+    // Runs once per upload, on whichever thread first sees every chunk stored
+    private void finalizeUpload(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+        if (!storageInfo.chunks.isFull()) {
+            refresh(storageInfo);
+        }
+        if (!storageInfo.startFinalizing()) {
+            return;
+        }
+        String fileLocation = storageInfo.getFileLocation();
+        boolean claimed = false;
+        boolean finalized = false;
+        try {
+            // with the upload shared, another node may be finalizing it
+            if (!claimFinalization(storageInfo)) {
+                return;
+            }
+            claimed = true;
+            channels.retire(storageInfo.storageFileLocation);
+            File partial = new File(storageInfo.storageFileLocation);
+            // an earlier attempt may have got as far as the rename
+            if (partial.exists() ? !partial.renameTo(new File(fileLocation)) : !new File(fileLocation).exists()) {
+                throw new IOException("Unable to rename file " + storageInfo.storageFileLocation + " to " + storageInfo.fileName);
+            }
+            if (DurabilityMode.NONE != durability) {
+                syncDirectory(uploadDirectory);
+            }
+            if (null != storageInfo.digester) {
+                digestsCompleted(storageInfo, fileLocation);
+            }
+            uploadCompleted(storageInfo);
+            finalized = true;
+        } finally {
+            storageInfo.finishFinalizing(finalized);
+            if (claimed && !finalized) {
+                finalizationFailed(storageInfo);
+            }
+        }
+        byte[] digest = null == storageInfo.digester ? null : storageInfo.digester.getResult();
+        recordCompletion(storageInfo.info, new File(fileLocation), null == digest ? null : ChunkChecksum.toHex(digest),
+                storageInfo.createdAt);
+    }
 
-                long read = 0;
-                byte[] buffer = new byte[Math.min(info.chunkSize, 16384)];
-                while (read < length) {
-                    int r = stream.read(buffer);
-                    if (r < 0) {
-                        break;
+    // Completes an upload with a file that is already on disk instead of its chunks, e.g. an earlier
+    // upload with the same content. The file is hard linked where the file system allows it and copied
+    // otherwise. Returns false, leaving the upload as it was, if any of its chunks is being stored or
+    // the upload is being finalized.
+    protected boolean adoptUpload(FileChunkInfo info, File content, String digest) throws IOException {
+        FileStorageInfo storageInfo = getStorageInfo(info);
+        if (!storageInfo.startAdopting()) {
+            return storageInfo.hasAllChunks();
+        }
+        // holding every chunk that is not stored yet keeps writers away until the upload is complete
+        ChunkBitmap claimed = new ChunkBitmap(storageInfo.chunks.size());
+        String fileLocation = storageInfo.getFileLocation();
+        boolean adopted = false;
+        try {
+            boolean claimedAll = true;
+            for (int chunkNumber = 1; chunkNumber <= claimed.size() && claimedAll; chunkNumber++) {
+                if (storageInfo.claimChunk(chunkNumber)) {
+                    claimed.set(chunkNumber);
+                } else {
+                    claimedAll = storageInfo.hasChunk(chunkNumber);
+                }
+            }
+            if (claimedAll) {
+                // put in place under a name the reaper recognises, so that a crash leaves nothing behind
+                File adopting = new File(partialDirectory, storageInfo.fileName + ADOPT_EXTENSION + UPLOAD_EXTENSION);
+                linkOrCopy(content, adopting);
+                if (!adopting.renameTo(new File(fileLocation))) {
+                    delete(adopting);
+                    throw new IOException("Unable to rename file " + adopting + " to " + storageInfo.fileName);
+                }
+                if (DurabilityMode.NONE != durability) {
+                    syncDirectory(uploadDirectory);
+                }
+                channels.retire(storageInfo.storageFileLocation);
+                channels.retire(storageInfo.storageFileLocation + DIGESTS_EXTENSION);
+                delete(new File(storageInfo.storageFileLocation));
+                delete(new File(storageInfo.storageFileLocation + DIGESTS_EXTENSION));
+                if (null != storageInfo.digestAlgorithm && null != digest) {
+                    writeDigestFile(storageInfo, fileLocation, digest);
+                }
+                for (int chunkNumber = 1; chunkNumber <= claimed.size(); chunkNumber++) {
+                    storageInfo.addChunk(chunkNumber);
+                }
+                uploadCompleted(storageInfo);
+                adopted = true;
+            }
+        } finally {
+            for (int chunkNumber = 1; chunkNumber <= claimed.size(); chunkNumber++) {
+                if (claimed.get(chunkNumber)) {
+                    storageInfo.releaseChunk(chunkNumber);
+                }
+            }
+            storageInfo.finishFinalizing(adopted);
+        }
+        if (!adopted) {
+            // a chunk that completed the upload meanwhile could not finalize it
+            finalizeUpload(storageInfo, info);
+            return false;
+        }
+        UploadMetrics metrics = getMetrics();
+        metrics.uploadsDeduplicated.increment();
+        metrics.bytesDeduplicated.add(info.fileSize);
+        recordCompletion(storageInfo.info, new File(fileLocation), digest, storageInfo.createdAt);
+        return true;
+    }
+
+    private static void linkOrCopy(File content, File target) throws IOException {
+        delete(target);
+        try {
+            Files.createLink(target.toPath(), content.toPath());
+        } catch (UnsupportedOperationException | FileSystemException x) {
+            Files.copy(content.toPath(), target.toPath());
+        }
+    }
+
+    // Replaces the per-chunk sidecar with a checksum file in the format of md5sum and friends
+    private void digestsCompleted(FileStorageInfo storageInfo, String fileLocation) throws IOException {
+        String digestsLocation = storageInfo.storageFileLocation + DIGESTS_EXTENSION;
+        channels.retire(digestsLocation);
+        delete(new File(digestsLocation));
+
+        byte[] digest = storageInfo.digester.getResult();
+        if (null != digest) {
+            writeDigestFile(storageInfo, fileLocation, ChunkChecksum.toHex(digest));
+        }
+    }
+
+    private static void writeDigestFile(FileStorageInfo storageInfo, String fileLocation, String digest)
+            throws IOException {
+        String extension = "." + storageInfo.digestAlgorithm.toLowerCase().replace("-", "");
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(fileLocation + extension), StandardCharsets.UTF_8)) {
+            writer.write(digest + "  " + storageInfo.fileName + "\n");
+        }
+    }
+
+    @Override
+    void housekeeping() throws IOException {
+        channels.closeIdle();
+        recheck();
+        reap();
+    }
+
+    // Unfinished uploads idle for longer than the upload idle timeout are discarded along with their
+    // partial files, as are orphaned partial files in the .partial directory
+    public ReapReport reap() throws IOException {
+        ReapReport report = new ReapReport();
+        long now = System.currentTimeMillis();
+        long idleTimeout = getUploadIdleTimeout();
+
+        for (Map.Entry<String, FileStorageInfo> entry : storageMap.entrySet()) {
+            FileStorageInfo storageInfo = entry.getValue();
+            long idle = now - storageInfo.lastAccess;
+            if (!storageInfo.ready) {
+                continue;
+            }
+            if (storageInfo.hasAllChunks()) {
+                if (idle > FINISHED_RETENTION && storageMap.remove(entry.getKey(), storageInfo)) {
+                    report.finishedEvicted++;
+                }
+            } else if (idleTimeout > 0 && idle > idleTimeout) {
+                evict(entry.getKey(), storageInfo, idleTimeout, report);
+            }
+        }
+
+        if (idleTimeout > 0) {
+            deleteOrphans(now - idleTimeout, report);
+        }
+
+        reclaimedUploads.addAndGet(report.getEvicted() + report.orphansDeleted);
+        reclaimedBytes.addAndGet(report.bytesReclaimed);
+        return report;
+    }
+
+    // An upload with a chunk being written, or one that has been touched since it was found idle, is
+    // not abandoned after all
+    private void evict(String fileId, FileStorageInfo storageInfo, long idleTimeout, ReapReport report)
+            throws IOException {
+        if (storageInfo.inFlight.cardinality() > 0
+                || System.currentTimeMillis() - storageInfo.lastAccess <= idleTimeout) {
+            return;
+        }
+        if (storageMap.remove(fileId, storageInfo)) {
+            unreserve(storageInfo, Long.MAX_VALUE);
+            channels.retire(storageInfo.storageFileLocation);
+            channels.retire(storageInfo.storageFileLocation + DIGESTS_EXTENSION);
+            report.staleEvicted++;
+            if (isActiveElsewhere(storageInfo)) {
+                // only forgotten here
+                return;
+            }
+            report.bytesReclaimed += delete(new File(storageInfo.storageFileLocation));
+            report.bytesReclaimed += delete(new File(storageInfo.storageFileLocation + DIGESTS_EXTENSION));
+            report.bytesReclaimed += uploadDiscarded(storageInfo.storageFileLocation);
+        }
+    }
+
+    // Only looks at the partial directory, never at the upload directory itself, which may be shared
+    private void deleteOrphans(long modifiedBefore, ReapReport report) throws IOException {
+        File[] files = new File(partialDirectory).listFiles();
+        if (null == files) {
+            return;
+        }
+        Set<String> live = new HashSet<>();
+        for (FileStorageInfo storageInfo : storageMap.values()) {
+            live.add(storageInfo.storageFileLocation);
+        }
+        for (File file : files) {
+            String location = partialDirectory + File.separator + file.getName();
+            if (file.getName().endsWith(UPLOAD_EXTENSION) && file.isFile()
+                    && file.lastModified() < modifiedBefore && !live.contains(location)) {
+                channels.retire(location);
+                channels.retire(location + DIGESTS_EXTENSION);
+                report.orphansDeleted++;
+                report.bytesReclaimed += delete(file);
+                report.bytesReclaimed += delete(new File(location + DIGESTS_EXTENSION));
+                report.bytesReclaimed += uploadDiscarded(location);
+            }
+        }
+    }
+
+    // Returns the number of bytes freed
+    protected static long delete(File file) throws IOException {
+        long length = file.length();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete file " + file);
+        }
+        return length;
+    }
+
+    protected void storageInfoCreated(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+    }
+
+    protected void chunkWritten(FileStorageInfo storageInfo, FileChunkInfo info) throws IOException {
+    }
+
+    protected void uploadCompleted(FileStorageInfo storageInfo) throws IOException {
+    }
+
+    // Adds chunks stored by other nodes sharing the upload, returns true if that changed anything
+    protected boolean refreshChunks(FileStorageInfo storageInfo) throws IOException {
+        return false;
+    }
+
+    // Only one of the nodes sharing an upload may finalize it
+    protected boolean claimFinalization(FileStorageInfo storageInfo) throws IOException {
+        return true;
+    }
+
+    protected void finalizationFailed(FileStorageInfo storageInfo) throws IOException {
+    }
+
+    // Whether the files of an upload evicted here are still being written by other nodes
+    protected boolean isActiveElsewhere(FileStorageInfo storageInfo) throws IOException {
+        return false;
+    }
+
+    // Called once the partial file of an abandoned upload has been deleted, returns the number of bytes freed
+    protected long uploadDiscarded(String storageFileLocation) throws IOException {
+        return 0;
+    }
+
+    private class ChannelChunkWriter implements ChunkWriter {
+
+        private final FileStorageInfo storageInfo;
+        private final FileChunkInfo info;
+        private final FileChannelCache.Handle handle;
+        private final long position;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final long openedAt = System.nanoTime();
+        private final LongAdder writeNanos = new LongAdder();
+
+        ChannelChunkWriter(FileStorageInfo storageInfo, FileChunkInfo info, FileChannelCache.Handle handle) {
+            this.storageInfo = storageInfo;
+            this.info = info;
+            this.handle = handle;
+            this.position = (info.chunkNumber - 1) * (long) info.chunkSize;
+        }
+
+        @Override
+        public void write(ByteBuffer data, long offset) throws IOException {
+            long start = System.nanoTime();
+            while (data.hasRemaining()) {
+                offset += handle.channel.write(data, position + offset);
+            }
+            writeNanos.add(System.nanoTime() - start);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            UploadMetrics metrics = getMetrics();
+            boolean stored = false;
+            try {
+                commitClaimed();
+                stored = true;
+            } finally {
+                storageInfo.releaseChunk(info.chunkNumber);
+                if (!stored) {
+                    metrics.chunkErrors.increment();
+                }
+            }
+            metrics.diskWriteTime.record(writeNanos.sum());
+            metrics.chunkStored(info.currentChunkSize, System.nanoTime() - openedAt);
+            finalizeUpload(storageInfo, info);
+        }
+
+        private void commitClaimed() throws IOException {
+            // writes may have arrived in any order, so the checksum is taken from what reached the file
+            ChunkChecksum checksum = startChecksum(storageInfo, info);
+            boolean stored = false;
+            try {
+                if (null != checksum) {
+                    BufferPool.PooledBuffer buffer = buffers.acquire();
+                    try {
+                        buffer.readBack(handle.channel, position, info.currentChunkSize, checksum);
+                    } finally {
+                        buffers.release(buffer);
                     }
-                    raf.write(buffer, 0, r);
-                    read += r;
+                    checksum.verify(info.checksum);
+                }
+                makeDurable(storageInfo, handle.channel);
+                stored = true;
+            } finally {
+                channels.release(handle);
+                if (null != checksum) {
+                    storageInfo.digester.release(stored);
                 }
             }
-            storageInfo.addChunk(info.chunkNumber);
-            if (storageInfo.hasAllChunks(info)) {
-                if (!new File(storageInfo.storageFileLocation).renameTo(
-                        new File(storageInfo.storageFileLocation.replaceFirst("[.]upload$", "")))
-                        ) {
-                    throw new IOException("Unable to rename file " + storageInfo.storageFileLocation + " to " + storageInfo.fileName);
+            chunkStored(storageInfo, info, checksum);
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if (released.compareAndSet(false, true)) {
+                getMetrics().chunkErrors.increment();
+                try {
+                    channels.release(handle);
+                } finally {
+                    storageInfo.releaseChunk(info.chunkNumber);
                 }
             }
         }
     }
 
-    private static class FileStorageInfo {
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            committer.shutdown();
+            channels.closeAll();
+        }
+    }
+
+    protected static class FileStorageInfo {
+
+        private final static int RECEIVING = 0;
+        private final static int FINALIZING = 1;
+        private final static int COMPLETE = 2;
 
+        // the chunk that started the upload, for what all its chunks have in common
+        FileChunkInfo info;
         String fileName;
+        String fileLocation;
         String storageFileLocation;
-        boolean isComplete;
-        Set<Integer> chunks;
+        volatile long lastAccess;
+        ChunkBitmap chunks;
+        ChunkBitmap inFlight;
+        final AtomicInteger state = new AtomicInteger(RECEIVING);
+        String digestAlgorithm;
+        FileDigester digester;
+        final long createdAt = System.nanoTime();
+        // space promised to the upload that its chunks have not taken up yet
+        final AtomicLong unallocated = new AtomicLong();
+        volatile boolean reserved;
+        volatile boolean directorySynced;
+        // whether the partial and digests files have been created, see acquirePartial
+        volatile boolean created;
+        volatile boolean digestsCreated;
+        // set up, see SimpleUploadStorageImpl.setUp
+        volatile boolean ready;
+        final Object setUp = new Object();
 
-        public static FileStorageInfo build(String fileName, String uploadDirectory) {
-            FileStorageInfo info = new FileStorageInfo();
+        public static FileStorageInfo build(FileChunkInfo info, String uploadDirectory, String digestAlgorithm) {
+            FileStorageInfo storageInfo = new FileStorageInfo();
+
+            if (null != digestAlgorithm) {
+                storageInfo.digestAlgorithm = digestAlgorithm;
+                storageInfo.digester = new FileDigester(digestAlgorithm);
+            }
+            storageInfo.info = info;
+            storageInfo.fileName = info.fileName;
+            storageInfo.chunks = new ChunkBitmap(info.getTotalChunks());
+            storageInfo.inFlight = new ChunkBitmap(info.getTotalChunks());
+            storageInfo.fileLocation = uploadDirectory + File.separator + info.fileName;
+            storageInfo.storageFileLocation = uploadDirectory + File.separator + PARTIAL_DIRECTORY + File.separator
+                    + info.fileName + UPLOAD_EXTENSION;
+            storageInfo.lastAccess = System.currentTimeMillis();
+
+            return storageInfo;
+        }
 
-            info.fileName = fileName;
-            info.chunks = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
-            info.isComplete = false;
-            info.storageFileLocation = uploadDirectory + File.separator + fileName + ".upload";
+        // Where the file ends up once every chunk is in
+        public String getFileLocation() {
+            return fileLocation;
+        }
 
-            return info;
+        public boolean isValidChunk(int chunkNumber) {
+            return chunkNumber >= 1 && chunkNumber <= chunks.size();
         }
 
         public boolean hasChunk(int chunkNumber) {
-            return chunks.contains(chunkNumber);
+            return chunks.get(chunkNumber);
         }
 
         public void addChunk(int chunkNumber) {
-            chunks.add(chunkNumber);
+            chunks.set(chunkNumber);
         }
 
-        public boolean hasAllChunks(FileChunkInfo info) {
-            if (isComplete) {
-                return true;
-            }
-            int count = (int) Math.ceil(((double) info.fileSize) / ((double) info.chunkSize));
-            for (int i = 1; i < count; i++) {
-                if (!chunks.contains(i)) {
-                    return false;
-                }
-            }
-            isComplete = true;
-            return true;
+        // See AbstractUploadStorage.claim
+        boolean claimChunk(int chunkNumber) {
+            return claim(chunks, inFlight, chunkNumber);
+        }
+
+        void releaseChunk(int chunkNumber) {
+            inFlight.clear(chunkNumber);
+        }
+
+        boolean isReceiving() {
+            return RECEIVING == state.get();
+        }
+
+        boolean startFinalizing() {
+            return chunks.isFull() && state.compareAndSet(RECEIVING, FINALIZING);
+        }
+
+        // Like finalizing, but whatever chunks have arrived so far
+        boolean startAdopting() {
+            return state.compareAndSet(RECEIVING, FINALIZING);
+        }
+
+        // Another node has finalized the upload
+        boolean completedElsewhere() {
+            return chunks.isFull() && state.compareAndSet(RECEIVING, COMPLETE);
+        }
+
+        void finishFinalizing(boolean finalized) {
+            state.set(finalized ? COMPLETE : RECEIVING);
+        }
+
+        public boolean hasAllChunks() {
+            return COMPLETE == state.get();
         }
     }
 
-    private Map<String, FileStorageInfo> storageMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FileStorageInfo> storageMap = new ConcurrentHashMap<>();
+
+    private FileStorageInfo getChunkStorageInfo(FileChunkInfo info) throws IOException {
+        FileStorageInfo storageInfo = getStorageInfo(info);
+        if (!storageInfo.isValidChunk(info.chunkNumber)) {
+            throw new IllegalArgumentException("Chunk number " + info.chunkNumber + " is out of range");
+        }
+        return storageInfo;
+    }
 
-    private FileStorageInfo getStorageInfo(FileChunkInfo info) throws IllegalArgumentException {
-        if (!info.isValid()) {
+    private FileStorageInfo getStorageInfo(final FileChunkInfo info) throws IOException {
+        if (!info.isValidFile()) {
             throw new IllegalArgumentException("File chunk info is invalid");
         }
-        String fileId = info.id;
+        FileStorageInfo storageInfo;
+        do {
+            storageInfo = storageMap.get(info.id);
+            if (null == storageInfo) {
+                admitUpload(info);
+                // concurrent first chunks of an upload all get the same FileStorageInfo; it is only built
+                // here, anything that touches the disk happens in setUp, outside the map's locks
+                storageInfo = storageMap.computeIfAbsent(info.id, new Function<String, FileStorageInfo>() {
+                    @Override
+                    public FileStorageInfo apply(String fileId) {
+                        return FileStorageInfo.build(info, uploadDirectory, getDigestAlgorithm());
+                    }
+                });
+            }
+        } while (!setUp(storageInfo));
+        if (storageInfo.info.chunkSize != info.chunkSize || storageInfo.info.fileSize != info.fileSize) {
+            // chunk numbers only mean something with the chunks the upload was started with
+            throw new IllegalArgumentException("Upload " + info.id + " is in chunks of "
+                    + storageInfo.info.chunkSize + " bytes of a " + storageInfo.info.fileSize + " byte file");
+        }
+        storageInfo.lastAccess = System.currentTimeMillis();
+        return storageInfo;
+    }
 
-        if (!storageMap.containsKey(fileId)) {
-            FileStorageInfo storageInfo = FileStorageInfo.build(info.fileName, uploadDirectory);
-            storageMap.put(fileId, storageInfo);
-            return storageInfo;
+    // Finished uploads are only kept for late requests, so they make room before a new upload is refused
+    private void admitUpload(FileChunkInfo info) throws OverloadedException {
+        int maxLiveUploads = this.maxLiveUploads;
+        if (storageMap.size() < maxLiveUploads) {
+            return;
+        }
+        for (Map.Entry<String, FileStorageInfo> entry : storageMap.entrySet()) {
+            FileStorageInfo storageInfo = entry.getValue();
+            if (storageInfo.ready && storageInfo.hasAllChunks() && storageMap.remove(entry.getKey(), storageInfo)) {
+                reclaimedUploads.incrementAndGet();
+            }
+        }
+        if (storageMap.size() >= maxLiveUploads) {
+            throw new OverloadedException("Too many uploads in progress to start " + info.id, FULL_RETRY_AFTER);
         }
+    }
 
-        return storageMap.get(fileId);
+    // Runs once per upload, by the first request to get the upload's lock; the others wait for it. Returns
+    // false if the upload was dropped because that failed, or was evicted meanwhile, for the caller to
+    // start over with a new one.
+    private boolean setUp(FileStorageInfo storageInfo) throws IOException {
+        if (storageInfo.ready) {
+            return true;
+        }
+        synchronized (storageInfo.setUp) {
+            if (storageInfo.ready) {
+                return true;
+            }
+            if (storageMap.get(storageInfo.info.id) != storageInfo) {
+                return false;
+            }
+            try {
+                storageInfoCreated(storageInfo, storageInfo.info);
+            } catch (IOException | RuntimeException x) {
+                storageMap.remove(storageInfo.info.id, storageInfo);
+                throw x;
+            }
+            storageInfo.ready = true;
+        }
+        return true;
     }
 }
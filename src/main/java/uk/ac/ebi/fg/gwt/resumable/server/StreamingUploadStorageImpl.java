@@ -0,0 +1,666 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Hands uploads to an UploadSink as they arrive instead of assembling them in a file. Each chunk is read
+// into the reorder buffer, or spilled to disk once that is full, and written to the sink as soon as every
+// chunk before it has been, so with chunks arriving roughly in order most of them never touch the disk.
+// Completed uploads have no file, and nothing survives a restart: clients start such uploads over.
+public class StreamingUploadStorageImpl extends AbstractUploadStorage {
+
+    private final static String SPILL_PREFIX = "resumable-";
+    private final static String SPILL_EXTENSION = ".spill";
+
+    private final String spillDirectory;
+    private final UploadSink sink;
+
+    private final ReorderBuffer reorderBuffer = new ReorderBuffer();
+
+    private final ConcurrentMap<String, Stream> streams = new ConcurrentHashMap<>();
+
+    public StreamingUploadStorageImpl(UploadSink sink) {
+        this(null, sink);
+    }
+
+    public StreamingUploadStorageImpl(String spillDirectory, UploadSink sink) {
+        if (null != spillDirectory && new File(spillDirectory).isDirectory() && new File(spillDirectory).canWrite()) {
+            this.spillDirectory = spillDirectory;
+        } else {
+            this.spillDirectory = System.getProperty("java.io.tmpdir");
+        }
+        this.sink = sink;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    // Off-heap memory shared by all uploads for chunks waiting on earlier ones; chunks that do not fit
+    // are spilled to a file in the spill directory
+    public void setMaxReorderBytes(long maxReorderBytes) {
+        reorderBuffer.setMaxBytes(maxReorderBytes);
+    }
+
+    public long getMaxReorderBytes() {
+        return reorderBuffer.getMaxBytes();
+    }
+
+    public long getReorderBytes() {
+        return reorderBuffer.getUsed();
+    }
+
+    @Override
+    public int getLiveUploads() {
+        return streams.size();
+    }
+
+    // Chunks held back for earlier ones count as stored. Queries leave an upload they do not know alone,
+    // the sink is only opened for its first chunk.
+    @Override
+    public boolean hasChunk(FileChunkInfo info) throws IOException {
+        Stream stream = findStream(info);
+        return null != stream && stream.received.get(info.chunkNumber);
+    }
+
+    @Override
+    public boolean hasAllChunks(FileChunkInfo info) throws IOException {
+        Stream stream = findStream(info);
+        return null != stream && stream.isComplete();
+    }
+
+    @Override
+    public byte[] getChunkManifest(FileChunkInfo info) throws IOException {
+        Stream stream = findStream(info);
+        return (null != stream ? stream.received : new ChunkBitmap(info.getTotalChunks())).toByteArray();
+    }
+
+    @Override
+    public String getFileDigest(FileChunkInfo info) throws IOException {
+        Stream stream = findStream(info);
+        return null != stream && stream.isComplete() ? stream.digest : null;
+    }
+
+    @Override
+    public int getUploadChunkSize(FileChunkInfo info) throws IOException {
+        Stream stream = streams.get(info.id);
+        return null == stream ? 0 : stream.info.chunkSize;
+    }
+
+    // Nothing is kept to deduplicate against
+    @Override
+    public boolean deduplicate(FileChunkInfo info, String digest) throws IOException {
+        return false;
+    }
+
+    @Override
+    void storeChunk(FileChunkInfo info, InputStream data, long length, BufferPool.PooledBuffer buffer)
+            throws IOException {
+        long start = System.nanoTime();
+        Stream stream = getChunkStream(info);
+        if (!claimChunk(stream.received, stream.inFlight, info)) {
+            return;
+        }
+
+        UploadMetrics metrics = getMetrics();
+        Held held = null;
+        boolean stored = false;
+        try {
+            held = hold(stream, info, length);
+            ChunkChecksum checksum = startChecksum(getDigestAlgorithm(), null);
+            long written = held.fill(data, buffer, checksum);
+            metrics.networkReadTime.record(buffer.readNanos);
+            if (written != length) {
+                throw new IOException("Chunk " + info.chunkNumber + " of " + info.id + " ended after "
+                        + written + " of " + length + " bytes");
+            }
+            if (null != checksum) {
+                checksum.verify(info.checksum);
+            }
+            stored = true;
+        } finally {
+            if (!stored) {
+                if (null != held) {
+                    held.release();
+                }
+                stream.inFlight.clear(info.chunkNumber);
+                metrics.chunkErrors.increment();
+            }
+        }
+        chunkReceived(stream, held);
+        metrics.chunkStored(length, System.nanoTime() - start);
+        forward(stream);
+    }
+
+    @Override
+    public ChunkWriter openChunk(FileChunkInfo info) throws IOException {
+        Stream stream = getChunkStream(info);
+        if (!claimChunk(stream.received, stream.inFlight, info)) {
+            return null;
+        }
+
+        try {
+            return new HeldChunkWriter(stream, info, hold(stream, info, info.currentChunkSize));
+        } catch (IOException | RuntimeException x) {
+            stream.inFlight.clear(info.chunkNumber);
+            throw x;
+        }
+    }
+
+    // Reorder buffer if there is room in it, spill file otherwise
+    private Held hold(Stream stream, FileChunkInfo info, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Chunk " + info.chunkNumber + " of " + info.id + " is " + length + " bytes");
+        }
+        ByteBuffer buffer = reorderBuffer.allocate((int) length);
+        if (null != buffer) {
+            return new Held(info.chunkNumber, length, buffer);
+        }
+        getMetrics().bytesSpilled.add(length);
+        return new Held(stream, info.chunkNumber, length, stream.getSpillChannel());
+    }
+
+    private void chunkReceived(Stream stream, Held held) {
+        synchronized (stream) {
+            if (stream.isReceiving()) {
+                stream.held.put(held.chunkNumber, held);
+            } else {
+                held.release();
+            }
+        }
+        stream.received.set(held.chunkNumber);
+        stream.inFlight.clear(held.chunkNumber);
+    }
+
+    // Passes on the chunks that are next in line, one thread at a time; a chunk that comes in while
+    // another thread is forwarding is picked up by that thread before it lets go
+    private void forward(Stream stream) throws IOException {
+        while (true) {
+            Held next;
+            synchronized (stream) {
+                if (stream.forwarding || !stream.isReceiving()) {
+                    return;
+                }
+                next = stream.held.remove(stream.nextChunk);
+                if (null == next) {
+                    return;
+                }
+                stream.forwarding = true;
+            }
+            boolean forwarded = false;
+            boolean last = false;
+            try {
+                next.writeTo(stream.channel, stream.fileDigest, buffers);
+                forwarded = true;
+            } finally {
+                next.release();
+                synchronized (stream) {
+                    stream.forwarding = false;
+                    if (forwarded) {
+                        stream.nextChunk++;
+                        last = stream.nextChunk > stream.received.size();
+                    }
+                }
+                if (!forwarded) {
+                    discard(stream);
+                }
+            }
+            if (last) {
+                complete(stream);
+                return;
+            }
+        }
+    }
+
+    // Only the thread that moves the upload on from receiving closes the channel, takes the digest and
+    // reports the upload; until it is done the upload is neither receiving nor complete
+    private void complete(Stream stream) throws IOException {
+        if (!stream.finish(Stream.RECEIVING, Stream.COMPLETING)) {
+            return;
+        }
+        try {
+            stream.channel.close();
+        } catch (IOException x) {
+            discard(stream, Stream.COMPLETING);
+            throw x;
+        }
+        stream.digest = null == stream.fileDigest ? null : ChunkChecksum.toHex(stream.fileDigest.digest());
+        stream.finish(Stream.COMPLETING, Stream.COMPLETE);
+        stream.deleteSpill();
+        recordCompletion(stream.info, null, stream.digest, stream.createdAt);
+    }
+
+    // Drops an upload that can no longer be completed, letting the client start it over
+    private boolean discard(Stream stream) {
+        return discard(stream, Stream.RECEIVING);
+    }
+
+    // An upload that has moved on from the given state meanwhile is left as it is
+    private boolean discard(Stream stream, int from) {
+        if (!stream.finish(from, Stream.DISCARDED)) {
+            return false;
+        }
+        streams.remove(stream.info.id, stream);
+        synchronized (stream) {
+            for (Held held : stream.held.values()) {
+                held.release();
+            }
+            stream.held.clear();
+        }
+        stream.deleteSpill();
+        if (!stream.ready) {
+            // the sink never opened it
+            return true;
+        }
+        try {
+            sink.discarded(stream.info, stream.channel);
+        } catch (RuntimeException x) {
+            // the channel is closed regardless
+        }
+        try {
+            stream.channel.close();
+        } catch (IOException x) {
+            // nothing more can be done about it
+        }
+        return true;
+    }
+
+    @Override
+    void housekeeping() {
+        reap();
+    }
+
+    public ReapReport reap() {
+        ReapReport report = new ReapReport();
+        long now = System.currentTimeMillis();
+        long idleTimeout = getUploadIdleTimeout();
+
+        for (Map.Entry<String, Stream> entry : streams.entrySet()) {
+            Stream stream = entry.getValue();
+            long idle = now - stream.lastAccess;
+            if (!stream.ready) {
+                continue;
+            }
+            if (stream.isComplete()) {
+                if (idle > FINISHED_RETENTION && streams.remove(entry.getKey(), stream)) {
+                    report.finishedEvicted++;
+                }
+            } else if (idleTimeout > 0 && idle > idleTimeout && !stream.isBusy() && discard(stream)) {
+                report.staleEvicted++;
+            }
+        }
+        return report;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        for (Stream stream : streams.values()) {
+            if (!stream.isComplete()) {
+                discard(stream);
+            }
+        }
+    }
+
+    private Stream getChunkStream(FileChunkInfo info) throws IOException {
+        Stream stream = getStream(info);
+        if (info.chunkNumber < 1 || info.chunkNumber > stream.received.size()) {
+            throw new IllegalArgumentException("Chunk number " + info.chunkNumber + " is out of range");
+        }
+        if (!stream.isReceiving()) {
+            throw new IOException("Upload of " + info.id + " has been discarded");
+        }
+        return stream;
+    }
+
+    private Stream getStream(final FileChunkInfo info) throws IOException {
+        Stream stream;
+        do {
+            stream = findStream(info);
+            if (null == stream) {
+                // concurrent first chunks of an upload all get the same Stream; the sink is only opened in
+                // setUp, outside the map's locks
+                stream = streams.computeIfAbsent(info.id, new Function<String, Stream>() {
+                    @Override
+                    public Stream apply(String fileId) {
+                        return new Stream(info, getDigestAlgorithm());
+                    }
+                });
+                stream.lastAccess = System.currentTimeMillis();
+            }
+        } while (!setUp(stream));
+        return stream;
+    }
+
+    // Opens the sink once per upload, by the first request to get the upload's lock; the others wait for
+    // it. Returns false if the upload was dropped because that failed, or was discarded meanwhile, for the
+    // caller to start over with a new one.
+    private boolean setUp(Stream stream) throws IOException {
+        if (stream.ready) {
+            return true;
+        }
+        synchronized (stream.setUp) {
+            if (stream.ready) {
+                return true;
+            }
+            if (streams.get(stream.info.id) != stream) {
+                return false;
+            }
+            try {
+                stream.channel = sink.open(stream.info);
+            } catch (IOException | RuntimeException x) {
+                streams.remove(stream.info.id, stream);
+                throw x;
+            }
+            stream.ready = true;
+        }
+        return true;
+    }
+
+    // Returns null if the upload is not under way here
+    private Stream findStream(FileChunkInfo info) {
+        if (!info.isValidFile()) {
+            throw new IllegalArgumentException("File chunk info is invalid");
+        }
+        Stream stream = streams.get(info.id);
+        if (null == stream) {
+            return null;
+        }
+        if (stream.info.chunkSize != info.chunkSize || stream.info.fileSize != info.fileSize) {
+            throw new IllegalArgumentException("Upload " + info.id + " is in chunks of "
+                    + stream.info.chunkSize + " bytes of a " + stream.info.fileSize + " byte file");
+        }
+        stream.lastAccess = System.currentTimeMillis();
+        return stream;
+    }
+
+    // One upload on its way to the sink; held and nextChunk are guarded by the instance
+    private class Stream {
+
+        private final static int RECEIVING = 0;
+        private final static int COMPLETING = 1;
+        private final static int COMPLETE = 2;
+        private final static int DISCARDED = 3;
+
+        final FileChunkInfo info;
+        // set up, see StreamingUploadStorageImpl.setUp
+        WritableByteChannel channel;
+        volatile boolean ready;
+        final Object setUp = new Object();
+        final MessageDigest fileDigest;
+        final ChunkBitmap received;
+        final ChunkBitmap inFlight;
+        final Map<Integer, Held> held = new HashMap<>();
+        final AtomicInteger state = new AtomicInteger(RECEIVING);
+        final long createdAt = System.nanoTime();
+        volatile long lastAccess;
+        volatile String digest;
+        int nextChunk = 1;
+        boolean forwarding;
+        private File spill;
+        private FileChannel spillChannel;
+
+        Stream(FileChunkInfo info, String digestAlgorithm) {
+            this.info = info;
+            this.fileDigest = null == digestAlgorithm ? null : ChunkChecksum.newDigest(digestAlgorithm);
+            this.received = new ChunkBitmap(info.getTotalChunks());
+            this.inFlight = new ChunkBitmap(info.getTotalChunks());
+        }
+
+        boolean isReceiving() {
+            return RECEIVING == state.get();
+        }
+
+        boolean isComplete() {
+            return COMPLETE == state.get();
+        }
+
+        synchronized boolean isBusy() {
+            return forwarding || inFlight.cardinality() > 0;
+        }
+
+        // Only one caller gets to move the upload on from a state
+        boolean finish(int from, int outcome) {
+            return state.compareAndSet(from, outcome);
+        }
+
+        // Chunks are spilled at their offset in the file, so the spill file is sparse
+        synchronized FileChannel getSpillChannel() throws IOException {
+            if (null == spillChannel) {
+                spill = File.createTempFile(SPILL_PREFIX, SPILL_EXTENSION, new File(spillDirectory));
+                spillChannel = FileChannel.open(spill.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return spillChannel;
+        }
+
+        synchronized void deleteSpill() {
+            if (null == spill) {
+                return;
+            }
+            try {
+                spillChannel.close();
+            } catch (IOException x) {
+                // deleted anyway
+            }
+            if (!spill.delete()) {
+                spill.deleteOnExit();
+            }
+            spill = null;
+            spillChannel = null;
+        }
+    }
+
+    // A received chunk waiting for its turn, in the reorder buffer or in the spill file
+    private class Held {
+
+        final int chunkNumber;
+        final long length;
+        private final ByteBuffer buffer;
+        private final FileChannel spillChannel;
+        private final long spillPosition;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Held(int chunkNumber, long length, ByteBuffer buffer) {
+            this.chunkNumber = chunkNumber;
+            this.length = length;
+            this.buffer = buffer;
+            this.spillChannel = null;
+            this.spillPosition = 0;
+        }
+
+        Held(Stream stream, int chunkNumber, long length, FileChannel spillChannel) {
+            this.chunkNumber = chunkNumber;
+            this.length = length;
+            this.buffer = null;
+            this.spillChannel = spillChannel;
+            this.spillPosition = (chunkNumber - 1) * (long) stream.info.chunkSize;
+        }
+
+        // Returns the number of bytes read, which is short of length if the stream ended early
+        long fill(InputStream stream, BufferPool.PooledBuffer pooled, ChunkChecksum checksum) throws IOException {
+            long read = 0;
+            pooled.readNanos = 0;
+            while (read < length) {
+                long start = System.nanoTime();
+                int r = stream.read(pooled.array, 0, (int) Math.min(pooled.array.length, length - read));
+                pooled.readNanos += System.nanoTime() - start;
+                if (r < 0) {
+                    break;
+                }
+                if (null != checksum) {
+                    checksum.update(pooled.array, 0, r);
+                }
+                write(ByteBuffer.wrap(pooled.array, 0, r), read);
+                read += r;
+            }
+            return read;
+        }
+
+        void write(ByteBuffer data, long offset) throws IOException {
+            if (offset < 0 || offset + data.remaining() > length) {
+                throw new IOException("Write of " + data.remaining() + " bytes at " + offset
+                        + " is outside chunk " + chunkNumber + " of " + length + " bytes");
+            }
+            if (null != buffer) {
+                ByteBuffer target = buffer.duplicate();
+                target.position((int) offset);
+                target.put(data);
+            } else {
+                while (data.hasRemaining()) {
+                    offset += spillChannel.write(data, spillPosition + offset);
+                }
+            }
+        }
+
+        // Feeds the chunk as it was written through the checksum
+        void readBack(BufferPool.PooledBuffer pooled, ChunkChecksum checksum) throws IOException {
+            if (null == buffer) {
+                pooled.readBack(spillChannel, spillPosition, length, checksum);
+                return;
+            }
+            ByteBuffer data = buffer.duplicate();
+            data.position(0);
+            data.limit((int) length);
+            while (data.hasRemaining()) {
+                int r = Math.min(pooled.array.length, data.remaining());
+                data.get(pooled.array, 0, r);
+                checksum.update(pooled.array, 0, r);
+            }
+        }
+
+        void writeTo(WritableByteChannel channel, MessageDigest fileDigest, BufferPool pool) throws IOException {
+            if (null != buffer) {
+                ByteBuffer data = buffer.duplicate();
+                data.position(0);
+                data.limit((int) length);
+                if (null != fileDigest) {
+                    fileDigest.update(data.duplicate());
+                }
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                return;
+            }
+            BufferPool.PooledBuffer pooled = pool.acquire();
+            try {
+                ByteBuffer data = pooled.direct;
+                long read = 0;
+                while (read < length) {
+                    data.clear();
+                    data.limit((int) Math.min(data.capacity(), length - read));
+                    int r = spillChannel.read(data, spillPosition + read);
+                    if (r < 0) {
+                        throw new IOException("Unexpected end of spill file at " + (spillPosition + read));
+                    }
+                    data.flip();
+                    if (null != fileDigest) {
+                        fileDigest.update(data.duplicate());
+                    }
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    read += r;
+                }
+            } finally {
+                pool.release(pooled);
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true) && null != buffer) {
+                reorderBuffer.release(buffer);
+            }
+        }
+    }
+
+    private class HeldChunkWriter implements ChunkWriter {
+
+        private final Stream stream;
+        private final FileChunkInfo info;
+        private final Held held;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final long openedAt = System.nanoTime();
+
+        HeldChunkWriter(Stream stream, FileChunkInfo info, Held held) {
+            this.stream = stream;
+            this.info = info;
+            this.held = held;
+        }
+
+        @Override
+        public void write(ByteBuffer data, long offset) throws IOException {
+            held.write(data, offset);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            UploadMetrics metrics = getMetrics();
+            boolean stored = false;
+            try {
+                // writes may have arrived in any order, so the checksum is taken from what was held
+                ChunkChecksum checksum = startChecksum(getDigestAlgorithm(), null);
+                if (null != checksum) {
+                    BufferPool.PooledBuffer buffer = buffers.acquire();
+                    try {
+                        held.readBack(buffer, checksum);
+                    } finally {
+                        buffers.release(buffer);
+                    }
+                    checksum.verify(info.checksum);
+                }
+                stored = true;
+            } finally {
+                if (!stored) {
+                    held.release();
+                    stream.inFlight.clear(held.chunkNumber);
+                    metrics.chunkErrors.increment();
+                }
+            }
+            chunkReceived(stream, held);
+            metrics.chunkStored(held.length, System.nanoTime() - openedAt);
+            forward(stream);
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if (released.compareAndSet(false, true)) {
+                getMetrics().chunkErrors.increment();
+                held.release();
+                stream.inFlight.clear(held.chunkNumber);
+            }
+        }
+    }
+}
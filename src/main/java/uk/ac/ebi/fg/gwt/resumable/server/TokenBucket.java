@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.util.concurrent.TimeUnit;
+
+// Refills at the given rate up to one second's worth of bytes. A request is let through whenever the
+// bucket holds enough for it, or is full, so a chunk larger than a second's worth is not starved;
+// it may take the bucket below zero.
+class TokenBucket {
+
+    private final long bytesPerSecond;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    // Returns 0 if the bucket has room for the bytes, otherwise how many nanoseconds until it will
+    synchronized long available(long bytes) {
+        refill();
+        double needed = Math.min(bytes, bytesPerSecond);
+        if (tokens >= needed) {
+            return 0;
+        }
+        return (long) Math.ceil((needed - tokens) * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+    // Takes the bytes whether there are enough or not
+    synchronized void take(long bytes) {
+        refill();
+        tokens -= bytes;
+    }
+
+    synchronized boolean isFull() {
+        refill();
+        return tokens >= bytesPerSecond;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - refilledAt) * (double) bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters are striped and histograms are a single array increment, so recording stays off the
+// profile; all the aggregation happens when the metrics are read
+public class UploadMetrics implements UploadMetricsMBean {
+
+    private final static long RATE_WINDOW = TimeUnit.SECONDS.toNanos(10);
+
+    final LongAdder chunksStored = new LongAdder();
+    final LongAdder bytesStored = new LongAdder();
+    final LongAdder duplicateChunks = new LongAdder();
+    final LongAdder chunkErrors = new LongAdder();
+    final LongAdder uploadsCompleted = new LongAdder();
+    // completed uploads the completion listeners never saw, for a full completion queue
+    final LongAdder completionsDropped = new LongAdder();
+    final LongAdder uploadsDeduplicated = new LongAdder();
+    final LongAdder bytesDeduplicated = new LongAdder();
+    // compressed request bodies, as received and once decoded
+    final LongAdder encodedBytesReceived = new LongAdder();
+    final LongAdder encodedBytesDecoded = new LongAdder();
+    final LongAdder syncs = new LongAdder();
+    // chunks that arrived ahead of their turn with the reorder buffer full
+    final LongAdder bytesSpilled = new LongAdder();
+
+    // nanoseconds
+    final LatencyHistogram chunkStoreTime = new LatencyHistogram();
+    final LatencyHistogram networkReadTime = new LatencyHistogram();
+    final LatencyHistogram diskWriteTime = new LatencyHistogram();
+    final LatencyHistogram completionLatency = new LatencyHistogram();
+    // how long chunks waited to be durable
+    final LatencyHistogram syncWaitTime = new LatencyHistogram();
+
+    // several when the storage is striped over volumes
+    final List<AbstractUploadStorage> storages = new CopyOnWriteArrayList<>();
+    volatile AdmissionController admission;
+
+    private final Rate chunkRate = new Rate();
+    private final Rate byteRate = new Rate();
+
+    void chunkStored(long bytes, long storeNanos) {
+        chunksStored.increment();
+        bytesStored.add(bytes);
+        chunkStoreTime.record(storeNanos);
+    }
+
+    void chunkDecoded(long received, long decoded) {
+        encodedBytesReceived.add(received);
+        encodedBytesDecoded.add(decoded);
+    }
+
+    @Override
+    public long getChunksStored() {
+        return chunksStored.sum();
+    }
+
+    @Override
+    public long getBytesStored() {
+        return bytesStored.sum();
+    }
+
+    @Override
+    public long getDuplicateChunks() {
+        return duplicateChunks.sum();
+    }
+
+    @Override
+    public long getChunkErrors() {
+        return chunkErrors.sum();
+    }
+
+    @Override
+    public long getUploadsCompleted() {
+        return uploadsCompleted.sum();
+    }
+
+    @Override
+    public long getCompletionsDropped() {
+        return completionsDropped.sum();
+    }
+
+    @Override
+    public long getUploadsDeduplicated() {
+        return uploadsDeduplicated.sum();
+    }
+
+    @Override
+    public long getBytesDeduplicated() {
+        return bytesDeduplicated.sum();
+    }
+
+    @Override
+    public long getEncodedBytesReceived() {
+        return encodedBytesReceived.sum();
+    }
+
+    @Override
+    public long getEncodedBytesDecoded() {
+        return encodedBytesDecoded.sum();
+    }
+
+    @Override
+    public long getReservedBytes() {
+        long reserved = 0;
+        for (AbstractUploadStorage storage : storages) {
+            reserved += storage.getReservedBytes();
+        }
+        return reserved;
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    @Override
+    public long getBytesSpilled() {
+        return bytesSpilled.sum();
+    }
+
+    @Override
+    public int getLiveUploads() {
+        int live = 0;
+        for (AbstractUploadStorage storage : storages) {
+            live += storage.getLiveUploads();
+        }
+        return live;
+    }
+
+    @Override
+    public int getChunksInFlight() {
+        AdmissionController admission = this.admission;
+        return null == admission ? 0 : admission.getInFlight();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        AdmissionController admission = this.admission;
+        return null == admission ? 0 : admission.getRejected();
+    }
+
+    @Override
+    public double getChunksPerSecond() {
+        return chunkRate.get(chunksStored.sum());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return byteRate.get(bytesStored.sum());
+    }
+
+    @Override
+    public long getChunkStoreTimeP50Micros() {
+        return micros(chunkStoreTime.getQuantile(0.5));
+    }
+
+    @Override
+    public long getChunkStoreTimeP99Micros() {
+        return micros(chunkStoreTime.getQuantile(0.99));
+    }
+
+    @Override
+    public long getChunkStoreTimeMaxMicros() {
+        return micros(chunkStoreTime.getMax());
+    }
+
+    @Override
+    public long getNetworkReadTimeP50Micros() {
+        return micros(networkReadTime.getQuantile(0.5));
+    }
+
+    @Override
+    public long getNetworkReadTimeP99Micros() {
+        return micros(networkReadTime.getQuantile(0.99));
+    }
+
+    @Override
+    public long getDiskWriteTimeP50Micros() {
+        return micros(diskWriteTime.getQuantile(0.5));
+    }
+
+    @Override
+    public long getDiskWriteTimeP99Micros() {
+        return micros(diskWriteTime.getQuantile(0.99));
+    }
+
+    @Override
+    public long getSyncWaitTimeP50Micros() {
+        return micros(syncWaitTime.getQuantile(0.5));
+    }
+
+    @Override
+    public long getSyncWaitTimeP99Micros() {
+        return micros(syncWaitTime.getQuantile(0.99));
+    }
+
+    @Override
+    public long getCompletionLatencyP50Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(completionLatency.getQuantile(0.5));
+    }
+
+    @Override
+    public long getCompletionLatencyP99Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(completionLatency.getQuantile(0.99));
+    }
+
+    // Prometheus text exposition format
+    public void writeText(PrintWriter writer) {
+        counter(writer, "resumable_chunks_stored_total", getChunksStored());
+        counter(writer, "resumable_bytes_stored_total", getBytesStored());
+        counter(writer, "resumable_duplicate_chunks_total", getDuplicateChunks());
+        counter(writer, "resumable_chunk_errors_total", getChunkErrors());
+        counter(writer, "resumable_uploads_completed_total", getUploadsCompleted());
+        counter(writer, "resumable_completions_dropped_total", getCompletionsDropped());
+        counter(writer, "resumable_uploads_deduplicated_total", getUploadsDeduplicated());
+        counter(writer, "resumable_bytes_deduplicated_total", getBytesDeduplicated());
+        counter(writer, "resumable_encoded_bytes_received_total", getEncodedBytesReceived());
+        counter(writer, "resumable_encoded_bytes_decoded_total", getEncodedBytesDecoded());
+        counter(writer, "resumable_syncs_total", getSyncs());
+        counter(writer, "resumable_bytes_spilled_total", getBytesSpilled());
+        counter(writer, "resumable_rejected_requests_total", getRejectedRequests());
+        gauge(writer, "resumable_live_uploads", getLiveUploads());
+        gauge(writer, "resumable_reserved_bytes", getReservedBytes());
+        gauge(writer, "resumable_chunks_in_flight", getChunksInFlight());
+        summary(writer, "resumable_chunk_store_seconds", chunkStoreTime);
+        summary(writer, "resumable_network_read_seconds", networkReadTime);
+        summary(writer, "resumable_disk_write_seconds", diskWriteTime);
+        summary(writer, "resumable_sync_wait_seconds", syncWaitTime);
+        summary(writer, "resumable_completion_latency_seconds", completionLatency);
+    }
+
+    private static void counter(PrintWriter writer, String name, long value) {
+        writer.print("# TYPE " + name + " counter\n" + name + " " + value + "\n");
+    }
+
+    private static void gauge(PrintWriter writer, String name, long value) {
+        writer.print("# TYPE " + name + " gauge\n" + name + " " + value + "\n");
+    }
+
+    private static void summary(PrintWriter writer, String name, LatencyHistogram histogram) {
+        writer.print("# TYPE " + name + " summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+            writer.print(name + "{quantile=\"" + quantile + "\"} " + seconds(histogram.getQuantile(quantile)) + "\n");
+        }
+        writer.print(name + "_sum " + seconds(histogram.getSum()) + "\n");
+        writer.print(name + "_count " + histogram.getCount() + "\n");
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    // Rate over the last complete window of at least ten seconds, rolled over when read
+    private static class Rate {
+
+        private long windowStart = System.nanoTime();
+        private long windowCount;
+        private double rate;
+
+        synchronized double get(long count) {
+            long now = System.nanoTime();
+            if (now - windowStart >= RATE_WINDOW) {
+                rate = (count - windowCount) * (double) TimeUnit.SECONDS.toNanos(1) / (now - windowStart);
+                windowStart = now;
+                windowCount = count;
+            }
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+public interface UploadMetricsMBean {
+
+    long getChunksStored();
+    long getBytesStored();
+    long getDuplicateChunks();
+    long getChunkErrors();
+    long getUploadsCompleted();
+    // completed uploads the completion listeners never saw, for a full completion queue
+    long getCompletionsDropped();
+    // uploads completed from content the storage already had, and the bytes they did not send
+    long getUploadsDeduplicated();
+    long getBytesDeduplicated();
+    // compressed request bodies, as received and once decoded
+    long getEncodedBytesReceived();
+    long getEncodedBytesDecoded();
+    // space promised to preallocated uploads that their chunks have not taken up yet
+    long getReservedBytes();
+    long getSyncs();
+    long getBytesSpilled();
+    int getLiveUploads();
+    int getChunksInFlight();
+    long getRejectedRequests();
+
+    double getChunksPerSecond();
+    double getBytesPerSecond();
+
+    long getChunkStoreTimeP50Micros();
+    long getChunkStoreTimeP99Micros();
+    long getChunkStoreTimeMaxMicros();
+    long getNetworkReadTimeP50Micros();
+    long getNetworkReadTimeP99Micros();
+    long getDiskWriteTimeP50Micros();
+    long getDiskWriteTimeP99Micros();
+    long getSyncWaitTimeP50Micros();
+    long getSyncWaitTimeP99Micros();
+    long getCompletionLatencyP50Millis();
+    long getCompletionLatencyP99Millis();
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+// Takes uploads as sequential byte streams, for consumers that only ever read the file front to back.
+// An OutputStream can be passed on through Channels.newChannel.
+public interface UploadSink {
+
+    // Called when the first chunk of an upload comes in; the channel gets every byte of the file in order
+    // and is closed once the last one has been written
+    WritableByteChannel open(FileChunkInfo info) throws IOException;
+
+    // The upload has been abandoned, or its channel failed; the channel is closed afterwards
+    void discarded(FileChunkInfo info, WritableByteChannel channel);
+}
@@ -19,10 +19,72 @@ package uk.ac.ebi.fg.gwt.resumable.server;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
+// Only the chunk methods and the completion listener ones have to be implemented; the others fall back
+// to what can be done with those, or report that the storage does without
 public interface UploadStorage {
 
     boolean hasChunk(FileChunkInfo info) throws IOException;
     boolean hasAllChunks(FileChunkInfo info) throws IOException;
     void storeChunk(FileChunkInfo info, InputStream stream, long length) throws IOException;
+
+    // Stores every chunk of the batch, recording the outcome on each chunk rather than throwing
+    default void storeChunks(List<ChunkUpload> batch) {
+        for (ChunkUpload chunk : batch) {
+            try {
+                storeChunk(chunk.info, chunk.stream, chunk.length);
+                chunk.complete = hasAllChunks(chunk.info);
+            } catch (IOException | RuntimeException x) {
+                chunk.failure = x;
+            }
+        }
+    }
+
+    // One bit per chunk, least significant bit of the first byte is chunk 1
+    default byte[] getChunkManifest(FileChunkInfo info) throws IOException {
+        ChunkBitmap chunks = new ChunkBitmap(info.getTotalChunks());
+        FileChunkInfo chunk = new FileChunkInfo();
+        chunk.chunkSize = info.chunkSize;
+        chunk.totalChunks = info.totalChunks;
+        chunk.fileSize = info.fileSize;
+        chunk.id = info.id;
+        chunk.fileName = info.fileName;
+        chunk.relativePath = info.relativePath;
+        for (int chunkNumber = 1; chunkNumber <= chunks.size(); chunkNumber++) {
+            chunk.chunkNumber = chunkNumber;
+            if (hasChunk(chunk)) {
+                chunks.set(chunkNumber);
+            }
+        }
+        return chunks.toByteArray();
+    }
+
+    // Hex digest of the completed file, or null if the storage does not compute one
+    default String getFileDigest(FileChunkInfo info) throws IOException {
+        return null;
+    }
+
+    // Chunk size the upload was started with, or 0 if it is not under way here; a client resuming the
+    // upload has to keep to it
+    default int getUploadChunkSize(FileChunkInfo info) throws IOException {
+        return 0;
+    }
+
+    // Completes the upload from content already stored under the same whole-file digest, in the storage's
+    // digest algorithm; returns false if there is no such content and the chunks have to be sent
+    default boolean deduplicate(FileChunkInfo info, String digest) throws IOException {
+        return false;
+    }
+
+    // Returns null if the chunk has already been stored, or if the storage only takes chunks through
+    // storeChunk; either way the request is handled as a blocking one
+    default ChunkWriter openChunk(FileChunkInfo info) throws IOException {
+        return null;
+    }
+
+    // Listeners are called off the request thread once an upload has been finalized
+    void addCompletionListener(UploadCompletionListener listener);
+
+    void removeCompletionListener(UploadCompletionListener listener);
 }
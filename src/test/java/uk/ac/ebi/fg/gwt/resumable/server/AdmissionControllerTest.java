@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void limitsRequestsInFlight() throws OverloadedException {
+        AdmissionController admission = new AdmissionController();
+        admission.setMaxInFlight(2);
+        AdmissionController.Permit first = admission.admit("a", 0);
+        admission.admit("b", 0);
+        assertRejected(admission, "c", 0);
+
+        first.release();
+        // releasing twice frees one place only
+        first.release();
+        admission.admit("c", 0);
+        assertRejected(admission, "d", 0);
+        assertEquals(2, admission.getInFlight());
+        assertEquals(2, admission.getRejectedInFlight());
+    }
+
+    @Test
+    public void limitsRequestsPerClient() throws OverloadedException {
+        AdmissionController admission = new AdmissionController();
+        admission.setMaxInFlightPerClient(1);
+        admission.admit("a", 0);
+        assertRejected(admission, "a", 0);
+        admission.admit("b", 0);
+        assertEquals(1, admission.getRejectedPerClient());
+    }
+
+    @Test
+    public void releasesThePermitOfARejectedUpload() throws OverloadedException {
+        AdmissionController admission = new AdmissionController();
+        admission.setMaxInFlightPerUpload(1);
+        admission.admit("a", 0).attach("u");
+        AdmissionController.Permit second = admission.admit("b", 0);
+        try {
+            second.attach("u");
+            fail("second chunk of the upload admitted");
+        } catch (OverloadedException x) {
+            // expected
+        }
+        assertEquals(1, admission.getInFlight());
+        assertEquals(1, admission.getRejectedPerUpload());
+    }
+
+    // A request attached early from its header, and again once its fields are read, counts once
+    @Test
+    public void countsAPermitAgainstOneUploadOnly() throws OverloadedException {
+        AdmissionController admission = new AdmissionController();
+        admission.setMaxInFlightPerUpload(1);
+        AdmissionController.Permit permit = admission.admit("a", 0);
+        permit.attach("u");
+        permit.attach("u");
+        permit.attach("v");
+        assertEquals("u", permit.getUploadId());
+        admission.admit("b", 0).attach("v");
+        permit.release();
+        admission.admit("c", 0).attach("u");
+    }
+
+    // A request turned away by one bucket is not charged to the other
+    @Test
+    public void chargesBandwidthOnlyWhenBothLimitsAllowIt() throws OverloadedException {
+        AdmissionController admission = new AdmissionController();
+        admission.setMaxBytesPerSecond(2000);
+        admission.setMaxClientBytesPerSecond(1000);
+
+        admission.admit("a", 1000).release();
+        assertRejected(admission, "a", 1000);
+        // the global bucket still has the 1000 bytes client a was refused
+        admission.admit("b", 1000).release();
+        assertRejected(admission, "c", 1000);
+        assertEquals(2, admission.getRejectedBandwidth());
+    }
+
+    @Test
+    public void suggestsWhenToRetry() throws OverloadedException {
+        AdmissionController admission = new AdmissionController();
+        admission.setMaxBytesPerSecond(1000);
+        admission.admit("a", 5000).release();
+        try {
+            admission.admit("a", 1000);
+            fail("bandwidth exceeded");
+        } catch (OverloadedException x) {
+            assertTrue("retry after " + x.getRetryAfter(), x.getRetryAfter() >= 5 && x.getRetryAfter() <= 6);
+        }
+    }
+
+    private static void assertRejected(AdmissionController admission, String client, long bytes) {
+        try {
+            admission.admit(client, bytes);
+            fail(client + " admitted");
+        } catch (OverloadedException x) {
+            // expected
+        }
+    }
+}
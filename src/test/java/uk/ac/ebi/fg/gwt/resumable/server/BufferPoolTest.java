@@ -0,0 +1,109 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    private final static int BUFFER_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsNoMoreThanItsLimitOfBuffers() {
+        BufferPool pool = new BufferPool(BUFFER_SIZE, 1);
+        BufferPool.PooledBuffer first = pool.acquire();
+        BufferPool.PooledBuffer second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        assertSame(first, pool.acquire());
+        assertNotSame(second, pool.acquire());
+    }
+
+    // Chunks span several buffers, and may land past the end of a sparse file
+    @Test
+    public void transfersAtAnyPosition() throws IOException {
+        byte[] content = content(BUFFER_SIZE * 3 + 17);
+        BufferPool.PooledBuffer buffer = new BufferPool(BUFFER_SIZE, 1).acquire();
+        try (FileChannel channel = open()) {
+            long position = BUFFER_SIZE * 10;
+            ChunkChecksum checksum = new ChunkChecksum("SHA-256").reset(null);
+            assertEquals(content.length, buffer.transfer(new ByteArrayInputStream(content), channel, position,
+                    content.length, checksum));
+            assertEquals(position + content.length, channel.size());
+            assertArrayEquals(content, read(channel, position, content.length));
+
+            ChunkChecksum expected = new ChunkChecksum("SHA-256").reset(null);
+            expected.update(content, 0, content.length);
+            assertEquals(expected.getRecord(), checksum.getRecord());
+
+            ChunkChecksum readBack = new ChunkChecksum("SHA-256").reset(null);
+            buffer.readBack(channel, position, content.length, readBack);
+            assertEquals(expected.getRecord(), readBack.getRecord());
+        }
+    }
+
+    @Test
+    public void stopsWhereTheStreamEnds() throws IOException {
+        byte[] content = content(BUFFER_SIZE + 1);
+        BufferPool.PooledBuffer buffer = new BufferPool(BUFFER_SIZE, 1).acquire();
+        try (FileChannel channel = open()) {
+            assertEquals(content.length, buffer.transfer(new ByteArrayInputStream(content), channel, 0,
+                    content.length * 2, null));
+            assertEquals(content.length, channel.size());
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        File file = folder.newFile();
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining() && channel.read(bytes, position + bytes.position()) >= 0) {
+            // reads until the buffer is full
+        }
+        return Arrays.copyOf(bytes.array(), bytes.position());
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkBitmapTest {
+
+    @Test
+    public void setsAndClearsChunksOnce() {
+        ChunkBitmap chunks = new ChunkBitmap(130);
+        assertTrue(chunks.set(1));
+        assertTrue(chunks.set(64));
+        assertTrue(chunks.set(65));
+        assertTrue(chunks.set(130));
+        assertFalse(chunks.set(65));
+        assertEquals(4, chunks.cardinality());
+        assertTrue(chunks.get(64));
+        assertFalse(chunks.get(63));
+
+        assertTrue(chunks.clear(64));
+        assertFalse(chunks.clear(64));
+        assertFalse(chunks.get(64));
+        assertEquals(3, chunks.cardinality());
+    }
+
+    // Chunk numbers are 1-based; anything outside the bitmap is never set
+    @Test
+    public void ignoresChunksOutOfRange() {
+        ChunkBitmap chunks = new ChunkBitmap(3);
+        assertFalse(chunks.set(0));
+        assertFalse(chunks.set(4));
+        assertFalse(chunks.set(-1));
+        assertFalse(chunks.get(0));
+        assertFalse(chunks.get(4));
+        assertFalse(chunks.clear(4));
+        assertEquals(0, chunks.cardinality());
+    }
+
+    @Test
+    public void isFullOnceEveryChunkIsSet() {
+        ChunkBitmap chunks = new ChunkBitmap(3);
+        chunks.set(3);
+        chunks.set(1);
+        assertFalse(chunks.isFull());
+        chunks.set(2);
+        assertTrue(chunks.isFull());
+    }
+
+    // Bit i of byte i / 8 is chunk i + 1, as in the manifest sent to clients
+    @Test
+    public void packsChunksLittleEndian() {
+        ChunkBitmap chunks = new ChunkBitmap(70);
+        chunks.set(1);
+        chunks.set(10);
+        chunks.set(70);
+        byte[] expected = new byte[9];
+        expected[0] = 0x01;
+        expected[1] = 0x02;
+        expected[8] = 0x20;
+        assertArrayEquals(expected, chunks.toByteArray());
+    }
+
+    // Chunks of one word set from many threads are all counted
+    @Test
+    public void countsConcurrentSets() throws InterruptedException {
+        final ChunkBitmap chunks = new ChunkBitmap(64 * 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    for (int chunkNumber = 1 + offset; chunkNumber <= chunks.size(); chunkNumber += threads.length) {
+                        chunks.set(chunkNumber);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(chunks.size(), chunks.cardinality());
+        assertTrue(chunks.isFull());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChunkChecksumTest {
+
+    private final static byte[] CHUNK = "a chunk of some file".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void verifiesEitherChecksum() throws Exception {
+        ChunkChecksum checksum = checksum(null);
+        checksum.verify(null);
+        checksum.verify("");
+        checksum.verify("crc32:" + String.format("%08x", crc(CHUNK)));
+        checksum.verify("SHA-256:" + sha256(CHUNK).toUpperCase());
+        // without an algorithm, the configured one is meant
+        checksum.verify(sha256(CHUNK));
+    }
+
+    @Test
+    public void refusesMismatchesAndUnknownAlgorithms() {
+        ChunkChecksum checksum = checksum(null);
+        assertMismatch(checksum, "crc32:00000000");
+        assertMismatch(checksum, "SHA-256:" + sha256(new byte[0]));
+        assertMismatch(checksum, "MD5:" + sha256(CHUNK));
+    }
+
+    // The record kept per chunk is the CRC32 followed by the digest
+    @Test
+    public void recordsCrcAndDigest() throws Exception {
+        ByteBuffer record = checksum(null).getRecord();
+        assertEquals(4 + 32, record.remaining());
+        assertEquals((int) crc(CHUNK), record.getInt());
+        byte[] digest = new byte[32];
+        record.get(digest);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(CHUNK), digest);
+    }
+
+    // The file digest only sees the chunks it is given, buffer updates included
+    @Test
+    public void updatesTheFileDigestAlongTheWay() throws Exception {
+        MessageDigest fileDigest = MessageDigest.getInstance("SHA-256");
+        ChunkChecksum checksum = new ChunkChecksum("SHA-256").reset(fileDigest);
+        checksum.update(ByteBuffer.wrap(CHUNK));
+        checksum.reset(null).update(CHUNK, 0, CHUNK.length);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(CHUNK), fileDigest.digest());
+    }
+
+    private static ChunkChecksum checksum(MessageDigest fileDigest) {
+        ChunkChecksum checksum = new ChunkChecksum("SHA-256").reset(fileDigest);
+        checksum.update(CHUNK, 0, CHUNK.length);
+        return checksum;
+    }
+
+    private static void assertMismatch(ChunkChecksum checksum, String expected) {
+        try {
+            checksum.verify(expected);
+            fail("verified " + expected);
+        } catch (ChecksumMismatchException x) {
+            // expected
+        }
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static String sha256(byte[] bytes) {
+        return ChunkChecksum.toHex(ChunkChecksum.newDigest("SHA-256").digest(bytes));
+    }
+}
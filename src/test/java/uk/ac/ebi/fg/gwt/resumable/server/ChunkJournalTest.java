@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversChunksAfterReopening() throws IOException {
+        File file = folder.newFile("a.journal");
+        ChunkJournal journal = ChunkJournal.open(file, info("a", 1024, 10240));
+        journal.set(1);
+        journal.set(3);
+        journal.set(10);
+        journal.force();
+
+        journal = ChunkJournal.open(file, info("a", 1024, 10240));
+        assertEquals(10, journal.chunkCount());
+        for (int chunkNumber = 1; chunkNumber <= 10; chunkNumber++) {
+            assertEquals("chunk " + chunkNumber, 1 == chunkNumber || 3 == chunkNumber || 10 == chunkNumber,
+                    journal.get(chunkNumber));
+        }
+    }
+
+    @Test
+    public void startsOverForAnotherUpload() throws IOException {
+        File file = folder.newFile("a.journal");
+        ChunkJournal.open(file, info("a", 1024, 10240)).set(1);
+
+        // same layout, different identifier
+        assertFalse(ChunkJournal.open(file, info("b", 1024, 10240)).get(1));
+        ChunkJournal.open(file, info("b", 1024, 10240)).set(2);
+        // different chunking
+        assertFalse(ChunkJournal.open(file, info("b", 2048, 10240)).get(2));
+    }
+
+    @Test
+    public void ignoresChunksOutOfRange() throws IOException {
+        ChunkJournal journal = ChunkJournal.open(folder.newFile("a.journal"), info("a", 1024, 4096));
+        journal.set(0);
+        journal.set(5);
+        assertFalse(journal.get(0));
+        assertFalse(journal.get(5));
+    }
+
+    // The last chunk takes the remainder, as in the storage
+    @Test
+    public void countsChunksLikeTheStorage() throws IOException {
+        FileChunkInfo info = info("a", 1024, 2560);
+        assertEquals(info.getTotalChunks(), ChunkJournal.open(folder.newFile("a.journal"), info).chunkCount());
+        assertEquals(2, info.getTotalChunks());
+    }
+
+    @Test
+    public void readsTheChunkSizeOfItsUploadOnly() throws IOException {
+        File file = folder.newFile("a.journal");
+        ChunkJournal.open(file, info("a", 1024, 10240)).force();
+
+        assertEquals(1024, ChunkJournal.readChunkSize(file, info("a", 4096, 10240)));
+        assertEquals(0, ChunkJournal.readChunkSize(file, info("b", 1024, 10240)));
+        assertEquals(0, ChunkJournal.readChunkSize(file, info("a", 1024, 20480)));
+        assertEquals(0, ChunkJournal.readChunkSize(new File(folder.getRoot(), "none.journal"), info("a", 1024, 10240)));
+    }
+
+    @Test
+    public void storageResumesAfterARestart() throws IOException {
+        String directory = folder.newFolder("uploads").getPath();
+        byte[] data = new byte[4096];
+        Arrays.fill(data, 0, 1024, (byte) 1);
+        Arrays.fill(data, 1024, 2048, (byte) 2);
+        Arrays.fill(data, 2048, 3072, (byte) 3);
+        Arrays.fill(data, 3072, 4096, (byte) 4);
+
+        JournaledUploadStorageImpl storage = new JournaledUploadStorageImpl(directory);
+        store(storage, data, 1);
+        store(storage, data, 3);
+        storage.close();
+
+        storage = new JournaledUploadStorageImpl(directory);
+        try {
+            assertEquals(1024, storage.getUploadChunkSize(info("a", 1, 4096)));
+            assertTrue(storage.hasChunk(chunk(1)));
+            assertFalse(storage.hasChunk(chunk(2)));
+            assertTrue(storage.hasChunk(chunk(3)));
+            store(storage, data, 2);
+            store(storage, data, 4);
+            assertTrue(storage.hasAllChunks(chunk(4)));
+        } finally {
+            storage.close();
+        }
+        assertArrayEquals(data, Files.readAllBytes(new File(directory, "a.bin").toPath()));
+    }
+
+    private static void store(UploadStorage storage, byte[] data, int chunkNumber) throws IOException {
+        storage.storeChunk(chunk(chunkNumber), new ByteArrayInputStream(data, (chunkNumber - 1) * 1024, 1024), 1024);
+    }
+
+    private static FileChunkInfo chunk(int chunkNumber) {
+        FileChunkInfo info = info("a", 1024, 4096);
+        info.chunkNumber = chunkNumber;
+        info.currentChunkSize = 1024;
+        return info;
+    }
+
+    static FileChunkInfo info(String id, int chunkSize, long fileSize) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.id = id;
+        info.fileName = id + ".bin";
+        info.relativePath = id + ".bin";
+        info.chunkSize = chunkSize;
+        info.fileSize = fileSize;
+        info.chunkNumber = 1;
+        return info;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkSizeAdvisorTest {
+
+    private final static int MB = 1 << 20;
+    private final static long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private ChunkSizeAdvisor advisor;
+
+    @Before
+    public void setUp() {
+        advisor = new ChunkSizeAdvisor();
+        advisor.setMinChunkSize(1024);
+        advisor.setMaxChunkSize(64 * MB);
+        advisor.setTargetChunkTime(1000);
+    }
+
+    @Test
+    public void waitsForEnoughSamples() {
+        advisor.record("a", MB, SECOND, true);
+        advisor.record("a", MB, SECOND, true);
+        assertEquals(0, advisor.advise("a"));
+        advisor.record("a", MB, SECOND, true);
+        assertEquals(MB, advisor.advise("a"));
+        assertEquals(0, advisor.advise("b"));
+    }
+
+    // What one request moves in the target time, rounded down to a power of two
+    @Test
+    public void advisesThroughputTimesTargetTime() {
+        advisor.setTargetChunkTime(3000);
+        record("a", MB, 3);
+        assertEquals(2 * MB, advisor.advise("a"));
+    }
+
+    // The first request sets the throughput, later ones move it a fifth of the way
+    @Test
+    public void smoothsThroughput() {
+        record("a", MB, 3);
+        advisor.record("a", 6 * MB, SECOND, true);
+        assertEquals(2 * MB, advisor.advise("a"));
+    }
+
+    // A failure rate of 10% halves the advice; failed requests leave the throughput alone
+    @Test
+    public void shrinksForFailures() {
+        record("a", 4 * MB, 3);
+        advisor.record("a", 100 * MB, SECOND, false);
+        assertEquals(2 * MB, advisor.advise("a"));
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        advisor.setMinChunkSize(MB);
+        advisor.setMaxChunkSize(8 * MB);
+        record("slow", 1024, 3);
+        record("fast", 1024 * MB, 3);
+        assertEquals(MB, advisor.advise("slow"));
+        assertEquals(8 * MB, advisor.advise("fast"));
+    }
+
+    @Test
+    public void ignoresEmptyRequests() {
+        advisor.record("a", 0, SECOND, true);
+        advisor.record("a", MB, 0, true);
+        assertEquals(0, advisor.getClientCount());
+    }
+
+    private void record(String client, long bytesPerSecond, int requests) {
+        for (int i = 0; i < requests; i++) {
+            advisor.record(client, bytesPerSecond, SECOND, true);
+        }
+    }
+}
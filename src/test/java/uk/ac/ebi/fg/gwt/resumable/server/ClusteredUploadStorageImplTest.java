@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClusteredUploadStorageImplTest {
+
+    private final static int CHUNK_SIZE = 1024;
+    private final static int CHUNKS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> completions = new LinkedBlockingQueue<>();
+
+    private File directory;
+    // two nodes with the same upload directory
+    private ClusteredUploadStorageImpl first;
+    private ClusteredUploadStorageImpl second;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("uploads");
+        first = node("first");
+        second = node("second");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        first.close();
+        second.close();
+    }
+
+    // Whichever node stores the last chunk finalizes the upload, once; the other sees it complete
+    @Test
+    public void assemblesChunksStoredOnEitherNode() throws Exception {
+        byte[] content = content(CHUNK_SIZE * CHUNKS);
+        store(first, "shared", content, 1);
+        store(second, "shared", content, 2);
+        store(first, "shared", content, 3);
+        assertTrue(second.hasChunk(info("shared", 1)));
+        assertFalse(second.hasAllChunks(info("shared", 4)));
+        store(second, "shared", content, 4);
+
+        assertArrayEquals(content, Files.readAllBytes(new File(directory, "shared.bin").toPath()));
+        assertEquals("second", completions.poll(5, TimeUnit.SECONDS));
+        assertNull(completions.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(first.hasAllChunks(info("shared", 4)));
+        assertTrue(first.getSharedState().isComplete("shared"));
+    }
+
+    // A chunk a node has not stored itself is not stored again
+    @Test
+    public void knowsChunksStoredByOtherNodes() throws IOException {
+        byte[] content = content(CHUNK_SIZE * CHUNKS);
+        store(first, "known", content, 2);
+        assertTrue(second.hasChunk(info("known", 2)));
+        assertFalse(second.hasChunk(info("known", 1)));
+    }
+
+    // Other nodes act on a chunk as soon as it is recorded, so it has to be on disk by then, and no node
+    // can set aside the space of a whole file for chunks others store
+    @Test
+    public void refusesUnsafeSettings() {
+        try {
+            first.setDurability(DurabilityMode.NONE);
+            fail("took durability NONE");
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+        try {
+            first.setAllocationMode(AllocationMode.PREALLOCATE);
+            fail("took preallocation");
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+    }
+
+    private ClusteredUploadStorageImpl node(final String nodeId) throws IOException {
+        ClusteredUploadStorageImpl storage = new ClusteredUploadStorageImpl(directory.getPath(), null, nodeId);
+        storage.setGroupCommitInterval(1);
+        storage.addCompletionListener(new UploadCompletionListener() {
+            @Override
+            public void uploadCompleted(CompletedUpload upload) {
+                completions.add(nodeId);
+            }
+        });
+        return storage;
+    }
+
+    private static void store(UploadStorage storage, String id, byte[] content, int chunkNumber) throws IOException {
+        storage.storeChunk(info(id, chunkNumber), new ByteArrayInputStream(content, (chunkNumber - 1) * CHUNK_SIZE,
+                CHUNK_SIZE), CHUNK_SIZE);
+    }
+
+    private static FileChunkInfo info(String id, int chunkNumber) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.id = id;
+        info.fileName = id + ".bin";
+        info.relativePath = id + ".bin";
+        info.chunkSize = CHUNK_SIZE;
+        info.fileSize = CHUNK_SIZE * CHUNKS;
+        info.chunkNumber = chunkNumber;
+        info.currentChunkSize = CHUNK_SIZE;
+        return info;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 17 + i / CHUNK_SIZE);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompletionPipelineTest {
+
+    private final CompletionPipeline pipeline = new CompletionPipeline(1, 1);
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void runsListenersInOrder() throws Exception {
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        pipeline.addListener(new Recorder("first", calls, null));
+        pipeline.addListener(new Recorder("second", calls, done));
+        assertTrue(pipeline.submit(upload("upload")));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.size());
+        assertEquals("first upload", calls.get(0));
+        assertEquals("second upload", calls.get(1));
+    }
+
+    // With the pool busy and the queue full an upload is dropped; listeners never run on the caller
+    @Test
+    public void dropsUploadsWhenTheQueueIsFull() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        pipeline.addListener(new UploadCompletionListener() {
+            @Override
+            public void uploadCompleted(CompletedUpload upload) throws Exception {
+                running.countDown();
+                release.await();
+                calls.add(upload.id);
+                threads.add(Thread.currentThread().getName());
+            }
+        });
+        assertTrue(pipeline.submit(upload("running")));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertTrue(pipeline.submit(upload("queued")));
+        assertFalse(pipeline.submit(upload("dropped")));
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (calls.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals("[running, queued]", calls.toString());
+        assertFalse(threads.contains(Thread.currentThread().getName()));
+    }
+
+    private static CompletedUpload upload(String id) {
+        CompletedUpload upload = new CompletedUpload();
+        upload.id = id;
+        return upload;
+    }
+
+    private static class Recorder implements UploadCompletionListener {
+
+        private final String name;
+        private final List<String> calls;
+        private final CountDownLatch done;
+
+        Recorder(String name, List<String> calls, CountDownLatch done) {
+            this.name = name;
+            this.calls = calls;
+            this.done = done;
+        }
+
+        @Override
+        public void uploadCompleted(CompletedUpload upload) {
+            calls.add(name + " " + upload.id);
+            if (null != done) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContentDecodingTest {
+
+    private final static byte[] CHUNK = chunk(200000);
+
+    @Test
+    public void knowsWhichEncodingsItTakes() {
+        assertFalse(ContentDecoding.isEncoded(null));
+        assertFalse(ContentDecoding.isEncoded(" identity "));
+        assertTrue(ContentDecoding.isEncoded("gzip"));
+        assertTrue(ContentDecoding.isSupported(null));
+        assertTrue(ContentDecoding.isSupported("X-GZIP"));
+        assertTrue(ContentDecoding.isSupported("deflate"));
+        assertFalse(ContentDecoding.isSupported("br"));
+    }
+
+    @Test
+    public void decodesGzip() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(body)) {
+            gzip.write(CHUNK);
+        }
+        assertArrayEquals(CHUNK, read(ContentDecoding.decode("gzip", new ByteArrayInputStream(body.toByteArray()),
+                CHUNK.length)));
+    }
+
+    // Both the zlib wrapped deflate of the standard and the raw one some clients send
+    @Test
+    public void decodesEitherDeflate() throws IOException {
+        for (boolean raw : new boolean[]{false, true}) {
+            assertArrayEquals(CHUNK, read(ContentDecoding.decode("deflate", new ByteArrayInputStream(deflate(raw)),
+                    CHUNK.length)));
+        }
+    }
+
+    // A body that inflates to more or less than the chunk is refused, before all of it is handed out
+    @Test
+    public void insistsOnTheExpectedLength() {
+        for (long expectedLength : new long[]{CHUNK.length - 1, CHUNK.length + 1}) {
+            try {
+                read(ContentDecoding.decode("deflate", new ByteArrayInputStream(deflate(false)), expectedLength));
+                fail("decoded to " + expectedLength + " bytes");
+            } catch (IOException x) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void countsWhatIsRead() throws IOException {
+        byte[] body = deflate(false);
+        ContentDecoding.CountingStream counted = new ContentDecoding.CountingStream(new ByteArrayInputStream(body));
+        read(ContentDecoding.decode("deflate", counted, CHUNK.length));
+        assertEquals(body.length, counted.count);
+    }
+
+    private static byte[] deflate(boolean raw) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(body, deflater)) {
+            deflate.write(CHUNK);
+        } catch (IOException x) {
+            throw new IllegalStateException(x);
+        } finally {
+            deflater.end();
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = stream) {
+            byte[] buffer = new byte[8192];
+            for (int r; (r = in.read(buffer)) >= 0; ) {
+                bytes.write(buffer, 0, r);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // compressible, but not trivially
+    private static byte[] chunk(int length) {
+        byte[] chunk = new byte[length];
+        for (int i = 0; i < length; i++) {
+            chunk[i] = (byte) ('a' + (i * i) % 7);
+        }
+        return chunk;
+    }
+}
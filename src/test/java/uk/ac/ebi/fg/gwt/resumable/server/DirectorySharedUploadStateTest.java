@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectorySharedUploadStateTest {
+
+    private final static long LEASE = 60000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // two nodes mounting the same directory
+    private DirectorySharedUploadState first;
+    private DirectorySharedUploadState second;
+
+    @Before
+    public void setUp() throws IOException {
+        first = new DirectorySharedUploadState(folder.getRoot());
+        second = new DirectorySharedUploadState(folder.getRoot());
+    }
+
+    @Test
+    public void sharesChunks() throws IOException {
+        first.addChunk("upload", 1);
+        second.addChunk("upload", 3);
+        first.addChunk("upload", 3);
+        BitSet expected = new BitSet();
+        expected.set(1);
+        expected.set(3);
+        assertEquals(expected, second.getChunks("upload"));
+        assertTrue(first.hasChunk("upload", 3));
+        assertFalse(first.hasChunk("upload", 2));
+        assertTrue(first.getLastActivity("upload") > 0);
+        assertEquals(0, first.getLastActivity("unknown"));
+    }
+
+    @Test
+    public void letsOneNodeFinalize() throws IOException {
+        assertTrue(first.claimFinalization("upload", "first", LEASE));
+        assertFalse(second.claimFinalization("upload", "second", LEASE));
+        // only the holder can release its claim
+        second.releaseFinalization("upload", "second");
+        assertFalse(second.claimFinalization("upload", "second", LEASE));
+
+        first.releaseFinalization("upload", "first");
+        assertTrue(second.claimFinalization("upload", "second", LEASE));
+        second.markComplete("upload");
+        second.releaseFinalization("upload", "second");
+        assertTrue(first.isComplete("upload"));
+        assertFalse(first.claimFinalization("upload", "first", LEASE));
+    }
+
+    // However many nodes find the claim of a dead one at once, only one of them takes it over
+    @Test
+    public void takesOverAStaleClaimOnce() throws Exception {
+        assertTrue(first.claimFinalization("upload", "dead", LEASE));
+        for (File upload : folder.getRoot().listFiles()) {
+            Files.setLastModifiedTime(new File(upload, "finalizing.1").toPath(), FileTime.fromMillis(0));
+        }
+
+        ExecutorService nodes = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> claims = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final DirectorySharedUploadState state = i % 2 == 0 ? first : second;
+                final String nodeId = "node-" + i;
+                claims.add(nodes.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return state.claimFinalization("upload", nodeId, LEASE);
+                    }
+                }));
+            }
+            start.countDown();
+            int claimed = 0;
+            for (Future<Boolean> claim : claims) {
+                if (claim.get()) {
+                    claimed++;
+                }
+            }
+            assertEquals(1, claimed);
+        } finally {
+            nodes.shutdownNow();
+        }
+        // the new claim is as good as any other until it goes stale in turn
+        assertFalse(second.claimFinalization("upload", "late", LEASE));
+    }
+
+    @Test
+    public void purgesOldUploads() throws IOException {
+        first.addChunk("unfinished", 1);
+        first.markComplete("complete");
+        long now = System.currentTimeMillis() + 1000;
+
+        first.purge(0, 0);
+        assertTrue(second.hasChunk("unfinished", 1));
+        first.purge(now, 0);
+        assertFalse(second.isComplete("complete"));
+        assertTrue(second.hasChunk("unfinished", 1));
+        first.purge(now, now);
+        assertFalse(second.hasChunk("unfinished", 1));
+    }
+}
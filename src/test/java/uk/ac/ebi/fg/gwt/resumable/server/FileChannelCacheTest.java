@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileChannelCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private FileChannelCache channels;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("channels");
+        channels = new FileChannelCache();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channels.closeAll();
+    }
+
+    @Test
+    public void reusesTheChannelOfAFile() throws IOException {
+        FileChannelCache.Handle first = channels.acquire(location("a"), true);
+        channels.release(first);
+        FileChannelCache.Handle second = channels.acquire(location("a"), true);
+        assertSame(first, second);
+        assertTrue(second.channel.isOpen());
+        assertEquals(1, channels.size());
+    }
+
+    // Only idle channels make way for new ones; beyond that a channel is used once and closed
+    @Test
+    public void evictsTheLeastRecentlyUsedIdleChannel() throws IOException {
+        channels.setMaxOpenChannels(2);
+        FileChannelCache.Handle a = channels.acquire(location("a"), true);
+        FileChannelCache.Handle b = channels.acquire(location("b"), true);
+        channels.release(a);
+
+        FileChannelCache.Handle c = channels.acquire(location("c"), true);
+        assertFalse(a.channel.isOpen());
+        assertTrue(b.channel.isOpen());
+        assertEquals(2, channels.size());
+
+        FileChannelCache.Handle d = channels.acquire(location("d"), true);
+        assertFalse(d.cached);
+        channels.release(d);
+        assertFalse(d.channel.isOpen());
+        channels.release(b);
+        channels.release(c);
+        assertTrue(b.channel.isOpen());
+    }
+
+    @Test
+    public void closesIdleChannels() throws Exception {
+        channels.setIdleTimeout(1);
+        FileChannelCache.Handle idle = channels.acquire(location("idle"), true);
+        channels.release(idle);
+        FileChannelCache.Handle busy = channels.acquire(location("busy"), true);
+
+        Thread.sleep(20);
+        channels.closeIdle();
+        assertFalse(idle.channel.isOpen());
+        assertTrue(busy.channel.isOpen());
+        assertEquals(1, channels.size());
+        channels.release(busy);
+    }
+
+    // A retired channel stays open for the writer that still has it, and is then closed
+    @Test
+    public void closesARetiredChannelOnceReleased() throws IOException {
+        FileChannelCache.Handle handle = channels.acquire(location("retired"), true);
+        channels.retire(location("retired"));
+        assertTrue(handle.channel.isOpen());
+        assertEquals(0, channels.size());
+        channels.release(handle);
+        assertFalse(handle.channel.isOpen());
+    }
+
+    // A file moved away since it was first opened is not brought back empty
+    @Test
+    public void doesNotRecreateAFileUnlessAsked() throws IOException {
+        try {
+            channels.acquire(location("missing"), false);
+            fail("opened a missing file");
+        } catch (NoSuchFileException x) {
+            // expected
+        }
+        assertFalse(new File(location("missing")).exists());
+    }
+
+    private String location(String name) {
+        return new File(directory, name).getPath();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileChunkInfoTest {
+
+    // The remainder is folded into the last chunk, and a file smaller than a chunk is still one
+    @Test
+    public void countsWholeChunks() {
+        assertEquals(4, info(1024, 4096, 0).getTotalChunks());
+        assertEquals(4, info(1024, 4096 + 1023, 0).getTotalChunks());
+        assertEquals(1, info(1024, 100, 0).getTotalChunks());
+    }
+
+    @Test
+    public void takesAMatchingOrMissingClientCount() {
+        assertTrue(info(1024, 5000, 4).isValidFile());
+        assertTrue(info(1024, 5000, 0).isValidFile());
+    }
+
+    // The client's count sizes nothing, but one that disagrees means the chunks are not the ones expected
+    @Test
+    public void rejectsAClientCountThatDisagrees() {
+        FileChunkInfo info = info(1024, 5000, 1000000);
+        assertFalse(info.isValidFile());
+        assertEquals(4, info.getTotalChunks());
+        assertFalse(info(1024, 5000, 5).isValidFile());
+    }
+
+    @Test
+    public void rejectsMoreChunksThanAnIntCounts() {
+        assertFalse(info(1, 1L << 32, 0).isValidFile());
+        assertTrue(info(1, Integer.MAX_VALUE, 0).isValidFile());
+    }
+
+    private static FileChunkInfo info(int chunkSize, long fileSize, int totalChunks) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.id = "upload";
+        info.fileName = "upload.bin";
+        info.relativePath = "upload.bin";
+        info.chunkSize = chunkSize;
+        info.fileSize = fileSize;
+        info.totalChunks = totalChunks;
+        info.chunkNumber = 1;
+        return info;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitterTest {
+
+    // long enough for every writer of a test to join the first one's group
+    private final static long INTERVAL = 500L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final GroupCommitter committer = new GroupCommitter();
+    private final UploadMetrics metrics = new UploadMetrics();
+    private final ExecutorService writers = Executors.newCachedThreadPool();
+    private final List<FileChannel> channels = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        writers.shutdownNow();
+        committer.shutdown();
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    // Writers of a group wait for one sync per channel, however many of them wrote to it
+    @Test
+    public void syncsEachChannelOncePerGroup() throws Exception {
+        committer.setInterval(INTERVAL);
+        FileChannel first = open();
+        FileChannel second = open();
+        List<Future<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            commits.add(commit(i % 2 == 0 ? first : second));
+        }
+        for (Future<Void> commit : commits) {
+            commit.get();
+        }
+        assertEquals(2, metrics.getSyncs());
+
+        // a later write makes a group of its own
+        commit(first).get();
+        assertEquals(3, metrics.getSyncs());
+    }
+
+    @Test
+    public void reportsAFailedSync() throws Exception {
+        committer.setInterval(1);
+        FileChannel channel = open();
+        channel.close();
+        try {
+            commit(channel).get();
+            fail("synced a closed channel");
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+        assertEquals(0, metrics.getSyncs());
+    }
+
+    // Writers still waiting are let go, whether they got in before the shutdown or not, and nobody is
+    // left waiting on a sync that will never come
+    @Test
+    public void failsCommitsOnShutdown() throws Exception {
+        committer.setInterval(60000L);
+        Future<Void> waiting = commit(open());
+        Thread.sleep(50);
+        committer.shutdown();
+        try {
+            waiting.get();
+            fail("committed after shutdown");
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+        try {
+            committer.commit(open(), metrics);
+            fail("committed after shutdown");
+        } catch (IOException x) {
+            // expected
+        }
+    }
+
+    private Future<Void> commit(final FileChannel channel) {
+        return writers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (channel.isOpen()) {
+                    channel.write(ByteBuffer.wrap(new byte[]{1}), channel.size());
+                }
+                committer.commit(channel, metrics);
+                return null;
+            }
+        });
+    }
+
+    private FileChannel open() throws IOException {
+        FileChannel channel = FileChannel.open(folder.newFile().toPath(), StandardOpenOption.WRITE);
+        channels.add(channel);
+        return channel;
+    }
+}
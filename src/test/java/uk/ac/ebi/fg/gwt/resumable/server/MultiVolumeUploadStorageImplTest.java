@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultiVolumeUploadStorageImplTest {
+
+    private final static int UPLOADS = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String first;
+    private String second;
+    private String third;
+
+    @Before
+    public void setUp() throws IOException {
+        first = folder.newFolder("first").getPath();
+        second = folder.newFolder("second").getPath();
+        third = folder.newFolder("third").getPath();
+    }
+
+    @Test
+    public void placesUploadsTheSameWayEveryTime() throws IOException {
+        Map<String, String> placed = place(first, second);
+        assertEquals(placed, place(first, second));
+        assertEquals(placed, place(second, first));
+    }
+
+    // Volumes on the same file system have the same free space, and so take similar shares
+    @Test
+    public void spreadsUploadsOverTheVolumes() throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String volume : place(first, second, third).values()) {
+            Integer count = counts.get(volume);
+            counts.put(volume, null == count ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("uploads on a volume " + counts, count > UPLOADS / 6);
+        }
+    }
+
+    // Only the uploads that land on a new volume move, the others stay where they were
+    @Test
+    public void movesUploadsOnlyToAnAddedVolume() throws IOException {
+        Map<String, String> before = place(first, second);
+        Map<String, String> after = place(first, second, third);
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String volume = after.get(entry.getKey());
+            if (!volume.equals(entry.getValue())) {
+                assertEquals(third, volume);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 0 && moved < UPLOADS / 2);
+    }
+
+    // An upload under way carries on on the volume of its partial file, wherever the ring would put it now;
+    // journaled volumes also remember its chunks
+    @Test
+    public void resumesUploadsWhereTheirPartialFileIs() throws IOException {
+        Map<String, String> before = place(first, second);
+        Map<String, String> after = place(first, second, third);
+        String id = null;
+        for (String candidate : before.keySet()) {
+            if (third.equals(after.get(candidate))) {
+                id = candidate;
+            }
+        }
+        assertNotNull(id);
+
+        MultiVolumeUploadStorageImpl storage = journaled(first, second);
+        try {
+            storage.storeChunk(info(id, 1), new ByteArrayInputStream(new byte[1024]), 1024);
+        } finally {
+            storage.close();
+        }
+        storage = journaled(first, second, third);
+        try {
+            assertTrue(storage.hasChunk(info(id, 1)));
+            assertEquals(before.get(id), volumeOf(storage, id));
+        } finally {
+            storage.close();
+        }
+    }
+
+    // The cap is not a queue: a write beyond it is turned away at once, and nothing is left behind
+    @Test
+    public void turnsAwayWritesBeyondTheCap() throws IOException {
+        MultiVolumeUploadStorageImpl storage = new MultiVolumeUploadStorageImpl(first);
+        try {
+            storage.setMaxConcurrentWrites(0);
+            try {
+                storage.storeChunk(info("busy", 1), new ByteArrayInputStream(new byte[1024]), 1024);
+                fail("stored beyond the cap");
+            } catch (OverloadedException x) {
+                // expected
+            }
+            assertEquals(1, storage.getVolumes().get(0).getRejected());
+            assertEquals(0, storage.getVolumes().get(0).getActive());
+
+            storage.setMaxConcurrentWrites(1);
+            storage.storeChunk(info("busy", 1), new ByteArrayInputStream(new byte[1024]), 1024);
+            assertTrue(storage.hasChunk(info("busy", 1)));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void doesNotStoreAChunkThatEndsShort() throws IOException {
+        MultiVolumeUploadStorageImpl storage = new MultiVolumeUploadStorageImpl(first);
+        try {
+            try {
+                storage.storeChunk(info("short", 1), new ByteArrayInputStream(new byte[1000]), 1024);
+                fail("stored a short chunk");
+            } catch (IOException x) {
+                // expected
+            }
+            assertFalse(storage.hasChunk(info("short", 1)));
+            storage.storeChunk(info("short", 1), new ByteArrayInputStream(new byte[1024]), 1024);
+            assertTrue(storage.hasChunk(info("short", 1)));
+        } finally {
+            storage.close();
+        }
+    }
+
+    // Upload identifier to the directory of the volume it is placed on
+    private static Map<String, String> place(String... directories) throws IOException {
+        MultiVolumeUploadStorageImpl storage = new MultiVolumeUploadStorageImpl(directories);
+        try {
+            Map<String, String> placed = new HashMap<>();
+            for (int i = 0; i < UPLOADS; i++) {
+                String id = "upload-" + i;
+                storage.hasChunk(info(id, 1));
+                placed.put(id, volumeOf(storage, id));
+            }
+            return placed;
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static MultiVolumeUploadStorageImpl journaled(String... directories) {
+        List<JournaledUploadStorageImpl> storages = new ArrayList<>();
+        for (String directory : directories) {
+            storages.add(new JournaledUploadStorageImpl(directory));
+        }
+        return new MultiVolumeUploadStorageImpl(storages);
+    }
+
+    private static String volumeOf(MultiVolumeUploadStorageImpl storage, String id) {
+        for (MultiVolumeUploadStorageImpl.Volume volume : storage.getVolumes()) {
+            if (volume.storage.isLive(id)) {
+                return volume.getDirectory();
+            }
+        }
+        return null;
+    }
+
+    private static FileChunkInfo info(String id, int chunkNumber) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.id = id;
+        info.fileName = id + ".bin";
+        info.relativePath = id + ".bin";
+        info.chunkSize = 1024;
+        info.fileSize = 4096;
+        info.chunkNumber = chunkNumber;
+        info.currentChunkSize = 1024;
+        return info;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartStreamTest {
+
+    private final static String BOUNDARY = "----boundary7MA4YWxk";
+
+    @Test
+    public void findsTheBoundaryInTheContentType() {
+        assertEquals("abc", MultipartStream.getBoundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartStream.getBoundary("multipart/form-data; charset=UTF-8; BOUNDARY=\"a b\""));
+        assertNull(MultipartStream.getBoundary("multipart/form-data"));
+        assertNull(MultipartStream.getBoundary("multipart/form-data; boundary="));
+        assertNull(MultipartStream.getBoundary(null));
+    }
+
+    @Test
+    public void readsFieldsAndFiles() throws IOException {
+        byte[] data = content(100);
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body(data)), BOUNDARY);
+
+        assertTrue(multipart.nextPart());
+        assertEquals("resumableChunkNumber", multipart.getName());
+        assertNull(multipart.getFileName());
+        assertEquals("3", multipart.readString(16));
+
+        assertTrue(multipart.nextPart());
+        assertEquals("file", multipart.getName());
+        assertEquals("a.bin", multipart.getFileName());
+        assertArrayEquals(data, readAll(multipart.getPartStream(data.length)));
+
+        assertFalse(multipart.nextPart());
+        assertFalse(multipart.nextPart());
+    }
+
+    // One byte per read puts every possible split of the delimiter at the end of the buffer
+    @Test
+    public void findsDelimitersSplitAcrossReads() throws IOException {
+        byte[] data = content(40000);
+        MultipartStream multipart = new MultipartStream(new TrickleInputStream(body(data)), BOUNDARY);
+
+        assertTrue(multipart.nextPart());
+        assertEquals("3", multipart.readString(16));
+        assertTrue(multipart.nextPart());
+        assertArrayEquals(data, readAll(multipart.getPartStream(data.length)));
+        assertFalse(multipart.nextPart());
+    }
+
+    // Line breaks and dashes that fall short of the delimiter are content
+    @Test
+    public void keepsNearDelimitersInContent() throws IOException {
+        byte[] data = ("x\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "\r\n-\r\n--y")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        MultipartStream multipart = new MultipartStream(new TrickleInputStream(body(data)), BOUNDARY);
+
+        multipart.nextPart();
+        multipart.nextPart();
+        assertArrayEquals(data, readAll(multipart.getPartStream(data.length)));
+    }
+
+    @Test
+    public void skipsWhatIsLeftOfAPart() throws IOException {
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body(content(5000))), BOUNDARY);
+
+        multipart.nextPart();
+        multipart.nextPart();
+        assertTrue(multipart.getPartStream(5000).read(new byte[10]) > 0);
+        assertFalse(multipart.nextPart());
+    }
+
+    @Test
+    public void rejectsAShortPart() throws IOException {
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body(content(100))), BOUNDARY);
+
+        multipart.nextPart();
+        multipart.nextPart();
+        try {
+            readAll(multipart.getPartStream(101));
+            fail("part shorter than expected");
+        } catch (IOException x) {
+            assertTrue(x.getMessage().contains("shorter"));
+        }
+    }
+
+    @Test
+    public void rejectsALongPart() throws IOException {
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body(content(100))), BOUNDARY);
+
+        multipart.nextPart();
+        multipart.nextPart();
+        try {
+            readAll(multipart.getPartStream(99));
+            fail("part longer than expected");
+        } catch (IOException x) {
+            assertTrue(x.getMessage().contains("longer"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedBody() throws IOException {
+        byte[] body = body(content(100));
+        byte[] truncated = new byte[body.length - 20];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(truncated), BOUNDARY);
+
+        multipart.nextPart();
+        multipart.nextPart();
+        readAll(multipart.getPartStream(100));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnOverlongField() throws IOException {
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body(content(1))), BOUNDARY);
+
+        multipart.nextPart();
+        multipart.nextPart();
+        multipart.readString(0);
+    }
+
+    private static byte[] body(byte[] data) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"resumableChunkNumber\"\r\n"
+                + "\r\n"
+                + "3\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body.write(data);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return body.toByteArray();
+    }
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int r;
+        while ((r = stream.read(buffer, 0, buffer.length)) >= 0) {
+            bytes.write(buffer, 0, r);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class TrickleInputStream extends FilterInputStream {
+
+        TrickleInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
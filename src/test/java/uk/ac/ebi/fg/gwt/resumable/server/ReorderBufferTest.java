@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+
+    @Test
+    public void refusesWhatDoesNotFit() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.setMaxBytes(3000);
+        ByteBuffer first = buffer.allocate(1000);
+        assertNotNull(buffer.allocate(2000));
+        assertNull(buffer.allocate(1));
+        assertEquals(3000, buffer.getUsed());
+
+        buffer.release(first);
+        assertNotNull(buffer.allocate(1000));
+    }
+
+    @Test
+    public void reusesReleasedBuffersOfTheSameSize() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        ByteBuffer first = buffer.allocate(1000);
+        first.put((byte) 1);
+        buffer.release(first);
+        assertEquals(1000, buffer.getPooled());
+
+        ByteBuffer second = buffer.allocate(1000);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(0, buffer.getPooled());
+    }
+
+    // Kept buffers count against the bound and make way for buffers of another size
+    @Test
+    public void dropsKeptBuffersToMakeRoom() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.setMaxBytes(3000);
+        buffer.release(buffer.allocate(2000));
+        assertEquals(2000, buffer.getPooled());
+
+        assertNotNull(buffer.allocate(1500));
+        assertEquals(0, buffer.getPooled());
+        assertEquals(1500, buffer.getUsed());
+    }
+
+    @Test
+    public void keepsAFewBuffersPerSize() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            buffers.add(buffer.allocate(100));
+        }
+        for (ByteBuffer released : buffers) {
+            buffer.release(released);
+        }
+        assertEquals(0, buffer.getUsed());
+        assertEquals(800, buffer.getPooled());
+    }
+
+    @Test
+    public void trimsWhenTheBoundShrinks() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.release(buffer.allocate(1000));
+        buffer.release(buffer.allocate(2000));
+        buffer.setMaxBytes(1500);
+        assertTrue(buffer.getPooled() <= 1500);
+    }
+}
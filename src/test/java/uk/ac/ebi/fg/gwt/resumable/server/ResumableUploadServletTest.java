@@ -0,0 +1,336 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Drives the servlet over HTTP in an embedded Jetty
+public class ResumableUploadServletTest {
+
+    // bigger than a pooled buffer, so chunks are read and written in several pieces
+    private final static int CHUNK_SIZE = 200000;
+    private final static String BOUNDARY = "resumable-test-boundary";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger asyncRequests = new AtomicInteger();
+
+    private File directory;
+    private Server server;
+    private ResumableUploadServlet servlet;
+    private int port;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("uploads");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (null != server) {
+            server.stop();
+        }
+    }
+
+    // The last chunk takes the remainder, here more than a chunk size
+    @Test
+    public void uploadsChunksWithoutBlocking() throws Exception {
+        start(ResumableUploadServlet.INIT_ASYNC_UPLOAD, "true");
+        byte[] content = content(CHUNK_SIZE * 2 + CHUNK_SIZE / 2);
+        assertEquals(ResumableUploadServlet.RESPONSE_UPLOADED, post(chunk("async", content, 2), content, 2, null));
+        assertEquals(ResumableUploadServlet.RESPONSE_ALL_FINISHED, post(chunk("async", content, 1), content, 1, null));
+
+        assertEquals(2, asyncRequests.get());
+        assertArrayEquals(content, Files.readAllBytes(new File(directory, "async.bin").toPath()));
+    }
+
+    @Test
+    public void turnsAwayAChunkOfTheWrongLength() throws Exception {
+        start(ResumableUploadServlet.INIT_ASYNC_UPLOAD, "true");
+        byte[] content = content(CHUNK_SIZE * 2);
+        assertEquals("400", post(chunk("short", content, 1), content, 0, CHUNK_SIZE - 1, null));
+        assertEquals(0, asyncRequests.get());
+    }
+
+    // A conflict makes the client send the chunk again, which then goes through
+    @Test
+    public void refusesAChunkThatFailsItsChecksum() throws Exception {
+        start(ResumableUploadServlet.INIT_ASYNC_UPLOAD, "true");
+        byte[] content = content(CHUNK_SIZE * 2);
+        assertEquals("409", post(chunk("checked", content, 1), content, 1, "crc32:00000000"));
+        assertEquals(1, asyncRequests.get());
+        assertEquals(ResumableUploadServlet.RESPONSE_UPLOADED, post(chunk("checked", content, 1), content, 1, null));
+        assertFalse(new File(directory, "checked.bin").exists());
+    }
+
+    @Test
+    public void storesBatchedChunks() throws Exception {
+        start();
+        assertBatch();
+    }
+
+    @Test
+    public void storesBatchedChunksAsTheyStreamIn() throws Exception {
+        start(ResumableUploadServlet.INIT_STREAMING_MULTIPART, "true");
+        assertBatch();
+    }
+
+    // One chunk of each of two files, the second of which completes its file, and a chunk with no file
+    // part; each gets its own result line
+    private void assertBatch() throws IOException {
+        byte[] first = content(CHUNK_SIZE * 2);
+        byte[] second = content(CHUNK_SIZE);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        addField(body, ResumableUploadServlet.RESUMABLE_BATCH, "3");
+        addChunk(body, 0, chunk("first", first, 2), first, CHUNK_SIZE);
+        addChunk(body, 1, chunk("second", second, 1), second, 0);
+        for (Map.Entry<String, String> param : chunk("third", second, 1).entrySet()) {
+            addField(body, param.getKey() + ".2", param.getValue());
+        }
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream output = connection.getOutputStream()) {
+            body.writeTo(output);
+        }
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("0 200 " + ResumableUploadServlet.RESPONSE_UPLOADED + "\n"
+                + "1 200 " + ResumableUploadServlet.RESPONSE_ALL_FINISHED + "\n"
+                + "2 400 " + ResumableUploadServlet.RESPONSE_INVALID_REQUEST + "\n", read(connection));
+        assertArrayEquals(second, Files.readAllBytes(new File(directory, "second.bin").toPath()));
+        assertFalse(new File(directory, "first.bin").exists());
+    }
+
+    private static void addField(ByteArrayOutputStream body, String name, String value) throws IOException {
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Fields come before their file part
+    private static void addChunk(ByteArrayOutputStream body, int index, Map<String, String> params, byte[] content,
+                                 int offset) throws IOException {
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            addField(body, param.getKey() + "." + index, param.getValue());
+        }
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file." + index
+                + "\"; filename=\"blob\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        body.write(content, offset, Integer.parseInt(params.get(ResumableUploadServlet.RESUMABLE_CURRENT_CHUNK_SIZE)));
+        body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A request that names its upload in the header is turned away before any of its body is sent
+    @Test
+    public void limitsChunksPerUploadBeforeReadingTheBody() throws Exception {
+        start(ResumableUploadServlet.INIT_MAX_IN_FLIGHT_PER_UPLOAD, "1");
+        byte[] content = content(CHUNK_SIZE * 2);
+        try (Socket first = new Socket("localhost", port)) {
+            // the rest of the chunk never comes while the second request is made
+            OutputStream output = first.getOutputStream();
+            output.write(head(query(chunk("busy", content, 1)), "application/octet-stream", CHUNK_SIZE, null));
+            output.write(content, 0, CHUNK_SIZE / 2);
+            output.flush();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (0 == servlet.getAdmissionController().getInFlight() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+
+            try (Socket second = new Socket("localhost", port)) {
+                second.setSoTimeout(5000);
+                // the container dispatches once some of the body is there, the chunk's fields never come
+                output = second.getOutputStream();
+                output.write(head("", "multipart/form-data; boundary=" + BOUNDARY, CHUNK_SIZE * 10, "busy"));
+                output.write(("--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                output.flush();
+                String status = new BufferedReader(new InputStreamReader(second.getInputStream(),
+                        StandardCharsets.US_ASCII)).readLine();
+                assertTrue(status, status.startsWith("HTTP/1.1 503"));
+            }
+            assertEquals(1, servlet.getAdmissionController().getRejectedPerUpload());
+        }
+    }
+
+    // The request line and headers of a chunk POST, without its body
+    private static byte[] head(String query, String contentType, int contentLength, String uploadId) {
+        return ("POST /upload" + query + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: " + contentType
+                + "\r\nContent-Length: " + contentLength + "\r\n"
+                + (null != uploadId ? ResumableUploadServlet.IDENTIFIER_HEADER + ": " + uploadId + "\r\n" : "")
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Takes init parameters as name, value pairs
+    private void start(String... initParameters) throws Exception {
+        servlet = new ResumableUploadServlet();
+        servlet.setStorage(new SimpleUploadStorageImpl(directory.getPath()));
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        holder.getRegistration().setMultipartConfig(new MultipartConfigElement(folder.getRoot().getPath()));
+        holder.setInitParameter(ResumableUploadServlet.INIT_DIGEST_ALGORITHM, "SHA-256");
+        holder.setInitParameter(ResumableUploadServlet.INIT_JMX_METRICS, "false");
+        for (int i = 0; i < initParameters.length; i += 2) {
+            holder.setInitParameter(initParameters[i], initParameters[i + 1]);
+        }
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(holder, "/upload");
+        FilterHolder filter = new FilterHolder(new Filter() {
+            @Override
+            public void init(FilterConfig config) {
+            }
+
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                    throws IOException, ServletException {
+                chain.doFilter(request, response);
+                if (request.isAsyncStarted()) {
+                    asyncRequests.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void destroy() {
+            }
+        });
+        filter.setAsyncSupported(true);
+        context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        server = new Server(0);
+        server.setHandler(context);
+        server.start();
+        port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        url = "http://localhost:" + port + "/upload";
+    }
+
+    private static Map<String, String> chunk(String id, byte[] content, int chunkNumber) {
+        int totalChunks = Math.max(content.length / CHUNK_SIZE, 1);
+        int offset = (chunkNumber - 1) * CHUNK_SIZE;
+        int length = chunkNumber == totalChunks ? content.length - offset : CHUNK_SIZE;
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put(ResumableUploadServlet.RESUMABLE_CHUNK_NUMBER, String.valueOf(chunkNumber));
+        params.put(ResumableUploadServlet.RESUMABLE_CHUNK_SIZE, String.valueOf(CHUNK_SIZE));
+        params.put(ResumableUploadServlet.RESUMABLE_CURRENT_CHUNK_SIZE, String.valueOf(length));
+        params.put(ResumableUploadServlet.RESUMABLE_TOTAL_SIZE, String.valueOf(content.length));
+        params.put(ResumableUploadServlet.RESUMABLE_TOTAL_CHUNKS, String.valueOf(totalChunks));
+        params.put(ResumableUploadServlet.RESUMABLE_IDENTIFIER, id);
+        params.put(ResumableUploadServlet.RESUMABLE_FILENAME, id + ".bin");
+        params.put(ResumableUploadServlet.RESUMABLE_RELATIVE_PATH, id + ".bin");
+        return params;
+    }
+
+    private String post(Map<String, String> params, byte[] content, int chunkNumber, String checksum)
+            throws IOException {
+        int offset = (chunkNumber - 1) * CHUNK_SIZE;
+        int length = Integer.parseInt(params.get(ResumableUploadServlet.RESUMABLE_CURRENT_CHUNK_SIZE));
+        return post(params, content, offset, length, checksum);
+    }
+
+    private static String query(Map<String, String> params) throws IOException {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            query.append(query.length() == 0 ? "?" : "&").append(param.getKey()).append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+        return query.toString();
+    }
+
+    // Posts part of the content as a raw body, returns the response body or, for an error, the status code
+    private String post(Map<String, String> params, byte[] content, int offset, int length, String checksum)
+            throws IOException {
+        if (null != checksum) {
+            params.put(ResumableUploadServlet.RESUMABLE_CHUNK_CHECKSUM, checksum);
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + query(params)).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setFixedLengthStreamingMode(length);
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(content, offset, length);
+        }
+        int status = connection.getResponseCode();
+        if (status >= 400) {
+            return String.valueOf(status);
+        }
+        return read(connection);
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream input = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int r; (r = input.read(buffer)) >= 0; ) {
+                body.write(buffer, 0, r);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 13 + i / 1000);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleUploadStorageImplTest {
+
+    private final static int CHUNK_SIZE = 1024;
+    private final static int CHUNKS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private SimpleUploadStorageImpl storage;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("uploads");
+        storage = new SimpleUploadStorageImpl(directory.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storage.close();
+    }
+
+    // Chunks may come in any order; the last one takes the remainder of the file
+    @Test
+    public void assemblesChunksIntoTheFinishedFile() throws Exception {
+        final BlockingQueue<CompletedUpload> completed = new LinkedBlockingQueue<>();
+        storage.addCompletionListener(new UploadCompletionListener() {
+            @Override
+            public void uploadCompleted(CompletedUpload upload) {
+                completed.add(upload);
+            }
+        });
+        byte[] content = content(CHUNK_SIZE * CHUNKS + CHUNK_SIZE / 2);
+        for (int chunkNumber : new int[]{3, 1, 4, 1, 2}) {
+            FileChunkInfo info = info("whole", chunkNumber);
+            info.fileSize = content.length;
+            int offset = (chunkNumber - 1) * CHUNK_SIZE;
+            int length = chunkNumber == CHUNKS ? content.length - offset : CHUNK_SIZE;
+            info.currentChunkSize = length;
+            storage.storeChunk(info, new ByteArrayInputStream(content, offset, length), length);
+        }
+
+        File file = new File(directory, "whole.bin");
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(directory, ".partial/whole.bin.upload").exists());
+
+        CompletedUpload upload = completed.poll(5, TimeUnit.SECONDS);
+        assertNotNull(upload);
+        assertEquals("whole", upload.id);
+        assertEquals(file, upload.file);
+        assertEquals(content.length, upload.fileSize);
+        assertNull(completed.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    // Chunks that arrive ahead of the file digest are read back once the gap before them is filled
+    @Test
+    public void digestsTheFileWhateverOrderChunksArriveIn() throws Exception {
+        storage.setDigestAlgorithm("SHA-256");
+        byte[] content = content(CHUNK_SIZE * CHUNKS);
+        for (int chunkNumber : new int[]{2, 4, 1, 3}) {
+            int offset = (chunkNumber - 1) * CHUNK_SIZE;
+            storage.storeChunk(info("digested", chunkNumber), new ByteArrayInputStream(content, offset, CHUNK_SIZE),
+                    CHUNK_SIZE);
+        }
+        String digest = ChunkChecksum.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+        assertEquals(digest + "  digested.bin\n",
+                new String(Files.readAllBytes(new File(directory, "digested.bin.sha256").toPath()), StandardCharsets.UTF_8));
+    }
+
+    // A chunk that fails its checksum is not kept, and can be sent again
+    @Test
+    public void refusesAChunkThatFailsItsChecksum() throws IOException {
+        storage.setDigestAlgorithm("SHA-256");
+        FileChunkInfo info = info("checked", 1);
+        info.checksum = "crc32:00000000";
+        try {
+            storage.storeChunk(info, new ByteArrayInputStream(content(CHUNK_SIZE)), CHUNK_SIZE);
+            fail("stored a chunk that failed its checksum");
+        } catch (ChecksumMismatchException x) {
+            // expected
+        }
+        assertFalse(storage.hasChunk(info("checked", 1)));
+        store("checked", 1);
+        assertTrue(storage.hasChunk(info("checked", 1)));
+    }
+
+    // A chunk that ends short leaves nothing behind, and can be sent again
+    @Test
+    public void doesNotStoreAChunkThatEndsShort() throws IOException {
+        try {
+            storage.storeChunk(info("short", 1), new ByteArrayInputStream(new byte[CHUNK_SIZE - 1]), CHUNK_SIZE);
+            fail("stored a short chunk");
+        } catch (IOException x) {
+            // expected
+        }
+        assertFalse(storage.hasChunk(info("short", 1)));
+        store("short", 1);
+        assertTrue(storage.hasChunk(info("short", 1)));
+    }
+
+    @Test
+    public void evictsIdleUploadsWithTheirPartialFiles() throws Exception {
+        storage.setUploadIdleTimeout(1);
+        store("idle", 1);
+        File partial = new File(directory, ".partial/idle.bin.upload");
+        assertTrue(partial.isFile());
+
+        Thread.sleep(20);
+        ReapReport report = storage.reap();
+        assertEquals(1, report.staleEvicted);
+        assertFalse(storage.isLive("idle"));
+        assertFalse(partial.exists());
+    }
+
+    // However long a chunk takes to arrive, its upload is not abandoned while it does
+    @Test
+    public void keepsIdleUploadsWithAChunkInFlight() throws Exception {
+        storage.setUploadIdleTimeout(1);
+        store("slow", 1);
+        ChunkWriter writer = storage.openChunk(info("slow", 2));
+        writer.write(ByteBuffer.wrap(new byte[CHUNK_SIZE / 2]), 0);
+
+        Thread.sleep(20);
+        assertEquals(0, storage.reap().staleEvicted);
+        assertTrue(storage.isLive("slow"));
+
+        writer.abort();
+        Thread.sleep(20);
+        assertEquals(1, storage.reap().staleEvicted);
+    }
+
+    // Uploads under way are never pushed out by new ones, which are turned away until there is room
+    @Test
+    public void refusesNewUploadsWhenFull() throws Exception {
+        storage.setMaxLiveUploads(1);
+        store("first", 1);
+        try {
+            store("second", 1);
+            fail("second upload admitted");
+        } catch (OverloadedException x) {
+            // expected
+        }
+        assertTrue(storage.hasChunk(info("first", 1)));
+        assertEquals(0, storage.reap().getEvicted());
+
+        for (int chunkNumber = 2; chunkNumber <= CHUNKS; chunkNumber++) {
+            store("first", chunkNumber);
+        }
+        assertTrue(storage.hasAllChunks(info("first", CHUNKS)));
+        // a finished upload makes room
+        store("second", 1);
+        assertTrue(storage.hasChunk(info("second", 1)));
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + i / CHUNK_SIZE);
+        }
+        return content;
+    }
+
+    private void store(String id, int chunkNumber) throws IOException {
+        storage.storeChunk(info(id, chunkNumber), new ByteArrayInputStream(new byte[CHUNK_SIZE]), CHUNK_SIZE);
+    }
+
+    private static FileChunkInfo info(String id, int chunkNumber) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.id = id;
+        info.fileName = id + ".bin";
+        info.relativePath = id + ".bin";
+        info.chunkSize = CHUNK_SIZE;
+        info.fileSize = CHUNK_SIZE * CHUNKS;
+        info.chunkNumber = chunkNumber;
+        info.currentChunkSize = CHUNK_SIZE;
+        return info;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingUploadStorageImplTest {
+
+    private final static int CHUNK_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final AtomicInteger opened = new AtomicInteger();
+    private StreamingUploadStorageImpl storage;
+
+    @Before
+    public void setUp() {
+        storage = new StreamingUploadStorageImpl(folder.getRoot().getPath(), new UploadSink() {
+            @Override
+            public WritableByteChannel open(FileChunkInfo info) {
+                opened.incrementAndGet();
+                return Channels.newChannel(received);
+            }
+
+            @Override
+            public void discarded(FileChunkInfo info, WritableByteChannel channel) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Test
+    public void passesChunksOnInOrder() throws IOException {
+        byte[] data = content();
+        store(data, 3);
+        store(data, 1);
+        assertEquals(CHUNK_SIZE, received.size());
+        assertTrue(storage.hasChunk(chunk(3)));
+        store(data, 5);
+        store(data, 4);
+        store(data, 2);
+
+        assertTrue(storage.hasAllChunks(chunk(5)));
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(0, storage.getReorderBytes());
+    }
+
+    // Chunks that do not fit in the reorder buffer wait in the spill file instead; here only the last chunk
+    // fits, the others are spilled, the first one included
+    @Test
+    public void spillsWhenTheReorderBufferIsFull() throws IOException {
+        storage.setMaxReorderBytes(CHUNK_SIZE);
+        byte[] data = content();
+        for (int chunkNumber = 5; chunkNumber >= 1; chunkNumber--) {
+            store(data, chunkNumber);
+        }
+
+        assertTrue(storage.hasAllChunks(chunk(5)));
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(4 * CHUNK_SIZE, storage.getMetrics().bytesSpilled.sum());
+    }
+
+    @Test
+    public void ignoresDuplicateChunks() throws IOException {
+        byte[] data = content();
+        store(data, 2);
+        store(data, 2);
+        store(data, 1);
+
+        assertArrayEquals(Arrays.copyOf(data, 2 * CHUNK_SIZE), received.toByteArray());
+        assertEquals(1, storage.getMetrics().duplicateChunks.sum());
+    }
+
+    // Probes for an upload that has not started do not open the sink
+    @Test
+    public void opensTheSinkOnTheFirstChunk() throws IOException {
+        assertFalse(storage.hasChunk(chunk(1)));
+        assertFalse(storage.hasAllChunks(chunk(1)));
+        assertEquals(0, opened.get());
+
+        store(content(), 2);
+        assertEquals(1, opened.get());
+        assertEquals(1, storage.getLiveUploads());
+    }
+
+    // Whichever chunk comes in last, and however many at once, the upload is completed and reported once,
+    // with its digest in place by the time it counts as complete
+    @Test
+    public void completesUploadsOnceWhenChunksRace() throws Exception {
+        final int uploads = 50;
+        storage.setDigestAlgorithm("SHA-256");
+        final ConcurrentMap<String, AtomicInteger> completions = new ConcurrentHashMap<>();
+        final CountDownLatch reported = new CountDownLatch(uploads);
+        storage.addCompletionListener(new UploadCompletionListener() {
+            @Override
+            public void uploadCompleted(CompletedUpload upload) {
+                completions.putIfAbsent(upload.id, new AtomicInteger());
+                completions.get(upload.id).incrementAndGet();
+                reported.countDown();
+            }
+        });
+
+        final byte[] data = content();
+        for (int i = 0; i < uploads; i++) {
+            final String id = "race-" + i;
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int chunkNumber = 1; chunkNumber <= 5; chunkNumber++) {
+                final FileChunkInfo info = chunk(id, chunkNumber);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            storage.storeChunk(info, new ByteArrayInputStream(data,
+                                    (info.chunkNumber - 1) * CHUNK_SIZE, CHUNK_SIZE), CHUNK_SIZE);
+                        } catch (InterruptedException | IOException x) {
+                            throw new IllegalStateException(x);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(storage.hasAllChunks(chunk(id, 5)));
+            assertNotNull(storage.getFileDigest(chunk(id, 5)));
+        }
+
+        assertTrue(reported.await(10, TimeUnit.SECONDS));
+        assertEquals(uploads, completions.size());
+        for (AtomicInteger count : completions.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(uploads, opened.get());
+    }
+
+    private void store(byte[] data, int chunkNumber) throws IOException {
+        storage.storeChunk(chunk(chunkNumber), new ByteArrayInputStream(data, (chunkNumber - 1) * CHUNK_SIZE, CHUNK_SIZE),
+                CHUNK_SIZE);
+    }
+
+    private static FileChunkInfo chunk(int chunkNumber) {
+        return chunk("a", chunkNumber);
+    }
+
+    private static FileChunkInfo chunk(String id, int chunkNumber) {
+        FileChunkInfo info = new FileChunkInfo();
+        info.id = id;
+        info.fileName = id + ".bin";
+        info.relativePath = id + ".bin";
+        info.chunkSize = CHUNK_SIZE;
+        info.fileSize = 5 * CHUNK_SIZE;
+        info.chunkNumber = chunkNumber;
+        info.currentChunkSize = CHUNK_SIZE;
+        return info;
+    }
+
+    private static byte[] content() {
+        byte[] data = new byte[5 * CHUNK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / CHUNK_SIZE + i);
+        }
+        return data;
+    }
+}
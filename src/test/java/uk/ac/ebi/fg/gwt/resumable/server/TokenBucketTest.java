@@ -0,0 +1,71 @@
+/*
+ * Copyright 2009-2016 European Molecular Biology Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.ac.ebi.fg.gwt.resumable.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void startsFull() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertTrue(bucket.isFull());
+        assertEquals(0, bucket.available(1000));
+    }
+
+    @Test
+    public void waitsInProportionToWhatIsMissing() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.take(1000);
+        assertFalse(bucket.isFull());
+
+        long wait = bucket.available(500);
+        assertTrue("waits " + wait, wait > TimeUnit.MILLISECONDS.toNanos(450));
+        assertTrue("waits " + wait, wait <= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    // More than a second's worth only needs a full bucket, and then leaves it in debt
+    @Test
+    public void letsLargeRequestsThroughAFullBucket() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertEquals(0, bucket.available(5000));
+        bucket.take(5000);
+
+        long wait = bucket.available(1000);
+        assertTrue("waits " + wait, wait > TimeUnit.MILLISECONDS.toNanos(4900));
+    }
+
+    @Test
+    public void refillsOverTimeUpToOneSecondsWorth() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000000000L);
+        bucket.take(1000000000L);
+        Thread.sleep(50);
+        assertEquals(0, bucket.available(10000000L));
+
+        Thread.sleep(1100);
+        assertTrue(bucket.isFull());
+        bucket.take(1000000000L);
+        assertTrue(bucket.available(1000000000L) > 0);
+    }
+}